@@ -0,0 +1,58 @@
+package chunkycl;
+
+import org.openjdk.jmh.annotations.*;
+import se.llbit.chunky.renderer.RenderWorkerPool;
+import se.llbit.chunky.renderer.scene.Scene;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Host side work done per render or per frame: camera rays and the post processing pass.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameBenchmark {
+    /** Canvas width, the height is 9/16 of the width. */
+    @Param({"1280", "3840"})
+    public int width;
+
+    private Scene scene;
+    private float[] rayDirs;
+    private RenderWorkerPool pool;
+    private OpenClRenderer.RenderPoolFinalizer finalizer;
+
+    @Setup
+    public void setup() {
+        scene = SyntheticScenes.scene(width, width * 9 / 16);
+        rayDirs = AbstractOpenClRenderer.generateCameraRays(scene);
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        pool = new RenderWorkerPool(threads, 0);
+        finalizer = new OpenClRenderer.RenderPoolFinalizer(pool, threads);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        pool.interrupt();
+    }
+
+    @Benchmark
+    public float[] cameraRays() {
+        return AbstractOpenClRenderer.generateCameraRays(scene);
+    }
+
+    @Benchmark
+    public float[] jitterLengths() {
+        return AbstractOpenClRenderer.generateJitterLengths(rayDirs, scene);
+    }
+
+    @Benchmark
+    public void postProcess() throws InterruptedException {
+        finalizer.postProcessFrame(scene);
+        finalizer.join();
+    }
+}
@@ -0,0 +1,110 @@
+package chunkycl;
+
+import org.openjdk.jmh.annotations.*;
+import se.llbit.chunky.block.Block;
+import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.chunky.world.ChunkPosition;
+import se.llbit.math.Octree;
+import se.llbit.math.primitive.Primitive;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Host side stages of {@link GpuRayTracer#load}. The device uploads are not included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SceneLoadBenchmark {
+    /** Octree depth, the scene is 2^depth blocks wide. */
+    @Param({"8", "10"})
+    public int depth;
+
+    /** Number of block palette entries. */
+    @Param({"1000"})
+    public int paletteSize;
+
+    /** Number of entity triangles. */
+    @Param({"100000"})
+    public int triangles;
+
+    private Scene scene;
+    private Octree octree;
+    private int[] treeData;
+    private ByteBuffer staging;
+    private List<ChunkPosition> chunks;
+    private int[] tintPages;
+    private List<Block> palette;
+    private int[] paletteTextureIndexes;
+    private Primitive[][] leaves;
+    private int[] leafNodes;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        scene = SyntheticScenes.scene(400, 300);
+        octree = SyntheticScenes.terrain(depth, paletteSize);
+        treeData = GpuRayTracer.getTreeData(octree);
+        staging = ByteBuffer.allocateDirect(GpuRayTracer.OCTREE_SLICE_BYTES).order(ByteOrder.nativeOrder());
+
+        chunks = SyntheticScenes.chunks((1 << depth) / 16);
+        tintPages = GpuRayTracer.buildTintPages(scene, depth, chunks);
+
+        palette = SyntheticScenes.palette(paletteSize, 4);
+        paletteTextureIndexes = GpuRayTracer.buildTextureAtlas(palette).paletteIndexes;
+
+        leaves = SyntheticScenes.leaves(SyntheticScenes.triangles(triangles, 64), 4);
+        leafNodes = SyntheticScenes.leafNodes(leaves.length);
+    }
+
+    @Benchmark
+    public int[] octreeReflection() throws ReflectiveOperationException {
+        return GpuRayTracer.getTreeData(octree);
+    }
+
+    @Benchmark
+    public long octreeHash() {
+        return ContentHash.hash(treeData);
+    }
+
+    /** Copy the tree data through the staging buffer in slices, like the octree upload. */
+    @Benchmark
+    public ByteBuffer octreeStaging() {
+        int sliceInts = GpuRayTracer.OCTREE_SLICE_BYTES / 4;
+        for (int offset = 0; offset < treeData.length; offset += sliceInts) {
+            GpuRayTracer.fillOctreeSlice(staging, treeData, offset, sliceInts);
+        }
+        return staging;
+    }
+
+    @Benchmark
+    public int[] tintPages() {
+        return GpuRayTracer.buildTintPages(scene, depth, chunks);
+    }
+
+    @Benchmark
+    public int[] tintTiles() {
+        return GpuRayTracer.buildTintTiles(scene, depth, tintPages);
+    }
+
+    @Benchmark
+    public GpuRayTracer.TextureAtlas textureAtlas() {
+        return GpuRayTracer.buildTextureAtlas(palette);
+    }
+
+    @Benchmark
+    public int[] blockData() {
+        return GpuRayTracer.buildBlockData(scene, palette, paletteTextureIndexes);
+    }
+
+    @Benchmark
+    public PrimitivePacker.Packed packPrimitives() {
+        // Packing changes the leaf nodes
+        return PrimitivePacker.pack(leafNodes.clone(), leaves);
+    }
+}
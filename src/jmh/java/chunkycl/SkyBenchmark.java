@@ -0,0 +1,41 @@
+package chunkycl;
+
+import org.openjdk.jmh.annotations.*;
+import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.chunky.renderer.scene.Sky;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sky texture generation, run on every sky change before the upload in {@link GpuRayTracer#generateSky}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SkyBenchmark {
+    @Param({"128", "512"})
+    public int resolution;
+
+    @Param({"SIMULATED", "GRADIENT"})
+    public Sky.SkyMode skyMode;
+
+    private Sky sky;
+    private float[] skyImage;
+
+    @Setup
+    public void setup() {
+        Scene scene = SyntheticScenes.scene(400, 300);
+        sky = scene.sky();
+        sky.setSkyMode(skyMode);
+        skyImage = new float[resolution * resolution * 4];
+    }
+
+    @Benchmark
+    public float[] sky() {
+        GpuRayTracer.renderSky(sky, skyImage, resolution);
+        return skyImage;
+    }
+}
@@ -0,0 +1,147 @@
+package chunkycl;
+
+import se.llbit.chunky.block.Block;
+import se.llbit.chunky.block.MinecraftBlock;
+import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.chunky.resources.BitmapImage;
+import se.llbit.chunky.resources.Texture;
+import se.llbit.chunky.world.ChunkPosition;
+import se.llbit.chunky.world.Material;
+import se.llbit.chunky.world.material.TextureMaterial;
+import se.llbit.math.Octree;
+import se.llbit.math.Vector2;
+import se.llbit.math.Vector3;
+import se.llbit.math.primitive.Primitive;
+import se.llbit.math.primitive.TexturedTriangle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic scene data for the benchmarks. Everything is generated from a fixed seed so runs are comparable.
+ */
+final class SyntheticScenes {
+    private static final long SEED = 0x436c;
+
+    private SyntheticScenes() {}
+
+    /**
+     * Create a scene with the given canvas size.
+     */
+    static Scene scene(int width, int height) {
+        Scene scene = new Scene();
+        scene.setCanvasSize(width, height);
+        return scene;
+    }
+
+    /**
+     * Create a packed octree filled with a random height map terrain of a palette.
+     */
+    static Octree terrain(int depth, int paletteSize) {
+        Octree octree = new Octree("PACKED", depth);
+        Random random = new Random(SEED);
+        int size = 1 << depth;
+        int maxHeight = Math.min(size, 128);
+
+        // Smooth terrain so the octree has realistic merged regions
+        for (int x = 0; x < size; x++) {
+            for (int z = 0; z < size; z++) {
+                double h = (Math.sin(x / 23.0) + Math.cos(z / 17.0) + 2) / 4;
+                int height = (int) (h * maxHeight * 0.5 + random.nextInt(4));
+                for (int y = 0; y < height; y++) {
+                    octree.set(1 + (y * 7 + x / 16 + z / 16) % Math.max(1, paletteSize - 1), x, y, z);
+                }
+            }
+        }
+        return octree;
+    }
+
+    /**
+     * Get the chunks covering a square of the octree, starting at the origin.
+     */
+    static List<ChunkPosition> chunks(int chunksPerSide) {
+        List<ChunkPosition> chunks = new ArrayList<>();
+        for (int x = 0; x < chunksPerSide; x++) {
+            for (int z = 0; z < chunksPerSide; z++) {
+                chunks.add(ChunkPosition.get(x, z));
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Create a block palette with 16x16 textures. Every n-th block reuses an earlier texture, like the many
+     * block states which share a texture in real scenes.
+     */
+    static List<Block> palette(int size, int sharedEvery) {
+        Random random = new Random(SEED);
+        List<Block> palette = new ArrayList<>();
+        List<Texture> textures = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            Texture texture;
+            if (sharedEvery > 0 && i % sharedEvery == sharedEvery - 1 && !textures.isEmpty()) {
+                texture = textures.get(random.nextInt(textures.size()));
+            } else {
+                texture = texture(random);
+                textures.add(texture);
+            }
+            palette.add(new MinecraftBlock("synthetic_" + i, texture));
+        }
+        return palette;
+    }
+
+    /**
+     * Create textured triangles with a number of distinct materials.
+     */
+    static Primitive[] triangles(int count, int materials) {
+        Random random = new Random(SEED);
+        Material[] materialList = new Material[Math.max(1, materials)];
+        for (int i = 0; i < materialList.length; i++) {
+            materialList[i] = new TextureMaterial(texture(random));
+        }
+
+        Primitive[] triangles = new Primitive[count];
+        for (int i = 0; i < count; i++) {
+            Vector3 c1 = new Vector3(random.nextDouble() * 64, random.nextDouble() * 64, random.nextDouble() * 64);
+            Vector3 c2 = new Vector3(c1.x + random.nextDouble(), c1.y, c1.z);
+            Vector3 c3 = new Vector3(c1.x, c1.y + random.nextDouble(), c1.z);
+            triangles[i] = new TexturedTriangle(c1, c2, c3, new Vector2(0, 0), new Vector2(1, 0),
+                    new Vector2(0, 1), materialList[i % materialList.length], random.nextBoolean());
+        }
+        return triangles;
+    }
+
+    /**
+     * Split primitives into BVH leaves of a fixed size.
+     */
+    static Primitive[][] leaves(Primitive[] primitives, int leafSize) {
+        Primitive[][] leaves = new Primitive[(primitives.length + leafSize - 1) / leafSize][];
+        for (int i = 0; i < leaves.length; i++) {
+            leaves[i] = Arrays.copyOfRange(primitives, i * leafSize, Math.min(primitives.length, (i + 1) * leafSize));
+        }
+        return leaves;
+    }
+
+    /**
+     * Packed BVH nodes of 7 ints where every node is a leaf, as read by the primitive packer.
+     */
+    static int[] leafNodes(int leaves) {
+        int[] nodes = new int[leaves * 7];
+        for (int i = 0; i < leaves; i++) {
+            nodes[i * 7] = -i;
+        }
+        return nodes;
+    }
+
+    private static Texture texture(Random random) {
+        BitmapImage bitmap = new BitmapImage(16, 16);
+        for (int i = 0; i < bitmap.data.length; i++) {
+            bitmap.data[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        Texture texture = new Texture();
+        texture.setTexture(bitmap);
+        return texture;
+    }
+}
@@ -37,6 +37,9 @@ public abstract class AbstractOpenClRenderer implements Renderer {
             if (reason.overwriteState())
                 rayTracer.generateSky(manager.bufferedScene);
 
+            if (reason == ResetReason.SCENE_LOADED)
+                GpuRayTracer.sceneLoaded(resetCount);
+
             if (reason == ResetReason.MATERIALS_CHANGED || reason == ResetReason.SCENE_LOADED)
                 rayTracer.load(manager.bufferedScene, manager.getRenderTask());
 
@@ -49,7 +52,7 @@ public abstract class AbstractOpenClRenderer implements Renderer {
         this.callback = callback;
     }
 
-    protected float[] generateCameraRays(Scene bufferedScene) {
+    protected static float[] generateCameraRays(Scene bufferedScene) {
         // Generate camera starting rays
         int width = bufferedScene.canvasWidth();
         int height = bufferedScene.canvasHeight();
@@ -76,7 +79,7 @@ public abstract class AbstractOpenClRenderer implements Renderer {
         return rayDirs;
     }
 
-    protected float[] generateJitterLengths(float[] rayDirs, Scene bufferedScene) {
+    protected static float[] generateJitterLengths(float[] rayDirs, Scene bufferedScene) {
         int width = bufferedScene.canvasWidth();
         int height = bufferedScene.canvasHeight();
 
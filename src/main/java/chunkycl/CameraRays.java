@@ -0,0 +1,220 @@
+package chunkycl;
+
+import se.llbit.chunky.renderer.scene.Camera;
+import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.log.Log;
+import se.llbit.math.Matrix3;
+import se.llbit.math.Ray;
+import se.llbit.math.Vector3;
+
+import java.lang.reflect.Field;
+import java.util.Random;
+
+/**
+ * The primary rays of a render. Pinhole, fisheye and panoramic cameras are described by a few parameters and
+ * their rays are generated on the device, see kernel/include/camera.h. Other projections fall back to ray
+ * directions generated on the host.
+ */
+public class CameraRays {
+    // Camera parameter layout, must match camera.h
+    public static final int PARAMETERS = 16;
+    private static final int PROJECTION = 0;
+    private static final int WIDTH = 1;
+    private static final int HEIGHT = 2;
+    private static final int FOV = 3;
+    private static final int APERTURE = 4;
+    private static final int SUBJECT_DISTANCE = 5;
+    private static final int TRANSFORM = 6;
+
+    private static final int PROJECTION_HOST = 0;
+    private static final int PROJECTION_PINHOLE = 1;
+    private static final int PROJECTION_FISHEYE = 2;
+    private static final int PROJECTION_PANORAMIC = 3;
+
+    // Returns the same number for every call, so the aperture sample of Chunky's camera is known
+    private static final Random FIXED_RANDOM = new Random() {
+        @Override
+        public double nextDouble() {
+            return 0.75;
+        }
+    };
+
+    private static final Field cameraTransform = getCameraTransform();
+
+    public final int width;
+    public final int height;
+
+    /** Camera parameters for the device. */
+    public final float[] parameters = new float[PARAMETERS];
+
+    /** Ray directions and jitter generated on the host, or null if the rays are generated on the device. */
+    public final float[] rayDirs;
+    public final float[] jitterDirs;
+
+    private CameraRays(int width, int height, float[] rayDirs, float[] jitterDirs) {
+        this.width = width;
+        this.height = height;
+        this.rayDirs = rayDirs;
+        this.jitterDirs = jitterDirs;
+        parameters[WIDTH] = width;
+        parameters[HEIGHT] = height;
+    }
+
+    /**
+     * Get the camera rays of a scene.
+     *
+     * @param jitter If the rays are sampled at a random position in the pixel. Needs the jitter lengths if the
+     *               rays are generated on the host.
+     */
+    public static CameraRays create(Scene scene, boolean jitter) {
+        int width = scene.canvasWidth();
+        int height = scene.canvasHeight();
+
+        CameraRays rays = new CameraRays(width, height, null, null);
+        if (rays.setParameters(scene.camera())) {
+            return rays;
+        }
+
+        float[] rayDirs = AbstractOpenClRenderer.generateCameraRays(scene);
+        float[] jitterDirs = jitter ? AbstractOpenClRenderer.generateJitterLengths(rayDirs, scene) : null;
+        return new CameraRays(width, height, rayDirs, jitterDirs);
+    }
+
+    public int getPixels() {
+        return width * height;
+    }
+
+    public boolean isOnDevice() {
+        return rayDirs == null;
+    }
+
+    /**
+     * Describe the camera with the device parameters.
+     *
+     * @return false if the projection can not be generated on the device
+     */
+    private boolean setParameters(Camera camera) {
+        if (cameraTransform == null) return false;
+
+        switch (camera.getProjectionMode()) {
+            case PINHOLE:
+                parameters[PROJECTION] = PROJECTION_PINHOLE;
+                parameters[FOV] = (float) Camera.clampedFovTan(camera.getFov());
+                break;
+            case FISHEYE:
+                parameters[PROJECTION] = PROJECTION_FISHEYE;
+                parameters[FOV] = (float) Math.toRadians(camera.getFov());
+                break;
+            case PANORAMIC:
+                parameters[PROJECTION] = PROJECTION_PANORAMIC;
+                parameters[FOV] = (float) Math.toRadians(camera.getFov());
+                break;
+            default:
+                return false;
+        }
+
+        if (!camera.infiniteDoF()) {
+            parameters[APERTURE] = (float) (camera.getSubjectDistance() / camera.getDof());
+            parameters[SUBJECT_DISTANCE] = (float) camera.getSubjectDistance();
+        }
+
+        try {
+            Matrix3 transform = (Matrix3) cameraTransform.get(camera);
+            double[] m = {transform.m11, transform.m12, transform.m13, transform.m21, transform.m22, transform.m23,
+                    transform.m31, transform.m32, transform.m33};
+            for (int i = 0; i < m.length; i++) {
+                parameters[TRANSFORM + i] = (float) m[i];
+            }
+        } catch (IllegalAccessException e) {
+            return false;
+        }
+
+        // Compare a few rays with the camera, anything the parameters do not describe (such as a camera shift)
+        // falls back to the host rays
+        if (!matchesCamera(camera)) {
+            parameters[PROJECTION] = PROJECTION_HOST;
+            return false;
+        }
+        return true;
+    }
+
+    private boolean matchesCamera(Camera camera) {
+        double halfWidth = width / (2.0 * height);
+        double[][] points = {{0, 0}, {-halfWidth, -0.5}, {halfWidth, 0.5}, {0.3 * halfWidth, -0.2}};
+
+        // Chunky samples the aperture by rejection, a fixed 0.75 gives the offset (0.5, 0.5) of the aperture
+        double aperture = parameters[APERTURE];
+        double offset = 0.5 * aperture;
+
+        Ray ray = new Ray();
+        Vector3 o = new Vector3();
+        Vector3 d = new Vector3();
+        for (double[] point : points) {
+            camera.calcViewRay(ray, FIXED_RANDOM, point[0], point[1]);
+            ray.o.sub(camera.getPosition());
+            project(point[0], point[1], offset, offset, o, d);
+
+            double error = Math.abs(ray.d.x - d.x) + Math.abs(ray.d.y - d.y) + Math.abs(ray.d.z - d.z);
+            error += (Math.abs(ray.o.x - o.x) + Math.abs(ray.o.y - o.y) + Math.abs(ray.o.z - o.z)) /
+                    Math.max(1, aperture);
+            if (!(error < 1e-3)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Generate a ray like the device does, relative to the camera position.
+     *
+     * @param apertureX Offset in the aperture, in camera space
+     * @param apertureY Offset in the aperture, in camera space
+     */
+    private void project(double x, double y, double apertureX, double apertureY, Vector3 o, Vector3 d) {
+        double fov = parameters[FOV];
+        int projection = (int) parameters[PROJECTION];
+        if (projection == PROJECTION_FISHEYE) {
+            double ax = x * fov;
+            double ay = y * fov;
+            double angle = Math.sqrt(ax * ax + ay * ay);
+            if (angle > 0) {
+                d.set(Math.sin(angle) * ax / angle, Math.sin(angle) * ay / angle, Math.cos(angle));
+            } else {
+                d.set(0, 0, 1);
+            }
+        } else if (projection == PROJECTION_PANORAMIC) {
+            double ax = x * fov;
+            double ay = y * fov;
+            d.set(Math.cos(ay) * Math.sin(ax), Math.sin(ay), Math.cos(ay) * Math.cos(ax));
+        } else {
+            d.set(fov * x, fov * y, 1);
+        }
+
+        o.set(0, 0, 0);
+        if (parameters[APERTURE] > 0) {
+            d.scale(parameters[SUBJECT_DISTANCE] / d.z);
+            d.set(d.x - apertureX, d.y - apertureY, d.z);
+            o.set(apertureX, apertureY, 0);
+        }
+        d.normalize();
+
+        transform(d);
+        transform(o);
+    }
+
+    private void transform(Vector3 v) {
+        float[] m = parameters;
+        v.set(m[TRANSFORM] * v.x + m[TRANSFORM + 1] * v.y + m[TRANSFORM + 2] * v.z,
+                m[TRANSFORM + 3] * v.x + m[TRANSFORM + 4] * v.y + m[TRANSFORM + 5] * v.z,
+                m[TRANSFORM + 6] * v.x + m[TRANSFORM + 7] * v.y + m[TRANSFORM + 8] * v.z);
+    }
+
+    private static Field getCameraTransform() {
+        try {
+            Field transform = Camera.class.getDeclaredField("transform");
+            transform.setAccessible(true);
+            return transform;
+        } catch (NoSuchFieldException | SecurityException e) {
+            Log.info("Camera rays are generated on the host, the camera transform is not accessible.");
+            return null;
+        }
+    }
+}
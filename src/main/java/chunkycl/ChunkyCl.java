@@ -9,12 +9,14 @@ import se.llbit.chunky.main.Chunky;
 import se.llbit.chunky.main.ChunkyOptions;
 import se.llbit.chunky.renderer.RenderController;
 import se.llbit.chunky.ui.ChunkyFx;
+import se.llbit.chunky.ui.DoubleAdjuster;
 import se.llbit.chunky.ui.IntegerAdjuster;
 import se.llbit.chunky.ui.render.AdvancedTab;
 import se.llbit.chunky.ui.render.RenderControlsTab;
 import se.llbit.chunky.ui.render.RenderControlsTabTransformer;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -24,6 +26,7 @@ public class ChunkyCl implements Plugin {
     @Override public void attach(Chunky chunky) {
         // Add GPU renderers
         Chunky.addRenderer(new OpenClRenderer());
+        Chunky.addRenderer(new OpenClWavefrontRenderer());
         Chunky.addPreviewRenderer(new OpenClPreviewRenderer());
 
         RenderControlsTabTransformer prev = chunky.getRenderControlsTabTransformer();
@@ -83,6 +86,43 @@ public class ChunkyCl implements Plugin {
                     // Add drawEntities after draw depth
                     ((VBox) ((AdvancedTab) tab).getContent()).getChildren().add(5, drawEntitiesCheckBox);
 
+                    CheckBox adaptiveCheckBox = new CheckBox("Adaptive Sampling");
+                    adaptiveCheckBox.setTooltip(new Tooltip("Stop sampling pixels once their estimated error is below the threshold."));
+                    adaptiveCheckBox.selectedProperty().addListener((observable, oldValue, newValue) ->
+                        controller.getRenderManager().getRenderers().forEach(renderer -> {
+                            if (renderer instanceof OpenClRenderer)
+                                ((OpenClRenderer) renderer).adaptiveSampling = newValue;
+                        }));
+
+                    DoubleAdjuster adaptiveThresholdAdjuster = new DoubleAdjuster();
+                    adaptiveThresholdAdjuster.setName("Adaptive threshold");
+                    adaptiveThresholdAdjuster.setTooltip("Relative error at which adaptive sampling stops sampling a pixel");
+                    adaptiveThresholdAdjuster.setRange(0.001, 0.5);
+                    adaptiveThresholdAdjuster.makeLogarithmic();
+                    adaptiveThresholdAdjuster.clampBoth();
+                    adaptiveThresholdAdjuster.set(0.01);
+                    adaptiveThresholdAdjuster.onValueChange(value ->
+                        controller.getRenderManager().getRenderers().forEach(renderer -> {
+                            if (renderer instanceof OpenClRenderer)
+                                ((OpenClRenderer) renderer).adaptiveThreshold = value;
+                        }));
+
+                    CheckBox samplingErrorCheckBox = new CheckBox("Show Sampling Error");
+                    samplingErrorCheckBox.setTooltip(new Tooltip("Show the adaptive sampling error as a heat map while rendering."));
+                    samplingErrorCheckBox.selectedProperty().addListener((observable, oldValue, newValue) ->
+                        controller.getRenderManager().getRenderers().forEach(renderer -> {
+                            if (renderer instanceof OpenClRenderer)
+                                ((OpenClRenderer) renderer).showSamplingError = newValue;
+                        }));
+
+                    // Add adaptive sampling settings after drawEntities
+                    ((VBox) ((AdvancedTab) tab).getContent()).getChildren().add(6, adaptiveCheckBox);
+                    ((VBox) ((AdvancedTab) tab).getContent()).getChildren().add(7, adaptiveThresholdAdjuster);
+                    ((VBox) ((AdvancedTab) tab).getContent()).getChildren().add(8, samplingErrorCheckBox);
+
+                    // Add the profiler after the sampling settings
+                    ((VBox) ((AdvancedTab) tab).getContent()).getChildren().add(9, new ProfilerPanel());
+
                     Button deviceSelectorButton = new Button("Select OpenCL Device");
                     deviceSelectorButton.setOnMouseClicked(event -> {
                         GpuSelector selector = new GpuSelector();
@@ -100,6 +140,12 @@ public class ChunkyCl implements Plugin {
     }
 
     public static void main(String[] args) throws Exception {
+        // Render without the UI, see HeadlessRenderer
+        if (Arrays.asList(args).contains("--headless")) {
+            HeadlessRenderer.main(args);
+            return;
+        }
+
         // Start Chunky normally with this plugin attached.
         Chunky.loadDefaultTextures();
         Chunky chunky = new Chunky(ChunkyOptions.getDefaults());
@@ -0,0 +1,63 @@
+package chunkycl;
+
+import se.llbit.chunky.main.Chunky;
+
+import java.util.stream.IntStream;
+
+/**
+ * Content hashes used to detect which scene resources changed since they were uploaded to the GPU.
+ */
+public class ContentHash {
+    private static final long PRIME = 0x100000001B3L;
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private ContentHash() {}
+
+    /**
+     * Hash an int array. Large arrays are hashed in parallel chunks.
+     */
+    public static long hash(int[] data) {
+        int chunks = (data.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        long[] chunkHashes = new long[chunks];
+
+        if (chunks <= 1) {
+            if (chunks == 1) chunkHashes[0] = hashRange(data, 0, data.length);
+        } else {
+            Chunky.getCommonThreads().submit(() -> IntStream.range(0, chunks).parallel().forEach(i ->
+                    chunkHashes[i] = hashRange(data, i * CHUNK_SIZE, Math.min(data.length, (i + 1) * CHUNK_SIZE))
+            )).join();
+        }
+
+        long hash = data.length;
+        for (long chunkHash : chunkHashes) {
+            hash = combine(hash, chunkHash);
+        }
+        return hash;
+    }
+
+    /**
+     * Hash a float array by its bit patterns.
+     */
+    public static long hash(float[] data) {
+        long hash = data.length;
+        for (float value : data) {
+            hash = combine(hash, Float.floatToIntBits(value));
+        }
+        return hash;
+    }
+
+    /**
+     * Combine a hash with another value.
+     */
+    public static long combine(long hash, long value) {
+        return (hash ^ value) * PRIME;
+    }
+
+    private static long hashRange(int[] data, int start, int end) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ data[i]) * PRIME;
+        }
+        return hash;
+    }
+}
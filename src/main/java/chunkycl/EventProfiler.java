@@ -0,0 +1,267 @@
+package chunkycl;
+
+import static org.jocl.CL.*;
+
+import org.jocl.*;
+import se.llbit.log.Log;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Collects the OpenCL profiling times of the commands enqueued by a {@link GpuRayTracer}. Every enqueue is made
+ * through {@link #profile(Type, String, Consumer)}; completed events are collected into rolling statistics per
+ * command and per command type.
+ */
+public class EventProfiler {
+    public enum Type { KERNEL, WRITE, READ, FILL }
+
+    /** Number of events the statistics of every command are averaged over. */
+    private static final int WINDOW_EVENTS = 64;
+
+    /** Length of the window the device busy time is measured over, in nanoseconds. */
+    private static final long WINDOW_NS = 5_000_000_000L;
+
+    /** Events are collected once this many are pending, to bound the number of live events. */
+    private static final int MAX_PENDING = 1024;
+
+    // Profiling is enabled for all devices at once
+    private static volatile boolean enabled = Boolean.getBoolean("chunkycl.profile");
+    private final List<PendingEvent> pending = new ArrayList<>();
+    private final Map<String, CommandStats> commands = new LinkedHashMap<>();
+
+    // Device time span of recent commands, for the busy time of each type
+    private final ArrayDeque<long[]> recent = new ArrayDeque<>();
+    private long latestEnd = 0;
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        EventProfiler.enabled = enabled;
+    }
+
+    /**
+     * Enqueue a profiled command. The event passed to the enqueue is null if profiling is disabled. It is only
+     * tracked once the enqueue has returned, so the statistics never see an event without a native handle.
+     */
+    public void profile(Type type, String name, Consumer<cl_event> enqueue) {
+        if (!enabled) {
+            enqueue.accept(null);
+            return;
+        }
+
+        cl_event event = new cl_event();
+        enqueue.accept(event);
+        track(type, name, event);
+    }
+
+    private synchronized void track(Type type, String name, cl_event event) {
+        if (pending.size() >= MAX_PENDING) {
+            collect();
+        }
+        pending.add(new PendingEvent(type, name, event));
+    }
+
+    /**
+     * Record a completed event which is owned and released by the caller.
+     */
+    public synchronized void record(Type type, String name, cl_event event) {
+        if (enabled) {
+            add(type, name, event);
+        }
+    }
+
+    /**
+     * Collect the completed events into the statistics.
+     */
+    public synchronized void collect() {
+        int[] status = new int[1];
+        Iterator<PendingEvent> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            PendingEvent entry = iterator.next();
+
+            // An event which can not be queried is dropped, its status would read as complete
+            int result;
+            try {
+                result = clGetEventInfo(entry.event, CL_EVENT_COMMAND_EXECUTION_STATUS, Sizeof.cl_int,
+                        Pointer.to(status), null);
+            } catch (CLException e) {
+                result = e.getStatus();
+            }
+            if (result != CL_SUCCESS) {
+                Log.warn("Dropping a profiling event of " + entry.name + " which could not be queried.");
+                iterator.remove();
+                continue;
+            }
+
+            // Negative status is a failed command, which has no profiling information
+            if (status[0] == CL_COMPLETE) {
+                add(entry.type, entry.name, entry.event);
+            }
+            if (status[0] <= CL_COMPLETE) {
+                clReleaseEvent(entry.event);
+                iterator.remove();
+            }
+        }
+    }
+
+    private void add(Type type, String name, cl_event event) {
+        long[] time = new long[1];
+        clGetEventProfilingInfo(event, CL_PROFILING_COMMAND_QUEUED, Sizeof.cl_ulong, Pointer.to(time), null);
+        long queued = time[0];
+        clGetEventProfilingInfo(event, CL_PROFILING_COMMAND_SUBMIT, Sizeof.cl_ulong, Pointer.to(time), null);
+        long submit = time[0];
+        clGetEventProfilingInfo(event, CL_PROFILING_COMMAND_START, Sizeof.cl_ulong, Pointer.to(time), null);
+        long start = time[0];
+        clGetEventProfilingInfo(event, CL_PROFILING_COMMAND_END, Sizeof.cl_ulong, Pointer.to(time), null);
+        long end = time[0];
+
+        commands.computeIfAbsent(name, key -> new CommandStats(key, type)).add(queued, submit, start, end);
+
+        recent.add(new long[] {type.ordinal(), start, end});
+        latestEnd = Math.max(latestEnd, end);
+        while (!recent.isEmpty() && recent.peekFirst()[2] < latestEnd - WINDOW_NS) {
+            recent.removeFirst();
+        }
+    }
+
+    /**
+     * Get the statistics of every profiled command, in the order they were first seen.
+     */
+    public synchronized List<CommandStats> getCommandStats() {
+        collect();
+        List<CommandStats> stats = new ArrayList<>();
+        for (CommandStats command : commands.values()) {
+            stats.add(command.copy());
+        }
+        return stats;
+    }
+
+    /**
+     * Get the fraction of the last seconds of device time spent running commands of a type. A low total
+     * busy fraction while rendering means the render is host bound.
+     */
+    public synchronized double getBusyFraction(Type type) {
+        collect();
+        if (recent.isEmpty()) return 0;
+
+        long windowStart = Math.max(recent.peekFirst()[1], latestEnd - WINDOW_NS);
+        long busy = 0;
+        for (long[] command : recent) {
+            if (command[0] == type.ordinal()) {
+                busy += command[2] - Math.max(command[1], windowStart);
+            }
+        }
+        return latestEnd > windowStart ? (double) busy / (latestEnd - windowStart) : 0;
+    }
+
+    /**
+     * Get the total run time of the profiled commands of a type since the last reset, in nanoseconds.
+     */
+    public synchronized long getTotalRunTime(Type type) {
+        collect();
+        long total = 0;
+        for (CommandStats command : commands.values()) {
+            if (command.type == type) {
+                total += command.totalRunTime;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Clear the statistics.
+     */
+    public synchronized void reset() {
+        collect();
+        commands.clear();
+        recent.clear();
+        latestEnd = 0;
+    }
+
+    private static class PendingEvent {
+        final Type type;
+        final String name;
+        final cl_event event;
+
+        PendingEvent(Type type, String name, cl_event event) {
+            this.type = type;
+            this.name = name;
+            this.event = event;
+        }
+    }
+
+    /**
+     * Rolling statistics of a command. Times are averaged over the last {@value #WINDOW_EVENTS} events.
+     */
+    public static class CommandStats {
+        public final String name;
+        public final Type type;
+        private long count = 0;
+        private long totalRunTime = 0;
+        private final long[] queuedTimes = new long[WINDOW_EVENTS];
+        private final long[] submitTimes = new long[WINDOW_EVENTS];
+        private final long[] runTimes = new long[WINDOW_EVENTS];
+
+        private CommandStats(String name, Type type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        private void add(long queued, long submit, long start, long end) {
+            int index = (int) (count % WINDOW_EVENTS);
+            queuedTimes[index] = submit - queued;
+            submitTimes[index] = start - submit;
+            runTimes[index] = end - start;
+            totalRunTime += end - start;
+            count++;
+        }
+
+        private CommandStats copy() {
+            CommandStats copy = new CommandStats(name, type);
+            copy.count = count;
+            copy.totalRunTime = totalRunTime;
+            System.arraycopy(queuedTimes, 0, copy.queuedTimes, 0, WINDOW_EVENTS);
+            System.arraycopy(submitTimes, 0, copy.submitTimes, 0, WINDOW_EVENTS);
+            System.arraycopy(runTimes, 0, copy.runTimes, 0, WINDOW_EVENTS);
+            return copy;
+        }
+
+        /** Total number of profiled events. */
+        public long getCount() {
+            return count;
+        }
+
+        /** Total execution time of every profiled event, in nanoseconds. */
+        public long getTotalRunTime() {
+            return totalRunTime;
+        }
+
+        /** Mean time from enqueue to submission to the device, in nanoseconds. */
+        public double getQueuedTime() {
+            return mean(queuedTimes);
+        }
+
+        /** Mean time from submission to the start of execution, in nanoseconds. */
+        public double getSubmitTime() {
+            return mean(submitTimes);
+        }
+
+        /** Mean execution time, in nanoseconds. */
+        public double getRunTime() {
+            return mean(runTimes);
+        }
+
+        private double mean(long[] times) {
+            int n = (int) Math.min(count, WINDOW_EVENTS);
+            if (n == 0) return 0;
+            long sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += times[i];
+            }
+            return (double) sum / n;
+        }
+    }
+}
@@ -3,9 +3,7 @@ package chunkycl;
 import static java.lang.Math.PI;
 import static org.jocl.CL.*;
 
-import it.unimi.dsi.fastutil.floats.FloatArrayList;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
-import it.unimi.dsi.fastutil.ints.IntList;
 import org.apache.commons.math3.util.FastMath;
 import org.jocl.*;
 
@@ -13,107 +11,166 @@ import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.*;
+import java.util.stream.IntStream;
 
 import se.llbit.chunky.PersistentSettings;
 import se.llbit.chunky.block.Block;
 import se.llbit.chunky.chunk.BlockPalette;
 import se.llbit.chunky.entity.Entity;
+import se.llbit.chunky.main.Chunky;
+import se.llbit.chunky.renderer.postprocessing.*;
 import se.llbit.chunky.renderer.scene.*;
 import se.llbit.chunky.resources.Texture;
-import se.llbit.chunky.world.Material;
+import se.llbit.chunky.world.ChunkPosition;
 import se.llbit.log.Log;
 import se.llbit.math.*;
 import se.llbit.math.bvh.BVH;
 import se.llbit.math.bvh.BinaryBVH;
-import se.llbit.math.primitive.Primitive;
-import se.llbit.math.primitive.TexturedTriangle;
 import se.llbit.util.TaskTracker;
 
 public class GpuRayTracer {
-    private cl_mem octreeDepth = null;
+    private int octreeDepth = 0;
     private cl_mem octreeData = null;
-    private cl_mem voxelLength = null;
-    private cl_mem transparentArray = null;
-    private cl_mem transparentLength = null;
     private cl_mem blockTextures = null;
     private cl_mem blockData = null;
-    private cl_mem grassTextures = null;
-    private cl_mem foliageTextures = null;
-    private cl_mem sunIndex = null;
+    private cl_mem tintPages = null;
+    private cl_mem tintTiles = null;
+    private int sunIndex = 0;
     private cl_mem skyTexture = null;
     private cl_mem entityData = null;
     private cl_mem entityTrigs = null;
     private cl_mem bvhTextures = null;
 
+    // Pages of an octree which does not fit the device, or null if the entire octree is resident. Kernels are
+    // given a placeholder page table and feedback buffer for resident octrees
+    private OctreePages octreePages = null;
+    private final cl_mem octreePlaceholder;
+
+    // Compress the octree into a DAG on load, see OctreeDag
+    private final boolean octreeDag = Boolean.getBoolean("chunkycl.octreeDag");
+
+    // Nodes of the loaded octree and of its tree data on the device, which differ for a DAG
+    private int octreeNodes = 0;
+    private int deviceOctreeNodes = 0;
+
+    // Size of each staging slice used to stream the octree to the device
+    static final int OCTREE_SLICE_BYTES = 8 << 20;
+
+    // Reset count of the last scene Chunky loaded, the octree is only replaced when a scene is loaded
+    private static volatile int sceneLoad = 0;
+
+    // Keys of the resources in GPU memory, used to skip uploading unchanged resources. The octree is keyed on its
+    // identity and the scene load, hashing its content would read the entire octree. The other resources are
+    // small and keyed on their content.
+    private long octreeKey = 0;
+    private long tintHash = 0;
+    private long textureHash = 0;
+    private long blockDataHash = 0;
+    private long entityHash = 0;
+    private long skyHash = 0;
+
+    // Texture index of every palette entry in the uploaded block textures
+    private int[] paletteTextureIndexes = new int[0];
+
     private int skyTextureResolution = 128;
     private final float[] skyImage = new float[skyTextureResolution * skyTextureResolution * 4];
 
+    /** Memory limits of the device. */
+    public final MemoryBudget budget;
+
+    // Layout of the scene data arrays and the length in ints of every uploaded array
+    private MemoryBudget.Layout layout;
+    private final Map<String, Long> dataLengths = new LinkedHashMap<>();
+
     private cl_program program;
-    private cl_kernel pathTracerKernel;
+    private String baseBuildOptions;
+    private String buildOptions;
     private cl_kernel previewKernel;
+    private cl_kernel mergeKernel;
+    private cl_kernel mergeAdaptiveKernel;
+    private cl_kernel errorMapKernel;
+    private cl_kernel postProcessKernel;
+    private cl_kernel octreeStatsKernel;
+    private cl_kernel wavefrontGenerateKernel;
+    private cl_kernel wavefrontAccumulateKernel;
+
+    // Duration of every stage of the last load in milliseconds
+    private final Map<String, Double> loadTimes = new LinkedHashMap<>();
+
+    // Path tracing programs specialized for a render configuration, see getVariant
+    private static final int MAX_VARIANTS = 4;
+    private final Map<String, ProgramVariant> variants = new LinkedHashMap<String, ProgramVariant>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ProgramVariant> eldest) {
+            if (size() > MAX_VARIANTS) {
+                eldest.getValue().release();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /** Number of scene arguments at the start of every tracing kernel, see SCENE_ARGUMENTS in the kernel. */
+    private static final int SCENE_ARGUMENTS = 13;
+
+    // Persistent preview buffers, reallocated when the canvas size changes. The ray directions are only
+    // allocated for cameras which are not generated on the device.
+    private cl_mem previewCamera = null;
+    private cl_mem previewRayDirs = null;
+    private cl_mem previewRes = null;
+    private int previewLength = 0;
 
     private cl_context context;
     private cl_command_queue commandQueue;
 
+    /** Profiling times of the commands enqueued on this device. */
+    public final EventProfiler profiler = new EventProfiler();
+
     public final int[] version;
     public final cl_device_id[] devices;
 
-    private final String[] grassBlocks = new String[]{"minecraft:grass_block", "minecraft:grass",
+    private static final String[] grassBlocks = new String[]{"minecraft:grass_block", "minecraft:grass",
             "minecraft:tall_grass", "minecraft:fern", "minecraft:sugarcane"};
-    private final String[] foliageBlocks = new String[]{"minecraft:oak_leaves", "minecraft:dark_oak_leaves",
+    private static final String[] foliageBlocks = new String[]{"minecraft:oak_leaves", "minecraft:dark_oak_leaves",
             "minecraft:jungle_leaves", "minecraft:acacia_leaves", "minecraft_vines"};
 
-    private final String[] constantTintNames = new String[]{"minecraft:birch_leaves", "minecraft:spruce_leaves",
+    private static final String[] constantTintNames = new String[]{"minecraft:birch_leaves", "minecraft:spruce_leaves",
             "minecraft:lily_pad"};
-    private final int[] constantTintColors = new int[]{0xFF80A755, 0xFF619961, 0xFF208030};
-
-    private static String programSource;
+    private static final int[] constantTintColors = new int[]{0xFF80A755, 0xFF619961, 0xFF208030};
 
-    private static GpuRayTracer tracer = null;
+    // Post processing filter ids, must match the FILTER_ definitions in the kernel
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_GAMMA = 1;
+    private static final int FILTER_TONEMAP1 = 2;
+    private static final int FILTER_ACES = 3;
+    private static final int FILTER_HABLE = 4;
 
-    @SuppressWarnings("deprecation")
-    private GpuRayTracer() {
-        // The platform, device type and device number
-        final long deviceType = CL_DEVICE_TYPE_ALL;
-        final int deviceIndex = PersistentSettings.settings.getInt("clDevice", 0);
-
-        // Enable exceptions
-        CL.setExceptionsEnabled(true);
+    /** Number of frames which can be read back at once, see {@link #enqueueFrame}. */
+    private static final int FRAME_SLOTS = 2;
 
-        // Obtain the number of platforms
-        int[] numPlatformsArray = new int[1];
-        clGetPlatformIDs(0, null, numPlatformsArray);
-        int numPlatforms = numPlatformsArray[0];
+    // Block data flags, must match the BLOCK_ definitions in the kernel
+    private static final int BLOCK_TINT_GRASS = 1;
+    private static final int BLOCK_TINT_FOLIAGE = 2;
+    private static final int BLOCK_INVISIBLE = 4;
 
-        // Obtain all platform IDs
-        cl_platform_id[] platforms = new cl_platform_id[numPlatforms];
-        clGetPlatformIDs(platforms.length, platforms, null);
-
-        // Get list of all devices
-        ArrayList<cl_device_id> devices = new ArrayList<>();
+    private static String programSource;
 
-        for (cl_platform_id platform : platforms) {
-            // Obtain the number of devices for the platform
-            int[] numDevicesArray = new int[1];
-            clGetDeviceIDs(platform, deviceType, 0, null, numDevicesArray);
-            int numDevices = numDevicesArray[0];
+    private static cl_device_id[] allDevices = null;
+    private static final Map<Integer, GpuRayTracer> tracers = new HashMap<>();
 
-            // Obtain a device ID
-            cl_device_id[] platformDevices = new cl_device_id[numDevices];
-            clGetDeviceIDs(platform, deviceType, numDevices, platformDevices, null);
-            devices.addAll(Arrays.asList(platformDevices));
-        }
+    /** Index of the device this tracer renders on. */
+    public final int deviceIndex;
 
-        // Print out all connected devices
-        this.devices = devices.toArray(new cl_device_id[0]);
-        System.out.println("OpenCL Devices:");
-        for (int i = 0; i < devices.size(); i++) {
-            System.out.println("  [" + i  + "] " + getString(devices.get(i), CL_DEVICE_NAME));
-        }
+    @SuppressWarnings("deprecation")
+    private GpuRayTracer(cl_device_id[] devices, int deviceIndex) {
+        this.devices = devices;
+        this.deviceIndex = deviceIndex;
 
         // Print out selected device
-        cl_device_id device = devices.get(deviceIndex);
+        cl_device_id device = devices[deviceIndex];
         System.out.println("\nUsing: " + getString(device, CL_DEVICE_NAME));
 
         // Initialize the context properties
@@ -123,8 +180,9 @@ public class GpuRayTracer {
         context = clCreateContext( contextProperties, 1, new cl_device_id[]{device},
                 null, null, null);
 
-        // Create a command-queue for the selected device
+        // Create a command-queue for the selected device, with profiling for the EventProfiler
         cl_queue_properties properties = new cl_queue_properties();
+        properties.addProperty(CL_QUEUE_PROPERTIES, CL_QUEUE_PROFILING_ENABLE);
 
         // Get OpenCL version
         this.version = new int[2];
@@ -139,7 +197,7 @@ public class GpuRayTracer {
                     context, device, properties, null);
         } else {
             commandQueue = clCreateCommandQueue(
-                    context, device, 0, null);
+                    context, device, CL_QUEUE_PROFILING_ENABLE, null);
         }
 
         // Check if version is behind
@@ -148,11 +206,17 @@ public class GpuRayTracer {
         }
 
         // Build the program
-        program = KernelLoader.loadProgram(context, new cl_device_id[] { device });
+        // Octree traversal mode, the stack traversal re-descends from the common ancestor of consecutive leaves
+        String options = "";
+        if (Boolean.getBoolean("chunkycl.octreeStack")) {
+            options += " -D OCTREE_STACK";
+        }
+        baseBuildOptions = options.trim();
 
-        // Create the kernel
-        pathTracerKernel = clCreateKernel(program, "rayTracer", null);
-        previewKernel = clCreateKernel(program, "previewTracer", null);
+        // The scene data layout is planned again on every load, see MemoryBudget
+        budget = new MemoryBudget(device);
+        layout = budget.getDefaultLayout();
+        buildProgram();
 
         // Preallocate sky texture
         cl_image_format format = new cl_image_format();
@@ -166,370 +230,849 @@ public class GpuRayTracer {
 
         skyTexture = clCreateImage(context, CL_MEM_READ_ONLY,
                 format, desc, null, null);
+        octreePlaceholder = clCreateBuffer(context, CL_MEM_READ_WRITE, Sizeof.cl_int, null, null);
     }
 
-    public static GpuRayTracer getTracer() {
-        if (tracer == null) {
-            synchronized (GpuRayTracer.class) {
-                if (tracer == null) {
-                    tracer = new GpuRayTracer();
-                }
+    /**
+     * Build the program for the current data layout. Path tracing variants built for the previous layout are
+     * released and built again by getVariant.
+     */
+    private void buildProgram() {
+        if (program != null) {
+            for (cl_kernel kernel : new cl_kernel[] {previewKernel, mergeKernel, mergeAdaptiveKernel, errorMapKernel,
+                    postProcessKernel, octreeStatsKernel, wavefrontGenerateKernel, wavefrontAccumulateKernel}) {
+                clReleaseKernel(kernel);
             }
+            clReleaseProgram(program);
         }
-        return tracer;
+        for (ProgramVariant variant : variants.values()) {
+            variant.release();
+        }
+        variants.clear();
+
+        buildOptions = (baseBuildOptions + " " + layout.getBuildOptions()).trim();
+        program = KernelLoader.loadProgram(context, new cl_device_id[] { devices[deviceIndex] }, buildOptions);
+
+        // Create the kernel. The path tracing kernels are created per render configuration by getVariant
+        previewKernel = clCreateKernel(program, "previewTracer", null);
+        mergeKernel = clCreateKernel(program, "mergeSamples", null);
+        mergeAdaptiveKernel = clCreateKernel(program, "mergeAdaptive", null);
+        errorMapKernel = clCreateKernel(program, "errorMap", null);
+        postProcessKernel = clCreateKernel(program, "postProcess", null);
+        octreeStatsKernel = clCreateKernel(program, "octreeStats", null);
+        wavefrontGenerateKernel = clCreateKernel(program, "wavefrontGenerate", null);
+        wavefrontAccumulateKernel = clCreateKernel(program, "wavefrontAccumulate", null);
     }
 
-    @SuppressWarnings("unchecked")
-    public void load(Scene scene, TaskTracker.Task renderTask) {
-        Octree octree;
-        int[] treeData;
+    /**
+     * Get the tracer of the primary device, which holds the sample buffer during a render.
+     */
+    public static GpuRayTracer getTracer() {
+        return getTracers().get(0);
+    }
 
-        // Free opencl memory if applicable
-        if (this.octreeData != null) {
-            clReleaseMemObject(this.octreeData);
-            clReleaseMemObject(this.voxelLength);
-            clReleaseMemObject(this.transparentArray);
-            clReleaseMemObject(this.transparentLength);
-            clReleaseMemObject(this.blockTextures);
-            clReleaseMemObject(this.blockData);
-            clReleaseMemObject(this.grassTextures);
-            clReleaseMemObject(this.foliageTextures);
-            clReleaseMemObject(this.sunIndex);
-            clReleaseMemObject(this.entityData);
-            clReleaseMemObject(this.entityTrigs);
-            clReleaseMemObject(this.bvhTextures);
+    /**
+     * Get a tracer for every selected device. The first tracer is the primary device.
+     */
+    public static List<GpuRayTracer> getTracers() {
+        synchronized (GpuRayTracer.class) {
+            cl_device_id[] devices = getDevices();
+            List<GpuRayTracer> selected = new ArrayList<>();
+            for (int index : getSelectedDevices()) {
+                if (index < 0 || index >= devices.length) continue;
+                selected.add(tracers.computeIfAbsent(index, i -> new GpuRayTracer(devices, i)));
+            }
+            if (selected.isEmpty()) {
+                selected.add(tracers.computeIfAbsent(0, i -> new GpuRayTracer(devices, i)));
+            }
+            return selected;
         }
+    }
 
-        renderTask.update("Loading Octree into GPU", 4, 0);
+    /**
+     * Get the tracers which have been created, without creating any.
+     */
+    public static List<GpuRayTracer> getCreatedTracers() {
+        synchronized (GpuRayTracer.class) {
+            return new ArrayList<>(new TreeMap<>(tracers).values());
+        }
+    }
 
-        // Obtain octree through reflection
+    /**
+     * Get the indexes of the selected devices. Stored as a comma separated list in the clDevices setting,
+     * falling back to the single clDevice setting.
+     */
+    public static int[] getSelectedDevices() {
+        String selected = PersistentSettings.settings.getString("clDevices", "");
+        if (selected.isEmpty()) {
+            return new int[] { PersistentSettings.settings.getInt("clDevice", 0) };
+        }
         try {
-            Field worldOctree = scene.getClass().getDeclaredField("worldOctree");
-            worldOctree.setAccessible(true);
-            octree = (Octree) worldOctree.get(scene);
+            return Arrays.stream(selected.split(",")).map(String::trim).filter(index -> !index.isEmpty())
+                    .mapToInt(Integer::parseInt).distinct().toArray();
+        } catch (NumberFormatException e) {
+            Log.warn("Invalid clDevices setting: " + selected, e);
+            return new int[] { PersistentSettings.settings.getInt("clDevice", 0) };
+        }
+    }
+
+    /**
+     * Get all OpenCL devices on all platforms.
+     */
+    public static cl_device_id[] getDevices() {
+        synchronized (GpuRayTracer.class) {
+            if (allDevices != null) return allDevices;
+
+            // The platform, device type and device number
+            final long deviceType = CL_DEVICE_TYPE_ALL;
+
+            // Enable exceptions
+            CL.setExceptionsEnabled(true);
+
+            // Obtain the number of platforms
+            int[] numPlatformsArray = new int[1];
+            clGetPlatformIDs(0, null, numPlatformsArray);
+            int numPlatforms = numPlatformsArray[0];
+
+            // Obtain all platform IDs
+            cl_platform_id[] platforms = new cl_platform_id[numPlatforms];
+            clGetPlatformIDs(platforms.length, platforms, null);
+
+            // Get list of all devices
+            ArrayList<cl_device_id> devices = new ArrayList<>();
+
+            for (cl_platform_id platform : platforms) {
+                // Obtain the number of devices for the platform
+                int[] numDevicesArray = new int[1];
+                clGetDeviceIDs(platform, deviceType, 0, null, numDevicesArray);
+                int numDevices = numDevicesArray[0];
+
+                // Obtain a device ID
+                cl_device_id[] platformDevices = new cl_device_id[numDevices];
+                clGetDeviceIDs(platform, deviceType, numDevices, platformDevices, null);
+                devices.addAll(Arrays.asList(platformDevices));
+            }
 
-            Field worldOctreeImplementation = octree.getClass().getDeclaredField("implementation");
-            worldOctreeImplementation.setAccessible(true);
-            PackedOctree packedWorldOctree = (PackedOctree) worldOctreeImplementation.get(octree);
+            // Print out all connected devices
+            System.out.println("OpenCL Devices:");
+            for (int i = 0; i < devices.size(); i++) {
+                System.out.println("  [" + i  + "] " + getString(devices.get(i), CL_DEVICE_NAME));
+            }
 
-            Field worldOctreeTreeData = packedWorldOctree.getClass().getDeclaredField("treeData");
-            worldOctreeTreeData.setAccessible(true);
-            treeData = (int[]) worldOctreeTreeData.get(packedWorldOctree);
-        } catch (NoSuchFieldException | IllegalAccessException e) {
-            e.printStackTrace();
-            return;
+            allDevices = devices.toArray(new cl_device_id[0]);
+            return allDevices;
         }
+    }
 
-        // Load bounds into memory
-        this.octreeDepth = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_int, Pointer.to(new int[] {octree.getDepth()}), null);
-
-        // Load octree into texture memory for performance reasons
-        // Octree data taken from packed octree is turned into a 8192 x (x) image
-        // Data is loaded into the rgba channels to maximize efficiency
-        cl_image_format format = new cl_image_format();
-        format.image_channel_data_type = CL_SIGNED_INT32;
-        format.image_channel_order = CL_RGBA;
+    /**
+     * Load the scene into GPU memory. Every resource is tracked by a content hash and only resources which
+     * changed since the last load are uploaded again.
+     *
+     * @throws IllegalStateException if the scene does not fit the memory of the device
+     */
+    public void load(Scene scene, TaskTracker.Task renderTask) {
+        loadTimes.clear();
+        SceneData data = prepare(scene, renderTask, false);
+        if (data == null) return;
+        long stageStart = System.nanoTime();
+
+        // Choose a data layout which fits the device before allocating anything
+        MemoryBudget.Plan plan = budget.plan(data.lengths, getRenderBuffers(scene));
+        if (!plan.fits()) {
+            throw new IllegalStateException("The scene does not fit on " + getDeviceName() + ". " + plan.problem);
+        }
+        if (!plan.layout.equals(layout)) {
+            Log.info("Storing the scene on " + getDeviceName() + " in " + plan.layout + ".");
+            layout = plan.layout;
+            buildProgram();
+
+            // Data arrays which are up to date are stored in the old layout, so every array is uploaded again
+            if (!data.isComplete()) {
+                data = prepare(scene, renderTask, true);
+                if (data == null) return;
+            }
+        }
 
-        int[] treeDataCopy = new int[(treeData.length/8192 + 1) * 8192];
-        System.arraycopy(treeData, 0, treeDataCopy, 0, treeData.length);
+        stageStart = recordLoadTime("layout", stageStart);
+        upload(data);
+        dataLengths.clear();
+        dataLengths.putAll(data.lengths);
+        recordLoadTime("upload", stageStart);
+
+        // Bind the scene to the tracing kernels
+        bindSceneArguments(previewKernel);
+        bindSceneArguments(octreeStatsKernel);
+        for (ProgramVariant variant : variants.values()) {
+            variant.bindScene();
+        }
 
-        cl_image_desc desc = new cl_image_desc();
-        desc.image_type = CL_MEM_OBJECT_IMAGE2D;
-        desc.image_width = Math.min(treeData.length/4, 8192);
-        desc.image_height = treeData.length / 8192 / 4 + 1;
+        Log.info(String.format("Scene data on %s: %s and %s of render buffers of %s device memory.",
+                getDeviceName(), MemoryBudget.formatBytes(plan.totalBytes),
+                MemoryBudget.formatBytes(plan.totalRenderBytes), MemoryBudget.formatBytes(budget.globalMemory)));
+        renderTask.update("Loading GPU", 5, 5);
+    }
 
-        this.octreeData = clCreateImage(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                format, desc, Pointer.to(treeDataCopy), null);
+    /**
+     * Record that Chunky loaded a scene, so the next load uploads its octree. Every renderer reports the same
+     * reset, which only changes the octree key once.
+     *
+     * @param resetCount Reset count of the scene load, passed to the renderers by sceneReset
+     */
+    public static void sceneLoaded(int resetCount) {
+        sceneLoad = resetCount;
+    }
 
-        this.voxelLength = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_int, Pointer.to(new int[] {treeData.length}), null);
+    /**
+     * Plan the data layout of a scene without uploading it, to check if the scene fits the device.
+     *
+     * @return The plan, or null if the scene could not be read
+     */
+    public MemoryBudget.Plan planScene(Scene scene) {
+        SceneData data = prepare(scene, TaskTracker.Task.NONE, true);
+        return data == null ? null : budget.plan(data.lengths, getRenderBuffers(scene));
+    }
 
-        renderTask.update("Loading blocks into GPU", 4, 1);
+    private Map<String, Long> getRenderBuffers(Scene scene) {
+        return MemoryBudget.getRenderBuffers((long) scene.canvasWidth() * scene.canvasHeight(), skyTextureResolution);
+    }
 
-        // Create transparent block table
-        List<Integer> transparentList = new LinkedList<>();
+    /**
+     * Build the host data of the resources which changed since the last load.
+     *
+     * @param all Build every resource, even if it is up to date on the device
+     * @return The host data, or null if the scene could not be read
+     */
+    @SuppressWarnings("unchecked")
+    private SceneData prepare(Scene scene, TaskTracker.Task renderTask, boolean all) {
+        Octree octree;
+        int[] treeData;
         List<Block> blockPalette;
-        BlockPalette palette = scene.getPalette();
+        SceneData data = new SceneData(dataLengths);
+        long stageStart = System.nanoTime();
+
+        // Obtain octree through reflection
+        try {
+            Field worldOctree = scene.getClass().getDeclaredField("worldOctree");
+            worldOctree.setAccessible(true);
+            octree = (Octree) worldOctree.get(scene);
+            treeData = getTreeData(octree);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            e.printStackTrace();
+            return null;
+        }
 
         // Get block palette through reflection
+        BlockPalette palette = scene.getPalette();
         try {
             Field blockPaletteList = palette.getClass().getDeclaredField("palette");
             blockPaletteList.setAccessible(true);
             blockPalette = (List<Block>) blockPaletteList.get(palette);
         } catch (NoSuchFieldException | IllegalAccessException e) {
             e.printStackTrace();
-            return;
+            return null;
         }
 
-        // Build transparent block list
-        for (int i = 0; i < blockPalette.size(); i++) {
-            if (palette.get(i).invisible)
-                transparentList.add(i);
+        stageStart = recordLoadTime("reflection", stageStart);
+        renderTask.update("Loading Octree into GPU", 5, 0);
+
+        long hash = ContentHash.combine(ContentHash.combine(System.identityHashCode(octree), sceneLoad),
+                octree.getDepth());
+        if (all || octreeData == null || hash != octreeKey) {
+            data.octree = octree;
+            data.octreeNodes = treeData.length;
+            data.treeData = octreeDag ? compressOctree(treeData) : treeData;
+            data.lengths.put(MemoryBudget.OCTREE, (long) data.treeData.length);
         }
+        data.octreeKey = hash;
 
-        // Convert transparent block list into array
-        int[] transparent = new int[transparentList.size()];
-        for (int i = 0; i < transparent.length; i++) {
-            transparent[i] = transparentList.remove(0);
+        stageStart = recordLoadTime("octree", stageStart);
+        renderTask.update("Loading biome tints into GPU", 5, 1);
+
+        // Biome tints are loaded with the chunks so they change with the octree
+        if (all || tintPages == null || data.octreeKey != tintHash) {
+            data.tintPages = buildTintPages(scene, octree.getDepth(), getChunks(scene));
+            data.tintTiles = buildTintTiles(scene, octree.getDepth(), data.tintPages);
+            data.lengths.put("tintPages", (long) data.tintPages.length);
+            data.lengths.put("tintTiles", (long) data.tintTiles.length);
         }
 
-        // Load transparent block list onto gpu as array.
-        // Size is relatively small so there is no need to load it as a texture
-        this.transparentArray = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                (long) Sizeof.cl_int * transparent.length,
-                Pointer.to(transparent), null);
+        stageStart = recordLoadTime("tints", stageStart);
+        renderTask.update("Loading Block Textures into GPU", 5, 2);
+
+        hash = blockPalette.size();
+        for (Block block : blockPalette) {
+            hash = ContentHash.combine(hash, block.name.hashCode());
+            hash = ContentHash.combine(hash, ContentHash.hash(block.getTexture(0).getBitmap().data));
+        }
+        if (all || blockTextures == null || hash != textureHash) {
+            data.atlas = buildTextureAtlas(blockPalette);
+            data.lengths.put("textures", (long) data.atlas.data.length);
+        }
+        data.textureHash = hash;
 
-        this.transparentLength = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, Sizeof.cl_int,
-                Pointer.to(new int[] {transparent.length}), null);
+        stageStart = recordLoadTime("textures", stageStart);
+        renderTask.update("Loading blocks into GPU", 5, 3);
 
-        renderTask.update("Loading Block Textures into GPU", 4, 2);
+        // Material changes only need the block data table
+        int[] blockIndexesArray = buildBlockData(scene, blockPalette,
+                data.atlas != null ? data.atlas.paletteIndexes : paletteTextureIndexes);
+        hash = ContentHash.hash(blockIndexesArray);
+        if (all || blockData == null || hash != blockDataHash) {
+            data.blockData = blockIndexesArray;
+        }
+        data.blockDataHash = hash;
 
-        // Load biome and foliage tinting
-        // Fetch the textures with reflection
-        int bounds = 1 << octree.getDepth();
+        stageStart = recordLoadTime("blockData", stageStart);
+        renderTask.update("Loading BVH", 5, 4);
 
-        int[] grassTexture = new int[bounds * bounds * 4];
-        for (int i = 0; i < bounds*2; i++) {
-            for (int j = 0; j < bounds*2; j++) {
-                float[] color = scene.getGrassColor(j-bounds, i-bounds);
-                grassTexture[i*bounds*2 + j] = (int)(256*color[0]) << 16 | (int)(256*color[1]) << 8 | (int)(256*color[2]);
-            }
+        ArrayList<Entity> entities = new ArrayList<>(scene.getEntities());
+        entities.addAll(scene.getActors());
+        hash = ContentHash.combine(entities.size(), scene.getOrigin().hashCode());
+        for (Entity entity : entities) {
+            hash = ContentHash.combine(hash, entity.toJson().toString().hashCode());
         }
+        if (all || entityData == null || hash != entityHash) {
+            packEntities(scene, entities, renderTask, data);
+            data.lengths.put("entityNodes", (long) data.entityNodes.length);
+            data.lengths.put("entityTriangles", (long) data.entityTrigs.length);
+            data.lengths.put("entityTextures", (long) data.entityTextures.length);
+        }
+        data.entityHash = hash;
+        recordLoadTime("entities", stageStart);
 
-        int[] foliageTexture = new int[bounds * bounds * 4];
-        for (int i = 0; i < bounds*2; i++) {
-            for (int j = 0; j < bounds*2; j++) {
-                float[] color = scene.getFoliageColor(j-bounds, i-bounds);
-                foliageTexture[i*bounds*2 + j] = (int)(256*color[0]) << 16 | (int)(256*color[1]) << 8 | (int)(256*color[2]);
-            }
+        return data;
+    }
+
+    /**
+     * Upload the host data of a scene in the current layout.
+     */
+    private void upload(SceneData data) {
+        if (data.treeData != null) {
+            loadOctree(data.octree, data.treeData);
+            octreeKey = data.octreeKey;
+            octreeNodes = data.octreeNodes;
+            deviceOctreeNodes = data.treeData.length;
+        }
+        if (data.tintPages != null) {
+            loadTints(data.tintPages, data.tintTiles);
+            tintHash = data.octreeKey;
         }
+        if (data.atlas != null) {
+            loadTextures(data.atlas);
+            textureHash = data.textureHash;
+        }
+        if (data.blockData != null) {
+            loadBlockData(data.blockData);
+            blockDataHash = data.blockDataHash;
+        }
+        if (data.entityNodes != null) {
+            loadEntities(data);
+            entityHash = data.entityHash;
+        }
+    }
 
-        format.image_channel_data_type = CL_UNSIGNED_INT32;
-        format.image_channel_order = CL_RGBA;
-        desc.image_type = CL_MEM_OBJECT_IMAGE2D;
-        desc.image_width = bounds / 2;
-        desc.image_height = bounds * 2L;
+    /** Host data of a scene load. Resources which are up to date on the device are null. */
+    private static class SceneData {
+        /** Length in ints of every data array, including the ones which are up to date. */
+        final Map<String, Long> lengths;
 
-        this.grassTextures = clCreateImage(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, format, desc,
-                Pointer.to(grassTexture), null);
-        this.foliageTextures = clCreateImage(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, format, desc,
-                Pointer.to(foliageTexture), null);
+        Octree octree;
+        int[] treeData;
+        int octreeNodes;
+        long octreeKey;
+        int[] tintPages;
+        int[] tintTiles;
+        TextureAtlas atlas;
+        long textureHash;
+        int[] blockData;
+        long blockDataHash;
+        int[] entityNodes;
+        float[] entityTrigs;
+        int[] entityTextures;
+        long entityHash;
+
+        SceneData(Map<String, Long> lengths) {
+            this.lengths = new LinkedHashMap<>(lengths);
+        }
 
-        // Load all block textures into GPU texture memory
-        // Load block texture data directly into an array which is dynamically sized for non-full blocks
-        Texture stoneTexture = blockPalette.get(palette.stoneId).getTexture(0);
-        int[] blockTexturesArray = new int[stoneTexture.getBitmap().data.length * blockPalette.size()];
-        int[] blockIndexesArray = new int[blockPalette.size() * 4];
-        int index = 0;
-        for (int i = 0; i < blockPalette.size(); i++) {
-            Block block = blockPalette.get(i);
-            Texture texture = block.getTexture(0);
-            int[] textureData = texture.getBitmap().data;
-
-            // Resize array if necessary
-            if (index + textureData.length > blockTexturesArray.length) {
-                int[] tempCopyArray = new int[blockTexturesArray.length];
-                System.arraycopy(blockTexturesArray, 0, tempCopyArray, 0, blockTexturesArray.length);
-                blockTexturesArray = new int[blockTexturesArray.length + 4*textureData.length];
-                System.arraycopy(tempCopyArray, 0, blockTexturesArray, 0, tempCopyArray.length);
-            }
-
-            // Add block texture data
-            blockIndexesArray[i * 4] = index;
-
-            // Check if block is tinted
-            String blockName = blockPalette.get(i).name;
-            if (Arrays.asList(constantTintNames).contains(blockName)) {
-                int tintIndex = 0;
-                for (int j = 0; j < constantTintNames.length; j++) {
-                    if (constantTintNames[j].equals(blockName)) {
-                        tintIndex = j;
-                        break;
-                    }
-                }
-                int tintColor = constantTintColors[tintIndex];
+        /** Check if every data array is included. */
+        boolean isComplete() {
+            return treeData != null && tintPages != null && atlas != null && entityNodes != null;
+        }
+    }
+
+    private long recordLoadTime(String stage, long start) {
+        long now = System.nanoTime();
+        loadTimes.put(stage, (now - start) / 1e6);
+        return now;
+    }
+
+    /**
+     * Get the duration of every stage of the last load in milliseconds. Stages which were up to date only include
+     * the time to check their content hash.
+     */
+    public Map<String, Double> getLoadTimes() {
+        return new LinkedHashMap<>(loadTimes);
+    }
+
+    /**
+     * Compress the octree into a DAG, keeping the octree if it can not be compressed.
+     */
+    private static int[] compressOctree(int[] treeData) {
+        long start = System.nanoTime();
+        int[] dag = OctreeDag.compress(treeData);
+        if (dag == null) {
+            Log.warn("The octree can not be compressed, its children are not stored in groups of 8.");
+            return treeData;
+        }
+        Log.infof("Octree DAG: %d of %d nodes (%.1fx smaller) in %.0f ms", dag.length, treeData.length,
+                (double) treeData.length / dag.length, (System.nanoTime() - start) / 1e6);
+        return dag;
+    }
 
-                // TODO: Simplify this with existing function?
-                double tR = FastMath.pow((0xFF & (tintColor >>> 16)) / 256.0, Scene.DEFAULT_GAMMA);
-                double tG = FastMath.pow((0xFF & (tintColor >>> 8)) / 256.0, Scene.DEFAULT_GAMMA);
-                double tB = FastMath.pow((0xFF & tintColor) / 256.0, Scene.DEFAULT_GAMMA);
+    /** Get the number of nodes of the loaded octree. */
+    public int getOctreeNodes() {
+        return octreeNodes;
+    }
 
-                // Multiply the texture by the tint
-                for (int j = 0; j < textureData.length; j++) {
-                    int blockColor = textureData[j];
+    /** Get the number of nodes of the octree on the device, fewer than the octree has if it is a DAG. */
+    public int getDeviceOctreeNodes() {
+        return deviceOctreeNodes;
+    }
 
-                    int bA = 0xFF & (blockColor >>> 24);
-                    int bR = 0xFF & (blockColor >>> 16);
-                    int bG = 0xFF & (blockColor >>> 8);
-                    int bB = 0xFF & blockColor;
+    /**
+     * Get the tree data of a packed octree through reflection.
+     */
+    static int[] getTreeData(Octree octree) throws NoSuchFieldException, IllegalAccessException {
+        Field worldOctreeImplementation = octree.getClass().getDeclaredField("implementation");
+        worldOctreeImplementation.setAccessible(true);
+        PackedOctree packedWorldOctree = (PackedOctree) worldOctreeImplementation.get(octree);
+
+        Field worldOctreeTreeData = packedWorldOctree.getClass().getDeclaredField("treeData");
+        worldOctreeTreeData.setAccessible(true);
+        return (int[]) worldOctreeTreeData.get(packedWorldOctree);
+    }
 
-                    bR *= tR;
-                    bG *= tG;
-                    bB *= tB;
+    private void loadOctree(Octree octree, int[] treeData) {
+        if (octreeData != null) clReleaseMemObject(octreeData);
+        if (octreePages != null) {
+            octreePages.release();
+            octreePages = null;
+        }
 
-                    bR = (int) (FastMath.pow(bR / 256.0, 1/Scene.DEFAULT_GAMMA) * 256);
-                    bG = (int) (FastMath.pow(bG / 256.0, 1/Scene.DEFAULT_GAMMA) * 256);
-                    bB = (int) (FastMath.pow(bB / 256.0, 1/Scene.DEFAULT_GAMMA) * 256);
+        // Octree bounds
+        this.octreeDepth = octree.getDepth();
 
-                    int color = bA << 24 | (int)(bR * tR) << 16 | (int)(bG * tG) << 8 | (int)(bB * tB);
-                    blockTexturesArray[index + j] = color;
-                }
-            } else {
-                System.arraycopy(textureData, 0, blockTexturesArray, index, textureData.length);
+        // Only part of a paged octree is resident, the pages are loaded as the kernels request them
+        if (layout.isOctreePaged()) {
+            this.octreeData = createDataArray(null, (long) layout.octreePages * MemoryBudget.OCTREE_PAGE_INTS,
+                    CL_SIGNED_INT32);
+            this.octreePages = new OctreePages(treeData, layout.octreePages);
+            return;
+        }
+
+        // Octree data taken from the packed octree is stored as a data array, see createDataArray
+        this.octreeData = createDataArray(null, treeData.length, CL_SIGNED_INT32);
+
+        // Stream the octree to the device in slices of rows. Two direct staging buffers are alternated so one
+        // slice can be filled while the previous one is being transferred. Buffers are streamed as rows of one int.
+        long length = layout.getPaddedLength(treeData.length);
+        long width = layout.getWidth(treeData.length);
+        int rowInts = layout.isBuffers() ? 1 : (int) width * 4;
+        int sliceRows = Math.max(1, OCTREE_SLICE_BYTES / (rowInts * Sizeof.cl_int));
+        long height = length / rowInts;
+        ByteBuffer[] staging = new ByteBuffer[2];
+        cl_event[] pending = new cl_event[2];
+
+        for (int row = 0, slice = 0; row < height; row += sliceRows, slice ^= 1) {
+            int rows = (int) Math.min(sliceRows, height - row);
+
+            // Wait for the last transfer from this staging buffer to finish before overwriting it
+            if (pending[slice] != null) {
+                clWaitForEvents(1, new cl_event[] {pending[slice]});
+                profiler.record(EventProfiler.Type.WRITE, "write octreeData", pending[slice]);
+                clReleaseEvent(pending[slice]);
+            }
+            if (staging[slice] == null) {
+                staging[slice] = ByteBuffer.allocateDirect(sliceRows * rowInts * Sizeof.cl_int)
+                        .order(ByteOrder.nativeOrder());
             }
-            index += textureData.length;
 
-            // Include block information in auxiliary array
-            blockIndexesArray[i*4 + 1] = (int) (block.emittance * scene.getEmitterIntensity() * 256);
-            blockIndexesArray[i*4 + 2] = (int) (block.specular * 256);
+            ByteBuffer buffer = staging[slice];
+            fillOctreeSlice(buffer, treeData, row * rowInts, rows * rowInts);
 
-            // Biome tint flag
-            if (Arrays.asList(grassBlocks).contains(blockName)) {
-                blockIndexesArray[i*4 + 3] = 1;
-            } else if (Arrays.asList(foliageBlocks).contains(blockName)) {
-                blockIndexesArray[i*4 + 3] = 2;
+            pending[slice] = new cl_event();
+            if (layout.isBuffers()) {
+                clEnqueueWriteBuffer(commandQueue, octreeData, CL_FALSE, (long) row * Sizeof.cl_int,
+                        (long) rows * Sizeof.cl_int, Pointer.to(buffer), 0, null, pending[slice]);
             } else {
-                blockIndexesArray[i*4 + 3] = 0;
+                clEnqueueWriteImage(commandQueue, octreeData, CL_FALSE, new long[] {0, row, 0},
+                        new long[] {width, rows, 1}, 0, 0,
+                        Pointer.to(buffer), 0, null, pending[slice]);
             }
+        }
 
-            // x = index, y/256 = emittance, z/256 = specular
+        // Staging buffers must stay alive until the transfers complete
+        for (cl_event event : pending) {
+            if (event != null) {
+                clWaitForEvents(1, new cl_event[] {event});
+                profiler.record(EventProfiler.Type.WRITE, "write octreeData", event);
+                clReleaseEvent(event);
+            }
         }
+    }
 
-        // Transform textures into linear color space
-        float[] color = new float[4];
-        for (int i = 0; i < blockTexturesArray.length; i++) {
-            ColorUtil.getRGBAComponentsGammaCorrected(blockTexturesArray[i], color);
-            blockTexturesArray[i] = ColorUtil.getArgb(color[0], color[1], color[2], color[3]);
+    /**
+     * Fill an octree staging buffer with a slice of the tree data, padding the final row with zeros.
+     */
+    static void fillOctreeSlice(ByteBuffer buffer, int[] treeData, int offset, int ints) {
+        buffer.clear();
+        int length = Math.max(0, Math.min(ints, treeData.length - offset));
+        buffer.asIntBuffer().put(treeData, offset, length);
+        for (int i = length; i < ints; i++) {
+            buffer.putInt(i * Sizeof.cl_int, 0);
         }
+    }
 
-        // Add the sun
-        int[] textureData = Sun.texture.getBitmap().data;
-        // Resize array if necessary
-        if (index + textureData.length > blockTexturesArray.length) {
-            int[] tempCopyArray = new int[blockTexturesArray.length];
-            System.arraycopy(blockTexturesArray, 0, tempCopyArray, 0, blockTexturesArray.length);
-            blockTexturesArray = new int[blockTexturesArray.length + 4*textureData.length];
-            System.arraycopy(tempCopyArray, 0, blockTexturesArray, 0, tempCopyArray.length);
-        }
-        System.arraycopy(textureData, 0, blockTexturesArray, index, textureData.length);
-        int sunIndex = index;
-        index += textureData.length;
+    /**
+     * Get the loaded chunks of the scene through reflection.
+     *
+     * @return The chunk positions, or null if they could not be read
+     */
+    static Collection<?> getChunks(Scene scene) {
+        try {
+            Field sceneChunks = scene.getClass().getDeclaredField("chunks");
+            sceneChunks.setAccessible(true);
+            return (Collection<?>) sceneChunks.get(scene);
+        } catch (NoSuchFieldException | IllegalAccessException | ClassCastException e) {
+            Log.warn("Could not get the loaded chunks, loading biome tints for the entire octree.", e);
+            return null;
+        }
+    }
 
+    private void loadTints(int[] pages, int[] tiles) {
+        if (tintPages != null) {
+            clReleaseMemObject(tintPages);
+            clReleaseMemObject(tintTiles);
+        }
 
-        // Copy block texture data into fitted array to prevent Segfaults
-        int[] blockTexturesArrayCopy = new int[(blockTexturesArray.length/8192/3 + 1) * 8192 * 3];
-        System.arraycopy(blockTexturesArray, 0, blockTexturesArrayCopy, 0, blockTexturesArray.length);
+        this.tintPages = createDataArray(pages, CL_SIGNED_INT32);
+        this.tintTiles = createDataArray(tiles, CL_UNSIGNED_INT32);
+    }
 
-        // Load arrays as images.
-        format.image_channel_data_type = CL_UNSIGNED_INT32;
-        format.image_channel_order = CL_RGBA;
+    /**
+     * Build the biome tint page table. Tiles overlapping a loaded chunk get a tile index, the others are -1.
+     *
+     * @param chunks The loaded chunks, or null to give every tile of the octree tint data
+     */
+    static int[] buildTintPages(Scene scene, int depth, Collection<?> chunks) {
+        // Biome tints are stored as 16x16 tiles for the loaded chunks only. A page table maps each tile of the
+        // octree to its grass and foliage tile, or -1 if there is no tint data.
+        int bounds = 1 << depth;
+        int tilesPerSide = Math.max(1, bounds / 16);
+        int[] pages = new int[tilesPerSide * tilesPerSide];
+        Arrays.fill(pages, -1);
+
+        if (chunks != null) {
+            // Chunks may not be aligned to octree tiles, so mark every tile a chunk overlaps
+            int originX = (int) Math.floor(scene.getOrigin().x);
+            int originZ = (int) Math.floor(scene.getOrigin().z);
+            for (Object chunk : chunks) {
+                ChunkPosition cp = (ChunkPosition) chunk;
+                int x0 = cp.x * 16 - originX;
+                int z0 = cp.z * 16 - originZ;
+                for (int tz = Math.floorDiv(z0, 16); tz <= Math.floorDiv(z0 + 15, 16); tz++) {
+                    for (int tx = Math.floorDiv(x0, 16); tx <= Math.floorDiv(x0 + 15, 16); tx++) {
+                        if (tx >= 0 && tz >= 0 && tx < tilesPerSide && tz < tilesPerSide)
+                            pages[tz * tilesPerSide + tx] = 0;
+                    }
+                }
+            }
+        } else {
+            Arrays.fill(pages, 0);
+        }
 
-        desc.image_type = CL_MEM_OBJECT_IMAGE2D;
-        desc.image_width = Math.min(blockTexturesArray.length/4, 8192);
-        desc.image_height = blockTexturesArray.length / 8192 / 4 + 1;
+        // Assign tile indexes
+        int tileCount = 0;
+        for (int i = 0; i < pages.length; i++) {
+            if (pages[i] == 0) {
+                pages[i] = tileCount++;
+            }
+        }
+        return pages;
+    }
 
-        blockTextures = clCreateImage(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, format, desc,
-                Pointer.to(blockTexturesArrayCopy), null);
+    /**
+     * Build the biome tint tiles of a page table. Each tile holds 256 grass colors followed by 256 foliage colors.
+     */
+    static int[] buildTintTiles(Scene scene, int depth, int[] pages) {
+        int tilesPerSide = Math.max(1, (1 << depth) / 16);
+        IntArrayList tileList = new IntArrayList();
+        for (int i = 0; i < pages.length; i++) {
+            if (pages[i] >= 0) tileList.add(i);
+        }
 
-        format.image_channel_data_type = CL_SIGNED_INT32;
-        format.image_channel_order = CL_RGBA;
+        int[] tiles = tileList.toIntArray();
+        int[] tintData = new int[Math.max(tiles.length * 512, 4)];
+        Chunky.getCommonThreads().submit(() -> IntStream.range(0, tiles.length).parallel().forEach(t -> {
+            int tx = (tiles[t] % tilesPerSide) * 16;
+            int tz = (tiles[t] / tilesPerSide) * 16;
+            int offset = t * 512;
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    float[] color = scene.getGrassColor(tx + x, tz + z);
+                    tintData[offset + z*16 + x] = (int)(256*color[0]) << 16 | (int)(256*color[1]) << 8 | (int)(256*color[2]);
+                    color = scene.getFoliageColor(tx + x, tz + z);
+                    tintData[offset + 256 + z*16 + x] = (int)(256*color[0]) << 16 | (int)(256*color[1]) << 8 | (int)(256*color[2]);
+                }
+            }
+        })).join();
+        return tintData;
+    }
 
-        desc.image_type = CL_MEM_OBJECT_IMAGE1D;
-        desc.image_width = blockIndexesArray.length / 4;
-        blockData = clCreateImage(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, format, desc,
-                Pointer.to(blockIndexesArray), null);
+    /**
+     * Create a read only data array holding an int array, to be read in the kernel with the index functions of
+     * imageArrays.h. The array is an RGBA image in the width of the layout, or a buffer.
+     */
+    private cl_mem createDataArray(int[] data, int type) {
+        int length = (int) layout.getPaddedLength(data.length);
+        int[] padded = data.length < length ? Arrays.copyOf(data, length) : data;
+        return createDataArray(Pointer.to(padded), data.length, type);
+    }
 
-        this.sunIndex = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_int, Pointer.to(new int[] {sunIndex}), null);
+    /**
+     * Create a read only data array.
+     *
+     * @param data Host data padded to the length of the layout, or null to leave the array uninitialized
+     * @param ints Length of the array in ints
+     */
+    private cl_mem createDataArray(Pointer data, long ints, int type) {
+        long flags = CL_MEM_READ_ONLY | (data != null ? CL_MEM_COPY_HOST_PTR : 0);
+        if (layout.isBuffers()) {
+            return clCreateBuffer(context, flags, layout.getBytes(ints), data, null);
+        }
 
-        renderTask.update("Loading BVH", 4, 3);
+        cl_image_format format = new cl_image_format();
+        format.image_channel_data_type = type;
+        format.image_channel_order = CL_RGBA;
 
-        ArrayList<Entity> entities = new ArrayList<>(scene.getEntities());
-        entities.addAll(scene.getActors());
-        Vector3 worldOffset = new Vector3(
-                -scene.getOrigin().x,
-                -scene.getOrigin().y,
-                -scene.getOrigin().z
-        );
+        cl_image_desc desc = new cl_image_desc();
+        desc.image_type = CL_MEM_OBJECT_IMAGE2D;
+        desc.image_width = layout.getWidth(ints);
+        desc.image_height = layout.getHeight(ints);
 
-        BinaryBVH bvh = (BinaryBVH) BVH.Factory.DEFAULT_IMPLEMENTATION.create(entities, worldOffset, renderTask);
-        entities = null; // Set to null to allow for garbage collection.
+        return clCreateImage(context, flags, format, desc, data, null);
+    }
 
-        // Pack entities
-        FloatArrayList entityTrigs = new FloatArrayList();
-        IntArrayList entityTextures = new IntArrayList();
-        Map<Material, Integer> materialIndexes = new IdentityHashMap<>();
+    private void loadTextures(TextureAtlas atlas) {
+        if (blockTextures != null) clReleaseMemObject(blockTextures);
+
+        paletteTextureIndexes = atlas.paletteIndexes;
+        sunIndex = atlas.sunIndex;
+        blockTextures = createDataArray(atlas.data, CL_UNSIGNED_INT32);
+    }
 
-        for (int i = 0; i < bvh.packed.length; i += 7) {
-            if (bvh.packed[i] <= 0) {
-                int j = -bvh.packed[i];
-                bvh.packed[i] = -entityTrigs.size();
-                entityTrigs.add(bvh.packedPrimitives[j].length);
-                packPrimitives(bvh.packedPrimitives[j], entityTrigs, entityTextures, materialIndexes);
+    /**
+     * Build the block texture atlas of a palette.
+     */
+    static TextureAtlas buildTextureAtlas(List<Block> blockPalette) {
+        // Load all block textures into GPU texture memory
+        // Identical textures (with the same constant tint) are only stored once in the atlas
+        Map<AtlasEntry, AtlasEntry> atlasEntries = new HashMap<>();
+        List<AtlasEntry> uniqueEntries = new ArrayList<>();
+        int[] paletteTextureIndexes = new int[blockPalette.size()];
+        int index = 0;
+        for (int i = 0; i < blockPalette.size(); i++) {
+            Block block = blockPalette.get(i);
+            int tintIndex = Arrays.asList(constantTintNames).indexOf(block.name);
+            AtlasEntry entry = new AtlasEntry(block.getTexture(0).getBitmap().data, tintIndex);
+
+            AtlasEntry existing = atlasEntries.putIfAbsent(entry, entry);
+            if (existing == null) {
+                entry.index = index;
+                index += entry.data.length;
+                uniqueEntries.add(entry);
+            } else {
+                entry = existing;
             }
+            paletteTextureIndexes[i] = entry.index;
         }
 
-        format.image_channel_data_type = CL_SIGNED_INT32;
-        format.image_channel_order = CL_RGBA;
+        // Add the sun
+        int[] sunTexture = Sun.texture.getBitmap().data;
+        int sunIndex = index;
+        index += sunTexture.length;
 
-        desc.image_type = CL_MEM_OBJECT_IMAGE2D;
-        desc.image_width = 8192;
-        desc.image_height = bvh.packed.length / 8192 / 4 + 1;
+        int[] blockTexturesArray = new int[index];
 
-        this.entityData = clCreateImage(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, format, desc,
-                Pointer.to(bvh.packed), null);
+        // Copy textures into the atlas, applying constant tints and transforming them into linear color space
+        Chunky.getCommonThreads().submit(() -> uniqueEntries.parallelStream().forEach(entry -> {
+            float[] color = new float[4];
+            for (int j = 0; j < entry.data.length; j++) {
+                int blockColor = entry.tintIndex < 0 ? entry.data[j] : tint(entry.data[j], constantTintColors[entry.tintIndex]);
+                ColorUtil.getRGBAComponentsGammaCorrected(blockColor, color);
+                blockTexturesArray[entry.index + j] = ColorUtil.getArgb(color[0], color[1], color[2], color[3]);
+            }
+        })).join();
+        System.arraycopy(sunTexture, 0, blockTexturesArray, sunIndex, sunTexture.length);
 
-        desc.image_height = entityTrigs.size() / 8192 / 4 + 1;
-        float[] entityTrigsArray = new float[(entityTrigs.size()/8192 + 1) * 8192];
-        entityTrigs.toArray(entityTrigsArray);
+        return new TextureAtlas(blockTexturesArray, paletteTextureIndexes, sunIndex);
+    }
 
-        this.entityTrigs = clCreateImage(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, format, desc,
-                Pointer.to(entityTrigsArray), null);
+    /** A built block texture atlas. */
+    static class TextureAtlas {
+        final int[] data;
+        /** Atlas index of the texture of every palette entry. */
+        final int[] paletteIndexes;
+        final int sunIndex;
+
+        TextureAtlas(int[] data, int[] paletteIndexes, int sunIndex) {
+            this.data = data;
+            this.paletteIndexes = paletteIndexes;
+            this.sunIndex = sunIndex;
+        }
+    }
 
-        format.image_channel_data_type = CL_UNSIGNED_INT32;
-        format.image_channel_order = CL_RGBA;
+    /** Multiply a texture color by a constant tint color. */
+    private static int tint(int blockColor, int tintColor) {
+        // TODO: Simplify this with existing function?
+        double tR = FastMath.pow((0xFF & (tintColor >>> 16)) / 256.0, Scene.DEFAULT_GAMMA);
+        double tG = FastMath.pow((0xFF & (tintColor >>> 8)) / 256.0, Scene.DEFAULT_GAMMA);
+        double tB = FastMath.pow((0xFF & tintColor) / 256.0, Scene.DEFAULT_GAMMA);
 
-        desc.image_height = entityTextures.size() / 8192 / 4 + 1;
-        int[] entityTexturesArray = new int[(entityTextures.size()/8192 + 1) * 8192];
-        entityTextures.toArray(entityTexturesArray);
+        int bA = 0xFF & (blockColor >>> 24);
+        int bR = 0xFF & (blockColor >>> 16);
+        int bG = 0xFF & (blockColor >>> 8);
+        int bB = 0xFF & blockColor;
 
-        this.bvhTextures = clCreateImage(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, format, desc,
-                Pointer.to(entityTexturesArray), null);
+        bR *= tR;
+        bG *= tG;
+        bB *= tB;
 
-        renderTask.update("Loading GPU", 4, 4);
-    }
+        bR = (int) (FastMath.pow(bR / 256.0, 1/Scene.DEFAULT_GAMMA) * 256);
+        bG = (int) (FastMath.pow(bG / 256.0, 1/Scene.DEFAULT_GAMMA) * 256);
+        bB = (int) (FastMath.pow(bB / 256.0, 1/Scene.DEFAULT_GAMMA) * 256);
 
-    /** Generate sky. If mode is true = Nishita, false = Preetham */
-    public void generateSky(Scene scene) {
-        Ray ray = new Ray();
-        Sky sky = scene.sky();
+        return bA << 24 | (int)(bR * tR) << 16 | (int)(bG * tG) << 8 | (int)(bB * tB);
+    }
 
-        // Get skycache resolution through reflection
-        try {
-            Field skyCache = sky.getClass().getDeclaredField("skyCache");
-            skyCache.setAccessible(true);
-            SkyCache cache = (SkyCache) skyCache.get(sky);
-            skyTextureResolution = cache.getSkyResolution();
-        } catch (IllegalAccessException | NoSuchFieldException e) {
-            e.printStackTrace();
+    /** A texture in the block texture atlas, keyed by its content and constant tint. */
+    private static class AtlasEntry {
+        final int[] data;
+        final int tintIndex;
+        final int hash;
+        int index;
+
+        AtlasEntry(int[] data, int tintIndex) {
+            this.data = data;
+            this.tintIndex = tintIndex;
+            this.hash = 31 * Arrays.hashCode(data) + tintIndex;
         }
 
-        SimulatedSky simSky = sky.getSimulatedSky();
-        boolean simulated = sky.getSkyMode() == Sky.SkyMode.SIMULATED;
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof AtlasEntry)) return false;
+            AtlasEntry other = (AtlasEntry) o;
+            return hash == other.hash && tintIndex == other.tintIndex &&
+                    (data == other.data || Arrays.equals(data, other.data));
+        }
+    }
+
+    /**
+     * Build the block data table.
+     * x = texture index, y/256 = emittance, z/256 = specular, w = block flags
+     */
+    static int[] buildBlockData(Scene scene, List<Block> blockPalette, int[] paletteTextureIndexes) {
+        int[] blockIndexesArray = new int[blockPalette.size() * 4];
+        for (int i = 0; i < blockPalette.size(); i++) {
+            Block block = blockPalette.get(i);
+            String blockName = block.name;
+
+            blockIndexesArray[i*4] = paletteTextureIndexes[i];
+
+            // Include block information in auxiliary array
+            blockIndexesArray[i*4 + 1] = (int) (block.emittance * scene.getEmitterIntensity() * 256);
+            blockIndexesArray[i*4 + 2] = (int) (block.specular * 256);
+
+            // Biome tint and transparency flags
+            int flags = 0;
+            if (Arrays.asList(grassBlocks).contains(blockName)) {
+                flags = BLOCK_TINT_GRASS;
+            } else if (Arrays.asList(foliageBlocks).contains(blockName)) {
+                flags = BLOCK_TINT_FOLIAGE;
+            }
+            if (block.invisible) {
+                flags |= BLOCK_INVISIBLE;
+            }
+            blockIndexesArray[i*4 + 3] = flags;
+        }
+        return blockIndexesArray;
+    }
+
+    private void loadBlockData(int[] blockIndexesArray) {
+        if (blockData != null) clReleaseMemObject(blockData);
+
+        cl_image_format format = new cl_image_format();
+        format.image_channel_data_type = CL_SIGNED_INT32;
+        format.image_channel_order = CL_RGBA;
+
+        cl_image_desc desc = new cl_image_desc();
+        desc.image_type = CL_MEM_OBJECT_IMAGE1D;
+        desc.image_width = blockIndexesArray.length / 4;
+        blockData = clCreateImage(context,
+                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, format, desc,
+                Pointer.to(blockIndexesArray), null);
+    }
+
+    /**
+     * Build the entity BVH and pack its primitives into the host data of a load.
+     */
+    private static void packEntities(Scene scene, ArrayList<Entity> entities, TaskTracker.Task renderTask,
+                                     SceneData data) {
+        Vector3 worldOffset = new Vector3(
+                -scene.getOrigin().x,
+                -scene.getOrigin().y,
+                -scene.getOrigin().z
+        );
+
+        BinaryBVH bvh = (BinaryBVH) BVH.Factory.DEFAULT_IMPLEMENTATION.create(entities, worldOffset, renderTask);
+
+        PrimitivePacker.Packed packed = PrimitivePacker.pack(bvh.packed, bvh.packedPrimitives);
+        data.entityNodes = bvh.packed;
+        data.entityTrigs = packed.trigs;
+        data.entityTextures = packed.textures;
+    }
+
+    private void loadEntities(SceneData data) {
+        if (entityData != null) {
+            clReleaseMemObject(entityData);
+            clReleaseMemObject(entityTrigs);
+            clReleaseMemObject(bvhTextures);
+        }
+
+        this.entityData = createDataArray(data.entityNodes, CL_SIGNED_INT32);
+
+        // Triangles are stored as float bits in an int array
+        int length = (int) layout.getPaddedLength(data.entityTrigs.length);
+        float[] entityTrigsArray = data.entityTrigs.length < length ?
+                Arrays.copyOf(data.entityTrigs, length) : data.entityTrigs;
+        this.entityTrigs = createDataArray(Pointer.to(entityTrigsArray), data.entityTrigs.length, CL_SIGNED_INT32);
+
+        this.bvhTextures = createDataArray(data.entityTextures, CL_UNSIGNED_INT32);
+    }
+
+    /**
+     * Render the sky into an RGBA float image with equirectangular mapping.
+     */
+    static void renderSky(Sky sky, float[] skyImage, int skyTextureResolution) {
+        Ray ray = new Ray();
+        SimulatedSky simSky = sky.getSimulatedSky();
+        boolean simulated = sky.getSkyMode() == Sky.SkyMode.SIMULATED;
 
         for (int i = 0; i < skyTextureResolution; i++) {
             for (int j = 0; j < skyTextureResolution; j++) {
@@ -551,13 +1094,74 @@ public class GpuRayTracer {
                 skyImage[(j*skyTextureResolution + i) * 4 + 2] = (float) color.z;
             }
         }
+    }
+
+    /**
+     * Bind the scene arguments shared by the tracing kernels. These only change when the scene is loaded.
+     */
+    private void bindSceneArguments(cl_kernel kernel) {
+        int index = 0;
+        clSetKernelArg(kernel, index++, Sizeof.cl_mem, Pointer.to(octreeData));
+        clSetKernelArg(kernel, index++, Sizeof.cl_mem,
+                Pointer.to(octreePages != null ? octreePages.pageTable : octreePlaceholder));
+        clSetKernelArg(kernel, index++, Sizeof.cl_mem,
+                Pointer.to(octreePages != null ? octreePages.feedback : octreePlaceholder));
+        clSetKernelArg(kernel, index++, Sizeof.cl_int, Pointer.to(new int[] {octreeDepth}));
+        clSetKernelArg(kernel, index++, Sizeof.cl_mem, Pointer.to(blockTextures));
+        clSetKernelArg(kernel, index++, Sizeof.cl_mem, Pointer.to(blockData));
+        clSetKernelArg(kernel, index++, Sizeof.cl_int, Pointer.to(new int[] {sunIndex}));
+        clSetKernelArg(kernel, index++, Sizeof.cl_mem, Pointer.to(skyTexture));
+        clSetKernelArg(kernel, index++, Sizeof.cl_mem, Pointer.to(tintPages));
+        clSetKernelArg(kernel, index++, Sizeof.cl_mem, Pointer.to(tintTiles));
+        clSetKernelArg(kernel, index++, Sizeof.cl_mem, Pointer.to(entityData));
+        clSetKernelArg(kernel, index++, Sizeof.cl_mem, Pointer.to(entityTrigs));
+        clSetKernelArg(kernel, index, Sizeof.cl_mem, Pointer.to(bvhTextures));
+    }
+
+    /** Set a by-value float4 kernel argument. */
+    private static void setFloat4Arg(cl_kernel kernel, int index, float x, float y, float z) {
+        clSetKernelArg(kernel, index, Sizeof.cl_float * 4, Pointer.to(new float[] {x, y, z, 0}));
+    }
 
-        clEnqueueWriteImage(commandQueue, skyTexture, CL_TRUE, new long[] {0, 0, 0},
-                new long[] {skyTextureResolution, skyTextureResolution, 1}, 0, 0,
-                Pointer.to(skyImage), 0, null, null);
+    /** Set a by-value int kernel argument. */
+    private static void setIntArg(cl_kernel kernel, int index, int value) {
+        clSetKernelArg(kernel, index, Sizeof.cl_int, Pointer.to(new int[] {value}));
     }
 
-    public void previewTrace(Vector3 origin, float[] rayDirs, Scene scene, int drawDepth, boolean drawEntities) {
+    /** Generate sky. If mode is true = Nishita, false = Preetham */
+    public void generateSky(Scene scene) {
+        Sky sky = scene.sky();
+
+        // Get skycache resolution through reflection
+        try {
+            Field skyCache = sky.getClass().getDeclaredField("skyCache");
+            skyCache.setAccessible(true);
+            SkyCache cache = (SkyCache) skyCache.get(sky);
+            skyTextureResolution = cache.getSkyResolution();
+        } catch (IllegalAccessException | NoSuchFieldException e) {
+            e.printStackTrace();
+        }
+
+        renderSky(sky, skyImage, skyTextureResolution);
+
+        // Skip the upload if the sky did not change
+        long hash = ContentHash.combine(ContentHash.hash(skyImage), skyTextureResolution);
+        if (hash == skyHash) return;
+        skyHash = hash;
+
+        profiler.profile(EventProfiler.Type.WRITE, "write skyTexture", event ->
+                clEnqueueWriteImage(commandQueue, skyTexture, CL_TRUE, new long[] {0, 0, 0},
+                        new long[] {skyTextureResolution, skyTextureResolution, 1}, 0, 0, Pointer.to(skyImage), 0, null,
+                        event));
+    }
+
+    /**
+     * Trace a preview frame into the back buffer of the scene.
+     *
+     * @param scale Width and height of the pixel blocks which share a single ray, 1 for a full resolution frame
+     */
+    public void previewTrace(Vector3 origin, CameraRays rays, Scene scene, int drawDepth, boolean drawEntities,
+                             int scale) {
         // Load if necessary
         if (octreeData == null) {
             load(scene, TaskTracker.Task.NONE);
@@ -573,221 +1177,1018 @@ public class GpuRayTracer {
 
         int[] rayRes = scene.getBackBuffer().data;
 
-        float[] rayPos = new float[3];
-        rayPos[0] = (float) origin.x;
-        rayPos[1] = (float) origin.y;
-        rayPos[2] = (float) origin.z;
-
         Sun sun = scene.sun();
         float[] sunPos = new float[3];
         sunPos[0] = (float) (FastMath.cos(sun.getAzimuth()) * FastMath.cos(sun.getAltitude()));
         sunPos[1] = (float) (FastMath.sin(sun.getAltitude()));
         sunPos[2] = (float) (FastMath.sin(sun.getAzimuth()) * FastMath.cos(sun.getAltitude()));
 
-        // Transfer arguments to GPU memory
-        cl_mem clRayPos = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                (long) Sizeof.cl_float * rayPos.length, Pointer.to(rayPos), null);
-        cl_mem clRayDirs = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                (long) Sizeof.cl_float * rayDirs.length, Pointer.to(rayDirs), null);
-        cl_mem clWidth = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_int, Pointer.to(new int[] {scene.canvasWidth()}), null);
-        cl_mem clHeight = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_int, Pointer.to(new int[] {scene.canvasHeight()}), null);
-        cl_mem clTrace = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                (long) Sizeof.cl_int * targetPos.length, Pointer.to(targetPos), null);
-        cl_mem clDrawDepth = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_int, Pointer.to(new int[] {drawDepth}), null);
-        cl_mem clSunPos = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_float * 3, Pointer.to(sunPos), null);
-        cl_mem clSunIntensity = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_float, Pointer.to(new float[] {(float) sun.getIntensity()}), null);
-        cl_mem clDrawEntities = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_int, Pointer.to(new int[] {drawEntities ? 1 : 0}), null);
-        cl_mem clRayRes = clCreateBuffer(context, CL_MEM_WRITE_ONLY,
-                (long) Sizeof.cl_float * rayRes.length, null, null);
-
-        // Set the arguments
-        cl_mem[] arguments = {clRayPos, clRayDirs, clWidth, clHeight, clTrace, octreeDepth, octreeData, voxelLength,
-                transparentArray, transparentLength, blockTextures, blockData, clSunPos, sunIndex, clSunIntensity,
-                skyTexture, grassTextures, foliageTextures, entityData, entityTrigs, bvhTextures, clDrawEntities,
-                clDrawDepth, clRayRes};
-        for (int i = 0; i < arguments.length; i++) {
-            clSetKernelArg(previewKernel, i, Sizeof.cl_mem, Pointer.to(arguments[i]));
-        }
-
-        // Execute the program
-        clEnqueueNDRangeKernel(commandQueue, previewKernel, 1, null, new long[]{rayRes.length},
-                null, 0, null, null);
+        // Reuse the preview buffers unless the canvas size changed
+        if (previewLength != rayRes.length) {
+            if (previewRes != null) {
+                clReleaseMemObject(previewRes);
+            }
+            if (previewRayDirs != null) {
+                clReleaseMemObject(previewRayDirs);
+                previewRayDirs = null;
+            }
+            previewRes = clCreateBuffer(context, CL_MEM_WRITE_ONLY,
+                    (long) Sizeof.cl_int * rayRes.length, null, null);
+            previewLength = rayRes.length;
+        }
+        if (previewCamera == null) {
+            previewCamera = clCreateBuffer(context, CL_MEM_READ_ONLY,
+                    (long) Sizeof.cl_float * CameraRays.PARAMETERS, null, null);
+        }
+        profiler.profile(EventProfiler.Type.WRITE, "write previewCamera", event ->
+                clEnqueueWriteBuffer(commandQueue, previewCamera, CL_TRUE, 0,
+                        (long) Sizeof.cl_float * CameraRays.PARAMETERS, Pointer.to(rays.parameters), 0, null, event));
+
+        // Upload the host generated rays, the camera buffer stands in for them otherwise
+        if (!rays.isOnDevice()) {
+            if (previewRayDirs == null) {
+                previewRayDirs = clCreateBuffer(context, CL_MEM_READ_ONLY,
+                        (long) Sizeof.cl_float * rayRes.length * 3, null, null);
+            }
+            profiler.profile(EventProfiler.Type.WRITE, "write previewRayDirs", event ->
+                    clEnqueueWriteBuffer(commandQueue, previewRayDirs, CL_TRUE, 0,
+                            (long) Sizeof.cl_float * rays.rayDirs.length, Pointer.to(rays.rayDirs), 0, null, event));
+        }
+
+        // Set the frame arguments
+        int index = SCENE_ARGUMENTS;
+        setFloat4Arg(previewKernel, index++, (float) origin.x, (float) origin.y, (float) origin.z);
+        setFloat4Arg(previewKernel, index++, sunPos[0], sunPos[1], sunPos[2]);
+        clSetKernelArg(previewKernel, index++, Sizeof.cl_float, Pointer.to(new float[] {(float) sun.getIntensity()}));
+        clSetKernelArg(previewKernel, index++, Sizeof.cl_int * 4, Pointer.to(new int[] {targetPos[0], targetPos[1], targetPos[2], 0}));
+        setIntArg(previewKernel, index++, scene.canvasWidth());
+        setIntArg(previewKernel, index++, scene.canvasHeight());
+        setIntArg(previewKernel, index++, scale);
+        setIntArg(previewKernel, index++, drawEntities ? 1 : 0);
+        setIntArg(previewKernel, index++, drawDepth);
+        clSetKernelArg(previewKernel, index++, Sizeof.cl_mem, Pointer.to(previewCamera));
+        clSetKernelArg(previewKernel, index++, Sizeof.cl_mem,
+                Pointer.to(rays.isOnDevice() ? previewCamera : previewRayDirs));
+        clSetKernelArg(previewKernel, index, Sizeof.cl_mem, Pointer.to(previewRes));
+
+        // Execute the program, one work-item per block
+        long blocks = (long) ((scene.canvasWidth() + scale - 1) / scale) * ((scene.canvasHeight() + scale - 1) / scale);
+        profiler.profile(EventProfiler.Type.KERNEL, "preview", event ->
+                clEnqueueNDRangeKernel(commandQueue, previewKernel, 1, null, new long[]{blocks}, null, 0, null, event));
 
         // Get the results
-        clFinish(commandQueue);
-        clEnqueueReadBuffer(commandQueue, clRayRes, CL_TRUE, 0, (long) Sizeof.cl_int * rayRes.length,
-                Pointer.to(rayRes), 0, null, null);
+        profiler.profile(EventProfiler.Type.READ, "read previewRes", event ->
+                clEnqueueReadBuffer(commandQueue, previewRes, CL_TRUE, 0, (long) Sizeof.cl_int * rayRes.length,
+                        Pointer.to(rayRes), 0, null, event));
+
+        // Load the octree pages the preview needed for the next frame
+        if (octreePages != null) {
+            octreePages.stream();
+        }
+    }
+
+    /**
+     * Enqueue a single sample per pixel. The sample is added to the accumulation buffer in the cache and
+     * nothing is read back; use {@link #mergeSamples(RayTraceCache)} to merge the accumulated samples.
+     */
+    public void rayTrace(Vector3 origin, Random random, int rayDepth, boolean preview, Scene scene, int drawDepth, boolean drawEntities, boolean sunSampling, RayTraceCache cache) {
+        // Load if necessary
+        if (octreeData == null) {
+            load(scene, TaskTracker.Task.NONE);
+        }
+
+        Sun sun = scene.sun();
+        float[] sunPos = getSunPosition(sun);
+        cl_kernel pathTracerKernel = getVariant(rayDepth, drawEntities, sunSampling, cache.countRays)
+                .pathTracerKernel;
+
+        // Set the frame arguments
+        int index = SCENE_ARGUMENTS;
+        setFloat4Arg(pathTracerKernel, index++, (float) origin.x, (float) origin.y, (float) origin.z);
+        setFloat4Arg(pathTracerKernel, index++, sunPos[0], sunPos[1], sunPos[2]);
+        clSetKernelArg(pathTracerKernel, index++, Sizeof.cl_float, Pointer.to(new float[] {(float) sun.getIntensity()}));
+        setIntArg(pathTracerKernel, index++, random.nextInt());
+        setIntArg(pathTracerKernel, index++, rayDepth);
+        setIntArg(pathTracerKernel, index++, drawEntities ? 1 : 0);
+        setIntArg(pathTracerKernel, index++, sunSampling ? 1 : 0);
+        setIntArg(pathTracerKernel, index++, drawDepth);
+        clSetKernelArg(pathTracerKernel, index++, Sizeof.cl_mem, Pointer.to(cache.clCamera));
+        clSetKernelArg(pathTracerKernel, index++, Sizeof.cl_mem, Pointer.to(cache.clRayDirs));
+        clSetKernelArg(pathTracerKernel, index++, Sizeof.cl_mem, Pointer.to(cache.clRayJitter));
+        clSetKernelArg(pathTracerKernel, index++, Sizeof.cl_mem, Pointer.to(cache.clRayRes));
+        int maskIndex = index;
+        clSetKernelArg(pathTracerKernel, index++, Sizeof.cl_mem, Pointer.to(cache.clMask));
+        clSetKernelArg(pathTracerKernel, index++, Sizeof.cl_mem, Pointer.to(cache.clResSquares));
+        clSetKernelArg(pathTracerKernel, index++, Sizeof.cl_mem, Pointer.to(cache.clRayCounts));
+        clSetKernelArg(pathTracerKernel, index, Sizeof.cl_mem,
+                Pointer.to(octreePages != null ? octreePages.getRetryBuffer(cache) : octreePlaceholder));
+
+        // Execute the program. The kernel adds its sample to the accumulation buffer.
+        profiler.profile(EventProfiler.Type.KERNEL, "rayTracer", event ->
+                clEnqueueNDRangeKernel(commandQueue, pathTracerKernel, 1, null, new long[]{cache.length/3}, null, 0,
+                        null, event));
+        if (octreePages != null) {
+            octreePages.retry(pathTracerKernel, maskIndex, cache);
+        }
+        cache.samples += 1;
+    }
+
+    /**
+     * Merge the samples accumulated since the last merge into the running average sample buffer on the device.
+     */
+    public void mergeSamples(RayTraceCache cache) {
+        if (cache.samples == 0) return;
+
+        if (cache.adaptive) {
+            mergeAdaptive(cache);
+        } else {
+            enqueueMerge(cache, cache.clRayRes, cache.samples);
+            clearSquares(cache);
+        }
+        cache.samples = 0;
+    }
+
+    /**
+     * Merge the samples of the sampled pixels and update which pixels are sampled next.
+     */
+    private void mergeAdaptive(RayTraceCache cache) {
+        // The pixels sampled in this batch were counted by the previous merge
+        cache.finishActivePixels();
+        setBufferInt(cache.clActivePixels, 0);
+
+        int index = 0;
+        clSetKernelArg(mergeAdaptiveKernel, index++, Sizeof.cl_mem, Pointer.to(cache.clRayRes));
+        clSetKernelArg(mergeAdaptiveKernel, index++, Sizeof.cl_mem, Pointer.to(cache.clResSquares));
+        clSetKernelArg(mergeAdaptiveKernel, index++, Sizeof.cl_mem, Pointer.to(cache.clSampleBuffer));
+        clSetKernelArg(mergeAdaptiveKernel, index++, Sizeof.cl_mem, Pointer.to(cache.clSquareBuffer));
+        clSetKernelArg(mergeAdaptiveKernel, index++, Sizeof.cl_mem, Pointer.to(cache.clPixelSamples));
+        clSetKernelArg(mergeAdaptiveKernel, index++, Sizeof.cl_mem, Pointer.to(cache.clSquareSamples));
+        clSetKernelArg(mergeAdaptiveKernel, index++, Sizeof.cl_mem, Pointer.to(cache.clMask));
+        clSetKernelArg(mergeAdaptiveKernel, index++, Sizeof.cl_mem, Pointer.to(cache.clError));
+        clSetKernelArg(mergeAdaptiveKernel, index++, Sizeof.cl_mem, Pointer.to(cache.clActivePixels));
+        setIntArg(mergeAdaptiveKernel, index++, cache.samples);
+        setIntArg(mergeAdaptiveKernel, index++, cache.minSamples);
+        setIntArg(mergeAdaptiveKernel, index++, cache.maxSamples);
+        clSetKernelArg(mergeAdaptiveKernel, index, Sizeof.cl_float, Pointer.to(new float[] {cache.threshold}));
+        profiler.profile(EventProfiler.Type.KERNEL, "mergeAdaptive", event ->
+                clEnqueueNDRangeKernel(commandQueue, mergeAdaptiveKernel, 1, null, new long[] {cache.length / 3}, null,
+                        0, null, event));
+
+        // Every pixel sampled in this batch got all of its samples
+        cache.tracedSamples += (long) cache.samples * cache.activePixels;
+        cache.spp = (int) (cache.tracedSamples / (cache.length / 3));
+
+        // Read the count without blocking, so the queue stays full. It is used by the next merge.
+        cache.activePixelsRead = new cl_event();
+        clEnqueueReadBuffer(commandQueue, cache.clActivePixels, CL_FALSE, 0, Sizeof.cl_int,
+                Pointer.to(cache.activePixelsStaging), 0, null, cache.activePixelsRead);
+        clFlush(commandQueue);
+    }
+
+    private void clearSquares(RayTraceCache cache) {
+        profiler.profile(EventProfiler.Type.FILL, "fill resSquares", event ->
+                clEnqueueFillBuffer(commandQueue, cache.clResSquares, Pointer.to(new float[] {0}), Sizeof.cl_float, 0,
+                        (long) Sizeof.cl_float * (cache.length / 3), 0, null, event));
+    }
+
+    /**
+     * Merge samples accumulated on another device into the running average sample buffer on the device.
+     *
+     * @param sums    The sum of the samples for every pixel
+     * @param samples The number of samples in the sums
+     */
+    public void mergeSamples(RayTraceCache cache, float[] sums, int samples) {
+        if (samples == 0) return;
+
+        if (cache.clMergeBuffer == null) {
+            cache.clMergeBuffer = clCreateBuffer(context, CL_MEM_READ_WRITE,
+                    (long) Sizeof.cl_float * cache.length, null, null);
+        }
+        profiler.profile(EventProfiler.Type.WRITE, "write mergeBuffer", event ->
+                clEnqueueWriteBuffer(commandQueue, cache.clMergeBuffer, CL_TRUE, 0,
+                        (long) Sizeof.cl_float * cache.length, Pointer.to(sums), 0, null, event));
+        enqueueMerge(cache, cache.clMergeBuffer, samples);
+    }
 
-        // Clean up
-        cl_mem[] releases = {clRayPos, clRayDirs, clWidth, clHeight, clTrace, clDrawDepth, clSunPos, clSunIntensity, clDrawEntities, clRayRes};
-        Arrays.stream(releases).forEach(CL::clReleaseMemObject);
+    private void enqueueMerge(RayTraceCache cache, cl_mem res, int samples) {
+        clSetKernelArg(mergeKernel, 0, Sizeof.cl_mem, Pointer.to(res));
+        clSetKernelArg(mergeKernel, 1, Sizeof.cl_mem, Pointer.to(cache.clSampleBuffer));
+        setIntArg(mergeKernel, 2, cache.spp);
+        setIntArg(mergeKernel, 3, samples);
+        profiler.profile(EventProfiler.Type.KERNEL, "merge", event ->
+                clEnqueueNDRangeKernel(commandQueue, mergeKernel, 1, null, new long[] {cache.length}, null, 0, null,
+                        event));
+
+        cache.spp += samples;
+    }
+
+    /**
+     * Copy the samples accumulated since the last merge to the host and clear the accumulation buffer. Used to
+     * move samples from a secondary device to the primary device.
+     *
+     * @return The number of samples in the copied sums
+     */
+    public int takeSamples(RayTraceCache cache, float[] sums) {
+        profiler.profile(EventProfiler.Type.READ, "read rayRes", event ->
+                clEnqueueReadBuffer(commandQueue, cache.clRayRes, CL_TRUE, 0, (long) Sizeof.cl_float * cache.length,
+                        Pointer.to(sums), 0, null, event));
+        profiler.profile(EventProfiler.Type.FILL, "fill rayRes", event ->
+                clEnqueueFillBuffer(commandQueue, cache.clRayRes, Pointer.to(new float[] {0}), Sizeof.cl_float, 0,
+                        (long) Sizeof.cl_float * cache.length, 0, null, event));
+        clearSquares(cache);
+
+        int samples = cache.samples;
+        cache.samples = 0;
+        return samples;
     }
 
-    public float[] rayTrace(Vector3 origin, Random random, int rayDepth, boolean preview, Scene scene, int drawDepth, boolean drawEntities, boolean sunSampling, RayTraceCache cache) {
+    /**
+     * Upload a sample buffer as the starting point of the running average on the device.
+     */
+    public void uploadSamples(RayTraceCache cache, double[] sampleBuffer, int spp) {
+        ByteBuffer buffer = cache.getSampleStaging(0);
+        FloatBuffer staging = buffer.asFloatBuffer();
+        Chunky.getCommonThreads().submit(() -> IntStream.range(0, cache.length).parallel().forEach(i ->
+                staging.put(i, (float) sampleBuffer[i]))).join();
+
+        profiler.profile(EventProfiler.Type.WRITE, "write sampleBuffer", event ->
+                clEnqueueWriteBuffer(commandQueue, cache.clSampleBuffer, CL_TRUE, 0,
+                        (long) Sizeof.cl_float * cache.length, Pointer.to(buffer), 0, null, event));
+        cache.spp = spp;
+    }
+
+    /**
+     * Enqueue a single sample per pixel with the wavefront path tracer. Each bounce runs separate extend, shade
+     * and shadow kernels over queues of the live paths, then the path radiance is added to the accumulation
+     * buffer in the cache. The queue lengths are read back once per bounce, so each stage only launches the live
+     * paths and the bounces stop when every path ended.
+     */
+    public void rayTraceWavefront(Vector3 origin, Random random, int rayDepth, Scene scene, int drawDepth, boolean drawEntities, boolean sunSampling, RayTraceCache cache) {
         // Load if necessary
         if (octreeData == null) {
             load(scene, TaskTracker.Task.NONE);
         }
 
-        // Results array
-        float[] rayRes = new float[cache.length];
+        // Samples of a paged octree are traced again with the path tracing kernel when they needed missing pages,
+        // which the wavefront kernels do not support
+        if (octreePages != null) {
+            rayTrace(origin, random, rayDepth, false, scene, drawDepth, drawEntities, sunSampling, cache);
+            return;
+        }
 
-        float[] rayPos = new float[3];
-        rayPos[0] = (float) origin.x;
-        rayPos[1] = (float) origin.y;
-        rayPos[2] = (float) origin.z;
+        WavefrontState state = cache.getWavefrontState();
+        long[] rays = new long[] {cache.length / 3};
+
+        ProgramVariant variant = getVariant(rayDepth, drawEntities, sunSampling, cache.countRays);
+        cl_kernel wavefrontExtendKernel = variant.wavefrontExtendKernel;
+        cl_kernel wavefrontShadeKernel = variant.wavefrontShadeKernel;
+        cl_kernel wavefrontShadowKernel = variant.wavefrontShadowKernel;
 
         Sun sun = scene.sun();
+        float[] sunPos = getSunPosition(sun);
+
+        // Generate the camera rays
+        int index = 0;
+        setFloat4Arg(wavefrontGenerateKernel, index++, (float) origin.x, (float) origin.y, (float) origin.z);
+        setIntArg(wavefrontGenerateKernel, index++, random.nextInt());
+        clSetKernelArg(wavefrontGenerateKernel, index++, Sizeof.cl_mem, Pointer.to(cache.clCamera));
+        clSetKernelArg(wavefrontGenerateKernel, index++, Sizeof.cl_mem, Pointer.to(cache.clRayDirs));
+        clSetKernelArg(wavefrontGenerateKernel, index++, Sizeof.cl_mem, Pointer.to(cache.clRayJitter));
+        clSetKernelArg(wavefrontGenerateKernel, index++, Sizeof.cl_mem, Pointer.to(state.pathOrigin));
+        clSetKernelArg(wavefrontGenerateKernel, index++, Sizeof.cl_mem, Pointer.to(state.pathDirection));
+        clSetKernelArg(wavefrontGenerateKernel, index++, Sizeof.cl_mem, Pointer.to(state.pathThroughput));
+        clSetKernelArg(wavefrontGenerateKernel, index++, Sizeof.cl_mem, Pointer.to(state.pathRadiance));
+        clSetKernelArg(wavefrontGenerateKernel, index++, Sizeof.cl_mem, Pointer.to(state.pathRandom));
+        clSetKernelArg(wavefrontGenerateKernel, index++, Sizeof.cl_mem, Pointer.to(state.hitNormal));
+        clSetKernelArg(wavefrontGenerateKernel, index++, Sizeof.cl_mem, Pointer.to(cache.clMask));
+        clSetKernelArg(wavefrontGenerateKernel, index++, Sizeof.cl_mem, Pointer.to(state.queues[0]));
+        clSetKernelArg(wavefrontGenerateKernel, index, Sizeof.cl_mem, Pointer.to(state.queueLengths[0]));
+        setBufferInt(state.queueLengths[0], 0);
+        profiler.profile(EventProfiler.Type.KERNEL, "wavefrontGenerate", event ->
+                clEnqueueNDRangeKernel(commandQueue, wavefrontGenerateKernel, 1, null, rays, null, 0, null, event));
+        readQueueLengths(state, state.queueLengths[0], null);
+
+        // Cap max bounces at 23 to match the rayTracer kernel
+        int maxBounces = Math.min(rayDepth, 23);
+        for (int bounce = 0; bounce < maxBounces && state.liveLength > 0; bounce++) {
+            long[] live = new long[] {state.liveLength};
+            cl_mem queue = state.queues[bounce % 2];
+            cl_mem queueLength = state.queueLengths[bounce % 2];
+            cl_mem nextQueue = state.queues[(bounce + 1) % 2];
+            cl_mem nextQueueLength = state.queueLengths[(bounce + 1) % 2];
+
+            // Intersect
+            index = SCENE_ARGUMENTS;
+            setIntArg(wavefrontExtendKernel, index++, drawEntities ? 1 : 0);
+            setIntArg(wavefrontExtendKernel, index++, drawDepth);
+            clSetKernelArg(wavefrontExtendKernel, index++, Sizeof.cl_mem, Pointer.to(queue));
+            clSetKernelArg(wavefrontExtendKernel, index++, Sizeof.cl_mem, Pointer.to(queueLength));
+            clSetKernelArg(wavefrontExtendKernel, index++, Sizeof.cl_mem, Pointer.to(state.pathOrigin));
+            clSetKernelArg(wavefrontExtendKernel, index++, Sizeof.cl_mem, Pointer.to(state.pathDirection));
+            clSetKernelArg(wavefrontExtendKernel, index++, Sizeof.cl_mem, Pointer.to(state.hitNormal));
+            clSetKernelArg(wavefrontExtendKernel, index++, Sizeof.cl_mem, Pointer.to(state.hitColor));
+            clSetKernelArg(wavefrontExtendKernel, index++, Sizeof.cl_mem, Pointer.to(state.hitEmittance));
+            clSetKernelArg(wavefrontExtendKernel, index, Sizeof.cl_mem, Pointer.to(cache.clRayCounts));
+            profiler.profile(EventProfiler.Type.KERNEL, "wavefrontExtend", event ->
+                    clEnqueueNDRangeKernel(commandQueue, wavefrontExtendKernel, 1, null, live, null, 0, null, event));
+
+            // Shade
+            setBufferInt(nextQueueLength, 0);
+            setBufferInt(state.shadowQueueLength, 0);
+
+            index = SCENE_ARGUMENTS;
+            setFloat4Arg(wavefrontShadeKernel, index++, sunPos[0], sunPos[1], sunPos[2]);
+            clSetKernelArg(wavefrontShadeKernel, index++, Sizeof.cl_float, Pointer.to(new float[] {(float) sun.getIntensity()}));
+            setIntArg(wavefrontShadeKernel, index++, bounce);
+            setIntArg(wavefrontShadeKernel, index++, sunSampling ? 1 : 0);
+            clSetKernelArg(wavefrontShadeKernel, index++, Sizeof.cl_mem, Pointer.to(queue));
+            clSetKernelArg(wavefrontShadeKernel, index++, Sizeof.cl_mem, Pointer.to(queueLength));
+            clSetKernelArg(wavefrontShadeKernel, index++, Sizeof.cl_mem, Pointer.to(state.pathOrigin));
+            clSetKernelArg(wavefrontShadeKernel, index++, Sizeof.cl_mem, Pointer.to(state.pathDirection));
+            clSetKernelArg(wavefrontShadeKernel, index++, Sizeof.cl_mem, Pointer.to(state.pathThroughput));
+            clSetKernelArg(wavefrontShadeKernel, index++, Sizeof.cl_mem, Pointer.to(state.pathRadiance));
+            clSetKernelArg(wavefrontShadeKernel, index++, Sizeof.cl_mem, Pointer.to(state.pathRandom));
+            clSetKernelArg(wavefrontShadeKernel, index++, Sizeof.cl_mem, Pointer.to(state.hitNormal));
+            clSetKernelArg(wavefrontShadeKernel, index++, Sizeof.cl_mem, Pointer.to(state.hitColor));
+            clSetKernelArg(wavefrontShadeKernel, index++, Sizeof.cl_mem, Pointer.to(state.hitEmittance));
+            clSetKernelArg(wavefrontShadeKernel, index++, Sizeof.cl_mem, Pointer.to(nextQueue));
+            clSetKernelArg(wavefrontShadeKernel, index++, Sizeof.cl_mem, Pointer.to(nextQueueLength));
+            clSetKernelArg(wavefrontShadeKernel, index++, Sizeof.cl_mem, Pointer.to(state.shadowQueue));
+            clSetKernelArg(wavefrontShadeKernel, index++, Sizeof.cl_mem, Pointer.to(state.shadowQueueLength));
+            clSetKernelArg(wavefrontShadeKernel, index++, Sizeof.cl_mem, Pointer.to(state.shadowOrigin));
+            clSetKernelArg(wavefrontShadeKernel, index++, Sizeof.cl_mem, Pointer.to(state.shadowDirection));
+            clSetKernelArg(wavefrontShadeKernel, index, Sizeof.cl_mem, Pointer.to(state.shadowWeight));
+            profiler.profile(EventProfiler.Type.KERNEL, "wavefrontShade", event ->
+                    clEnqueueNDRangeKernel(commandQueue, wavefrontShadeKernel, 1, null, live, null, 0, null, event));
+            readQueueLengths(state, nextQueueLength, sunSampling ? state.shadowQueueLength : null);
+
+            // Sun shadow rays
+            if (sunSampling && state.shadowLength > 0) {
+                index = SCENE_ARGUMENTS;
+                setIntArg(wavefrontShadowKernel, index++, drawEntities ? 1 : 0);
+                setIntArg(wavefrontShadowKernel, index++, drawDepth);
+                clSetKernelArg(wavefrontShadowKernel, index++, Sizeof.cl_mem, Pointer.to(state.shadowQueue));
+                clSetKernelArg(wavefrontShadowKernel, index++, Sizeof.cl_mem, Pointer.to(state.shadowQueueLength));
+                clSetKernelArg(wavefrontShadowKernel, index++, Sizeof.cl_mem, Pointer.to(state.shadowOrigin));
+                clSetKernelArg(wavefrontShadowKernel, index++, Sizeof.cl_mem, Pointer.to(state.shadowDirection));
+                clSetKernelArg(wavefrontShadowKernel, index++, Sizeof.cl_mem, Pointer.to(state.shadowWeight));
+                clSetKernelArg(wavefrontShadowKernel, index++, Sizeof.cl_mem, Pointer.to(state.pathRadiance));
+                clSetKernelArg(wavefrontShadowKernel, index, Sizeof.cl_mem, Pointer.to(cache.clRayCounts));
+                profiler.profile(EventProfiler.Type.KERNEL, "wavefrontShadow", event ->
+                        clEnqueueNDRangeKernel(commandQueue, wavefrontShadowKernel, 1, null,
+                                new long[] {state.shadowLength}, null, 0, null, event));
+            }
+        }
+
+        // Accumulate
+        clSetKernelArg(wavefrontAccumulateKernel, 0, Sizeof.cl_mem, Pointer.to(state.pathRadiance));
+        clSetKernelArg(wavefrontAccumulateKernel, 1, Sizeof.cl_mem, Pointer.to(cache.clRayRes));
+        clSetKernelArg(wavefrontAccumulateKernel, 2, Sizeof.cl_mem, Pointer.to(cache.clMask));
+        clSetKernelArg(wavefrontAccumulateKernel, 3, Sizeof.cl_mem, Pointer.to(cache.clResSquares));
+        profiler.profile(EventProfiler.Type.KERNEL, "wavefrontAccumulate", event ->
+                clEnqueueNDRangeKernel(commandQueue, wavefrontAccumulateKernel, 1, null, rays, null, 0, null, event));
+        cache.samples += 1;
+    }
+
+    /**
+     * Read back the length of a path queue, and of the shadow queue if given, into the wavefront state. Blocks
+     * until the kernels filling the queues are done.
+     */
+    private void readQueueLengths(WavefrontState state, cl_mem queueLength, cl_mem shadowQueueLength) {
+        if (shadowQueueLength != null) {
+            profiler.profile(EventProfiler.Type.READ, "read shadowQueueLength", event ->
+                    clEnqueueReadBuffer(commandQueue, shadowQueueLength, CL_FALSE, 0, Sizeof.cl_int,
+                            Pointer.to(state.lengthStaging).withByteOffset(Sizeof.cl_int), 0, null, event));
+        }
+        profiler.profile(EventProfiler.Type.READ, "read queueLength", event ->
+                clEnqueueReadBuffer(commandQueue, queueLength, CL_TRUE, 0, Sizeof.cl_int,
+                        Pointer.to(state.lengthStaging), 0, null, event));
+
+        // The reads complete in order, so the shadow queue length was read with the path queue length
+        state.liveLength = state.lengthStaging.getInt(0);
+        state.shadowLength = shadowQueueLength != null ? state.lengthStaging.getInt(Sizeof.cl_int) : 0;
+    }
+
+    /**
+     * Get the path tracing program compiled for a render configuration. The configuration is passed as -D build
+     * options so the compiler can drop the entity and sun sampling paths and size the bounce stacks. Variants are
+     * kept in memory and the binaries are cached on disk by the KernelLoader.
+     */
+    private ProgramVariant getVariant(int rayDepth, boolean drawEntities, boolean sunSampling, boolean countRays) {
+        // Cap max bounces at 23 to match the rayTracer kernel
+        String options = String.format("%s -D MAX_BOUNCES=%d -D DRAW_ENTITIES=%d -D SUN_SAMPLING=%d",
+                buildOptions, Math.max(0, Math.min(rayDepth, 23)), drawEntities ? 1 : 0, sunSampling ? 1 : 0).trim();
+        if (countRays) {
+            options += " -D COUNT_RAYS";
+        }
+
+        ProgramVariant variant = variants.get(options);
+        if (variant == null) {
+            variant = new ProgramVariant(options);
+            if (octreeData != null) variant.bindScene();
+            variants.put(options, variant);
+        }
+        return variant;
+    }
+
+    private void setBufferInt(cl_mem buffer, int value) {
+        profiler.profile(EventProfiler.Type.FILL, "fill counter", event ->
+                clEnqueueFillBuffer(commandQueue, buffer, Pointer.to(new int[] {value}), Sizeof.cl_int, 0,
+                        Sizeof.cl_int, 0, null, event));
+    }
+
+    private static float[] getSunPosition(Sun sun) {
         float[] sunPos = new float[3];
         float sunR = (float) FastMath.abs(FastMath.cos(sun.getAltitude()));
         sunPos[0] = (float) (FastMath.cos(sun.getAzimuth()) * sunR);
         sunPos[1] = (float) (FastMath.sin(sun.getAltitude()));
         sunPos[2] = (float) (FastMath.sin(sun.getAzimuth()) * sunR);
+        return sunPos;
+    }
 
-        // Transfer arguments to GPU memory
-        cl_mem clRayPos = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                (long) Sizeof.cl_float * rayPos.length, Pointer.to(rayPos), null);
-        cl_mem clRayDepth = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_int, Pointer.to(new int[] {rayDepth}), null);
-        cl_mem clSunPos = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_float * 3, Pointer.to(sunPos), null);
-        cl_mem clSunIntensity = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_float, Pointer.to(new float[] {(float) sun.getIntensity()}), null);
-        cl_mem clDrawDepth = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_int, Pointer.to(new int[] {drawDepth}), null);
-        cl_mem clDrawEntities = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_int, Pointer.to(new int[] {drawEntities ? 1 : 0}), null);
-        cl_mem clSunSampling = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_int, Pointer.to(new int[] {sunSampling ? 1 : 0}), null);
-        cl_mem clSeed = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_int, Pointer.to(new int[]{random.nextInt()}), null);
-
-        // Set the arguments
-        cl_mem[] arguments = {clRayPos, cache.clRayDirs, cache.clRayJitter, octreeDepth, octreeData, voxelLength, transparentArray, transparentLength,
-                blockTextures, blockData, clSeed, clRayDepth, clSunPos, sunIndex, clSunIntensity, skyTexture, grassTextures, foliageTextures,
-                entityData, entityTrigs, bvhTextures, clDrawEntities, clSunSampling, clDrawDepth, cache.clRayRes};
-        for (int i = 0; i < arguments.length; i++) {
-            clSetKernelArg(pathTracerKernel, i, Sizeof.cl_mem, Pointer.to(arguments[i]));
-        }
-
-        // Execute the program
-        clEnqueueNDRangeKernel(commandQueue, pathTracerKernel, 1, null, new long[]{rayRes.length/3},
-                null, 0, null, null);
+    /**
+     * Measure the octree traversal cost by tracing the primary rays of the cache a number of times.
+     * The result is logged and used to compare traversal changes.
+     *
+     * @return The average time per octree step in nanoseconds
+     */
+    public double measureOctree(RayTraceCache cache, Vector3 origin, int drawDepth, int iterations) {
+        int rays = cache.length / 3;
+        cl_mem clSteps = clCreateBuffer(context, CL_MEM_WRITE_ONLY, (long) Sizeof.cl_int * rays, null, null);
+
+        int index = SCENE_ARGUMENTS;
+        setFloat4Arg(octreeStatsKernel, index++, (float) origin.x, (float) origin.y, (float) origin.z);
+        setIntArg(octreeStatsKernel, index++, drawDepth);
+        clSetKernelArg(octreeStatsKernel, index++, Sizeof.cl_mem, Pointer.to(cache.clCamera));
+        clSetKernelArg(octreeStatsKernel, index++, Sizeof.cl_mem, Pointer.to(cache.clRayDirs));
+        clSetKernelArg(octreeStatsKernel, index, Sizeof.cl_mem, Pointer.to(clSteps));
+
+        // Warm up once, then time the traversal
+        profiler.profile(EventProfiler.Type.KERNEL, "octreeStats", event ->
+                clEnqueueNDRangeKernel(commandQueue, octreeStatsKernel, 1, null, new long[] {rays}, null, 0, null,
+                        event));
+        clFinish(commandQueue);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            profiler.profile(EventProfiler.Type.KERNEL, "octreeStats", event ->
+                    clEnqueueNDRangeKernel(commandQueue, octreeStatsKernel, 1, null, new long[] {rays}, null, 0, null,
+                            event));
+        }
+        clFinish(commandQueue);
+        long time = System.nanoTime() - start;
+
+        int[] steps = new int[rays];
+        profiler.profile(EventProfiler.Type.READ, "read steps", event ->
+                clEnqueueReadBuffer(commandQueue, clSteps, CL_TRUE, 0, (long) Sizeof.cl_int * rays, Pointer.to(steps),
+                        0, null, event));
+        clReleaseMemObject(clSteps);
+
+        long totalSteps = 0;
+        int maxSteps = 0;
+        for (int step : steps) {
+            totalSteps += step;
+            maxSteps = Math.max(maxSteps, step);
+        }
 
-        // Get the results
-        try {
-            clEnqueueReadBuffer(commandQueue, cache.clRayRes, CL_TRUE, 0, (long) Sizeof.cl_float * rayRes.length,
-                    Pointer.to(rayRes), 0, null, null);
-        } catch (CLException e) {
-            throw e;
+        double nsPerStep = totalSteps == 0 ? 0 : (double) time / iterations / totalSteps;
+        Log.infof("Octree traversal: %.1f steps per ray (max %d), %.3f ms per frame, %.3f ns per step",
+                (double) totalSteps / rays, maxSteps, time / 1e6 / iterations, nsPerStep);
+        return nsPerStep;
+    }
+
+    /**
+     * Copy the running average on the device into a sample buffer. This is the only point where samples
+     * are transferred back to the host.
+     *
+     * @return The number of samples per pixel in the copied buffer
+     */
+    public int syncSamples(RayTraceCache cache, double[] sampleBuffer) {
+        readSamples(cache);
+        return copySamples(cache, sampleBuffer);
+    }
+
+    /**
+     * Read the device running average into the first staging buffer of the cache. Must not be mixed with
+     * frames from {@link #enqueueFrame}.
+     */
+    public void readSamples(RayTraceCache cache) {
+        profiler.profile(EventProfiler.Type.READ, "read sampleBuffer", event ->
+                clEnqueueReadBuffer(commandQueue, cache.clSampleBuffer, CL_TRUE, 0,
+                        (long) Sizeof.cl_float * cache.length, Pointer.to(cache.getSampleStaging(0)), 0, null, event));
+    }
+
+    /**
+     * Copy the samples read by {@link #readSamples(RayTraceCache)} into a sample buffer.
+     *
+     * @return The samples per pixel of the copied samples
+     */
+    public int copySamples(RayTraceCache cache, double[] sampleBuffer) {
+        copyStaging(cache.getSampleStaging(0), sampleBuffer, cache.length);
+        return cache.spp;
+    }
+
+    private static void copyStaging(ByteBuffer buffer, double[] sampleBuffer, int length) {
+        FloatBuffer staging = buffer.asFloatBuffer();
+        Chunky.getCommonThreads().submit(() -> IntStream.range(0, length).parallel().forEach(i ->
+                sampleBuffer[i] = staging.get(i))).join();
+    }
+
+    /**
+     * Read the finalized image and, if needed, the running average back without blocking. The reads are queued
+     * behind the samples enqueued so far, so the next batch can be enqueued right away and traced while the host
+     * consumes this frame with {@link PendingFrame#finish}. Frames must be finished in the order they were
+     * enqueued and at most {@value #FRAME_SLOTS} can be pending.
+     *
+     * @param errorMap Draw the adaptive sampling error instead of the post processed image
+     * @param readSamples Read the running average even if the image is finalized on the device
+     */
+    public PendingFrame enqueueFrame(RayTraceCache cache, Scene scene, boolean errorMap, boolean readSamples) {
+        int slot = cache.nextSlot;
+        if (cache.frames[slot] != null) {
+            throw new IllegalStateException("Too many pending frames.");
+        }
+        cache.nextSlot = (slot + 1) % FRAME_SLOTS;
+
+        boolean finalized = errorMap ? enqueueErrorMap(cache) : enqueuePostProcess(cache, scene);
+
+        // Non-blocking reads need direct buffers, which stay alive with the cache
+        // The samples are only needed on the host for CPU post processing, snapshots and render dumps
+        PendingFrame frame = new PendingFrame(cache, slot, cache.spp, finalized, readSamples || !finalized);
+        if (frame.samplesRead != null) {
+            clEnqueueReadBuffer(commandQueue, cache.clSampleBuffer, CL_FALSE, 0,
+                    (long) Sizeof.cl_float * cache.length, Pointer.to(cache.getSampleStaging(slot)), 0, null,
+                    frame.samplesRead);
+        }
+        if (finalized) {
+            clEnqueueReadBuffer(commandQueue, cache.clImage, CL_FALSE, 0, (long) Sizeof.cl_int * (cache.length / 3),
+                    Pointer.to(cache.getImageStaging(slot)), 0, null, frame.imageRead);
+        }
+        clFlush(commandQueue);
+
+        cache.frames[slot] = frame;
+        return frame;
+    }
+
+    /**
+     * A frame which is being read back from the device, see {@link #enqueueFrame}.
+     */
+    public class PendingFrame {
+        private final RayTraceCache cache;
+        private final int slot;
+        private final int spp;
+        private final boolean finalized;
+        private final cl_event samplesRead;
+        private final cl_event imageRead;
+
+        private PendingFrame(RayTraceCache cache, int slot, int spp, boolean finalized, boolean readSamples) {
+            this.cache = cache;
+            this.slot = slot;
+            this.spp = spp;
+            this.finalized = finalized;
+            this.samplesRead = readSamples ? new cl_event() : null;
+            this.imageRead = finalized ? new cl_event() : null;
+        }
+
+        /**
+         * @return true if the image was finalized on the device, otherwise the samples must be post processed
+         */
+        public boolean isFinalized() {
+            return finalized;
+        }
+
+        /**
+         * @return true if the frame includes the samples, otherwise the sample buffer is left as it is
+         */
+        public boolean hasSamples() {
+            return samplesRead != null;
+        }
+
+        /**
+         * Wait for the reads and copy the frame into the sample buffer, if it was read, and the back buffer, if
+         * finalized.
+         *
+         * @return The samples per pixel of the frame
+         */
+        public int finish(double[] sampleBuffer, int[] backBuffer) {
+            if (samplesRead != null) {
+                clWaitForEvents(1, new cl_event[] {samplesRead});
+                profiler.record(EventProfiler.Type.READ, "read sampleBuffer", samplesRead);
+                clReleaseEvent(samplesRead);
+                copyStaging(cache.getSampleStaging(slot), sampleBuffer, cache.length);
+            }
+
+            if (finalized) {
+                clWaitForEvents(1, new cl_event[] {imageRead});
+                profiler.record(EventProfiler.Type.READ, "read image", imageRead);
+                clReleaseEvent(imageRead);
+                IntBuffer image = cache.getImageStaging(slot).asIntBuffer();
+                image.get(backBuffer, 0, Math.min(backBuffer.length, image.remaining()));
+            }
+
+            cache.frames[slot] = null;
+            return spp;
+        }
+
+        /**
+         * Wait for the reads without using the frame.
+         */
+        public void discard() {
+            if (samplesRead != null) {
+                clWaitForEvents(1, new cl_event[] {samplesRead});
+                clReleaseEvent(samplesRead);
+            }
+            if (finalized) {
+                clWaitForEvents(1, new cl_event[] {imageRead});
+                clReleaseEvent(imageRead);
+            }
+            cache.frames[slot] = null;
+        }
+    }
+
+    /**
+     * Wait for all enqueued commands to finish.
+     */
+    public void finish() {
+        clFinish(commandQueue);
+    }
+
+    public String getDeviceName() {
+        return getString(devices[deviceIndex], CL_DEVICE_NAME);
+    }
+
+    /**
+     * Get the device memory allocated for the scene and a cache.
+     */
+    public long getDeviceMemory(RayTraceCache cache) {
+        long total = 0;
+        for (long bytes : getMemoryUsage(cache).values()) {
+            total += bytes;
         }
+        return total;
+    }
 
-        // Clean up
-        cl_mem[] releases = {clRayPos, clRayDepth, clSunPos, clSunIntensity, clDrawDepth, clDrawEntities, clSeed};
-        Arrays.stream(releases).forEach(CL::clReleaseMemObject);
+    /**
+     * Get the device memory of every resource of the scene and a cache in bytes.
+     *
+     * @param cache The cache, or null for the scene only
+     */
+    public Map<String, Long> getMemoryUsage(RayTraceCache cache) {
+        Map<String, Long> usage = new LinkedHashMap<>();
+        usage.put("octree", octreePages != null ?
+                getMemSize(octreeData, octreePages.pageTable, octreePages.feedback) : getMemSize(octreeData));
+        usage.put("textures", getMemSize(blockTextures));
+        usage.put("blockData", getMemSize(blockData));
+        usage.put("sky", getMemSize(skyTexture));
+        usage.put("tints", getMemSize(tintPages, tintTiles));
+        usage.put("entities", getMemSize(entityData, entityTrigs, bvhTextures));
+        usage.put("preview", getMemSize(previewCamera, previewRayDirs, previewRes));
+        if (cache != null) {
+            usage.put("camera", getMemSize(cache.clCamera, cache.clRayDirs, cache.clRayJitter));
+            usage.put("samples", getMemSize(cache.clRayRes, cache.clSampleBuffer, cache.clMergeBuffer, cache.clImage,
+                    cache.clRayCounts, cache.clRetry));
+            usage.put("adaptive", getMemSize(cache.clMask, cache.clResSquares, cache.clSquareBuffer,
+                    cache.clPixelSamples, cache.clSquareSamples, cache.clError, cache.clActivePixels));
+            WavefrontState state = cache.wavefrontState;
+            usage.put("wavefront", state != null ? getMemSize(state.getBuffers()) : 0L);
+        }
+        return usage;
+    }
+
+    /** Get the total size of memory objects, ignoring null objects. */
+    private static long getMemSize(cl_mem... buffers) {
+        long total = 0;
+        long[] size = new long[1];
+        for (cl_mem buffer : buffers) {
+            if (buffer == null) continue;
+            clGetMemObjectInfo(buffer, CL_MEM_SIZE, Sizeof.size_t, Pointer.to(size), null);
+            total += size[0];
+        }
+        return total;
+    }
 
-        return rayRes;
+    /**
+     * Post process the device running average directly into the scene back buffer.
+     *
+     * @return false if the post processing filter of the scene is not supported on the GPU
+     */
+    public boolean postProcess(RayTraceCache cache, Scene scene) {
+        if (!enqueuePostProcess(cache, scene)) return false;
+
+        int[] backBuffer = scene.getBackBuffer().data;
+        profiler.profile(EventProfiler.Type.READ, "read image", event ->
+                clEnqueueReadBuffer(commandQueue, cache.clImage, CL_TRUE, 0, (long) Sizeof.cl_int * backBuffer.length,
+                        Pointer.to(backBuffer), 0, null, event));
+        return true;
     }
 
-    public RayTraceCache createCache(float[] rayDirs, float[] rayJitter) {
-        return new RayTraceCache(rayDirs, rayJitter);
+    private boolean enqueuePostProcess(RayTraceCache cache, Scene scene) {
+        int filter = getFilterId(scene.getPostProcessingFilter());
+        if (filter < 0) return false;
+
+        clSetKernelArg(postProcessKernel, 0, Sizeof.cl_mem, Pointer.to(cache.clSampleBuffer));
+        clSetKernelArg(postProcessKernel, 1, Sizeof.cl_mem, Pointer.to(cache.clImage));
+        setIntArg(postProcessKernel, 2, filter);
+        clSetKernelArg(postProcessKernel, 3, Sizeof.cl_float, Pointer.to(new float[] {(float) scene.getExposure()}));
+        profiler.profile(EventProfiler.Type.KERNEL, "postProcess", event ->
+                clEnqueueNDRangeKernel(commandQueue, postProcessKernel, 1, null, new long[] {cache.length / 3}, null, 0,
+                        null, event));
+        return true;
+    }
+
+    /**
+     * Draw the adaptive sampling error of every pixel as a heat map into the back buffer of the scene.
+     *
+     * @return false if adaptive sampling is not enabled for the cache
+     */
+    public boolean errorMap(RayTraceCache cache, Scene scene) {
+        if (!enqueueErrorMap(cache)) return false;
+
+        int[] backBuffer = scene.getBackBuffer().data;
+        profiler.profile(EventProfiler.Type.READ, "read image", event ->
+                clEnqueueReadBuffer(commandQueue, cache.clImage, CL_TRUE, 0, (long) Sizeof.cl_int * backBuffer.length,
+                        Pointer.to(backBuffer), 0, null, event));
+        return true;
+    }
+
+    private boolean enqueueErrorMap(RayTraceCache cache) {
+        if (!cache.adaptive) return false;
+
+        clSetKernelArg(errorMapKernel, 0, Sizeof.cl_mem, Pointer.to(cache.clError));
+        clSetKernelArg(errorMapKernel, 1, Sizeof.cl_mem, Pointer.to(cache.clImage));
+        clSetKernelArg(errorMapKernel, 2, Sizeof.cl_float, Pointer.to(new float[] {cache.threshold}));
+        profiler.profile(EventProfiler.Type.KERNEL, "errorMap", event ->
+                clEnqueueNDRangeKernel(commandQueue, errorMapKernel, 1, null, new long[] {cache.length / 3}, null, 0,
+                        null, event));
+        return true;
+    }
+
+    /**
+     * Get the kernel id of a post processing filter. Only the exact Chunky filter classes are matched so
+     * that subclasses from other plugins are processed on the CPU.
+     *
+     * @return The filter id or -1 if the filter is not supported on the GPU
+     */
+    private static int getFilterId(PostProcessingFilter filter) {
+        Class<?> filterClass = filter.getClass();
+        if (filterClass == NoneFilter.class) return FILTER_NONE;
+        if (filterClass == GammaCorrectionFilter.class) return FILTER_GAMMA;
+        if (filterClass == Tonemap1Filter.class) return FILTER_TONEMAP1;
+        if (filterClass == ACESFilmicFilter.class) return FILTER_ACES;
+        if (filterClass == HableToneMappingFilter.class) return FILTER_HABLE;
+        return -1;
+    }
+
+    /**
+     * Create the buffers to render the camera rays. The rays must have been created with jitter.
+     */
+    public RayTraceCache createCache(CameraRays rays) {
+        return new RayTraceCache(rays);
     }
 
     public class RayTraceCache {
+        // Camera parameters, and the ray directions if they are generated on the host
+        protected cl_mem clCamera;
         protected cl_mem clRayDirs;
         protected cl_mem clRayJitter;
         protected cl_mem clRayRes;
+        protected cl_mem clSampleBuffer;
+        protected cl_mem clImage;
+        protected cl_mem clMergeBuffer = null;
         protected int length;
 
-        protected RayTraceCache(float[] rayDirs, float[] rayJitter) {
-            clRayDirs = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                    (long) Sizeof.cl_float * rayDirs.length, Pointer.to(rayDirs), null);
-            clRayJitter = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                    (long) Sizeof.cl_float * rayJitter.length, Pointer.to(rayJitter), null);
-            clRayRes = clCreateBuffer(context, CL_MEM_WRITE_ONLY,
-                    (long) Sizeof.cl_float * rayDirs.length, null, null);
+        // Direct staging buffers of the frames read back from the device, allocated on first use
+        protected final ByteBuffer[] sampleStaging = new ByteBuffer[FRAME_SLOTS];
+        protected final ByteBuffer[] imageStaging = new ByteBuffer[FRAME_SLOTS];
+        protected final PendingFrame[] frames = new PendingFrame[FRAME_SLOTS];
+        protected int nextSlot = 0;
+
+        // Adaptive sampling mask and squared luminance sums, every pixel is sampled unless adaptive sampling is enabled
+        protected cl_mem clMask;
+        protected cl_mem clResSquares;
+
+        // Adaptive sampling state, allocated by enableAdaptive
+        protected boolean adaptive = false;
+        protected cl_mem clSquareBuffer = null;
+        protected cl_mem clPixelSamples = null;
+        protected cl_mem clSquareSamples = null;
+        protected cl_mem clError = null;
+        protected cl_mem clActivePixels = null;
+        protected float threshold;
+        protected int minSamples;
+        protected int maxSamples;
+        protected int activePixels;
+        protected long tracedSamples;
+        // Count of active pixels being read back, null if no read is pending
+        protected cl_event activePixelsRead = null;
+        protected final ByteBuffer activePixelsStaging = ByteBuffer.allocateDirect(Sizeof.cl_int)
+                .order(ByteOrder.nativeOrder());
+
+        /** Number of samples in the accumulation buffer which have not been merged. */
+        protected int samples = 0;
+
+        /** Number of samples per pixel in the running average sample buffer. */
+        protected int spp = 0;
+
+        /** Path state of the wavefront path tracer, allocated on first use. */
+        protected WavefrontState wavefrontState = null;
+
+        // Traced rays per pixel, only allocated for the pixels by enableRayCounting
+        protected boolean countRays = false;
+        protected cl_mem clRayCounts;
+
+        // Pixels to trace again for missing octree pages, allocated on first use by a paged octree
+        protected cl_mem clRetry = null;
+
+        protected RayTraceCache(CameraRays rays) {
+            this.length = rays.getPixels() * 3;
+
+            clCamera = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
+                    (long) Sizeof.cl_float * CameraRays.PARAMETERS, Pointer.to(rays.parameters), null);
+            if (rays.isOnDevice()) {
+                // Unused by the kernels
+                clRayDirs = clCreateBuffer(context, CL_MEM_READ_ONLY, Sizeof.cl_float, null, null);
+                clRayJitter = clCreateBuffer(context, CL_MEM_READ_ONLY, Sizeof.cl_float, null, null);
+            } else {
+                if (rays.jitterDirs == null) throw new IllegalArgumentException("Camera rays without jitter.");
+                clRayDirs = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
+                        (long) Sizeof.cl_float * length, Pointer.to(rays.rayDirs), null);
+                clRayJitter = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
+                        (long) Sizeof.cl_float * length, Pointer.to(rays.jitterDirs), null);
+            }
+            clRayRes = clCreateBuffer(context, CL_MEM_READ_WRITE,
+                    (long) Sizeof.cl_float * length, null, null);
+            clSampleBuffer = clCreateBuffer(context, CL_MEM_READ_WRITE,
+                    (long) Sizeof.cl_float * length, null, null);
+            clImage = clCreateBuffer(context, CL_MEM_WRITE_ONLY,
+                    (long) Sizeof.cl_int * (length / 3), null, null);
+
+            cl_mem[] clears = {clRayRes, clSampleBuffer};
+            for (cl_mem clear : clears) {
+                profiler.profile(EventProfiler.Type.FILL, "fill samples", event ->
+                        clEnqueueFillBuffer(commandQueue, clear, Pointer.to(new float[] {0}), Sizeof.cl_float, 0,
+                                (long) Sizeof.cl_float * length, 0, null, event));
+            }
+
+            int pixels = length / 3;
+            clMask = createPixelBuffer(1);
+            clResSquares = createPixelBuffer(0);
+            clRayCounts = clCreateBuffer(context, CL_MEM_READ_WRITE, Sizeof.cl_int, null, null);
+            this.activePixels = pixels;
+        }
+
+        private cl_mem createPixelBuffer(int value) {
+            cl_mem buffer = clCreateBuffer(context, CL_MEM_READ_WRITE, (long) Sizeof.cl_int * (length / 3),
+                    null, null);
+            profiler.profile(EventProfiler.Type.FILL, "fill pixels", event ->
+                    clEnqueueFillBuffer(commandQueue, buffer, Pointer.to(new int[] {value}), Sizeof.cl_int, 0,
+                            (long) Sizeof.cl_int * (length / 3), 0, null, event));
+            return buffer;
+        }
+
+        /**
+         * Enable adaptive sampling. Pixels are only sampled until the relative standard error of their luminance
+         * drops below the threshold, after at least minSamples samples, or they reach maxSamples samples. Call
+         * after the starting samples have been uploaded.
+         */
+        public void enableAdaptive(float threshold, int minSamples, int maxSamples) {
+            boolean changed = adaptive && (threshold != this.threshold || minSamples != this.minSamples ||
+                    maxSamples != this.maxSamples);
+            if (!adaptive) {
+                clSquareBuffer = createPixelBuffer(0);
+                clPixelSamples = createPixelBuffer(spp);
+                clSquareSamples = createPixelBuffer(0);
+                clError = createPixelBuffer(0);
+                clActivePixels = clCreateBuffer(context, CL_MEM_READ_WRITE, Sizeof.cl_int, null, null);
+                tracedSamples = (long) spp * (length / 3);
+                adaptive = true;
+            }
+            this.threshold = threshold;
+            this.minSamples = minSamples;
+            this.maxSamples = maxSamples;
+
+            // A cache which is rendered again keeps its mask, which is updated for the new settings. The merge
+            // only updates the mask when there are no unmerged samples.
+            if (changed && samples == 0) {
+                mergeAdaptive(this);
+                finishActivePixels();
+            }
+        }
 
-            this.length = rayDirs.length;
+        /**
+         * Count the traced rays of every pixel. The kernels are built with COUNT_RAYS, which costs a global write
+         * per pixel, so this is only used for benchmarks.
+         */
+        public void enableRayCounting() {
+            if (!countRays) {
+                clReleaseMemObject(clRayCounts);
+                clRayCounts = createPixelBuffer(0);
+                countRays = true;
+            }
+        }
+
+        /** Total number of rays traced since ray counting was enabled. */
+        public long getRayCount() {
+            if (!countRays) return 0;
+
+            int[] counts = new int[length / 3];
+            profiler.profile(EventProfiler.Type.READ, "read rayCounts", event ->
+                    clEnqueueReadBuffer(commandQueue, clRayCounts, CL_TRUE, 0, (long) Sizeof.cl_int * counts.length,
+                            Pointer.to(counts), 0, null, event));
+            long total = 0;
+            for (int count : counts) {
+                total += count;
+            }
+            return total;
+        }
+
+        /**
+         * Number of pixels which are sampled by the next batch. With adaptive sampling this is the count of the
+         * second to last merge, the count of the last merge is still being read back.
+         */
+        public int getActivePixels() {
+            return activePixels;
+        }
+
+        /**
+         * Wait for the pending read of the active pixel count.
+         */
+        protected void finishActivePixels() {
+            if (activePixelsRead == null) return;
+            clWaitForEvents(1, new cl_event[] {activePixelsRead});
+            profiler.record(EventProfiler.Type.READ, "read activePixels", activePixelsRead);
+            clReleaseEvent(activePixelsRead);
+            activePixelsRead = null;
+            activePixels = activePixelsStaging.getInt(0);
+        }
+
+        /** Number of samples accumulated on the device since the last merge. */
+        public int getSamples() {
+            return samples;
+        }
+
+        /** Number of samples per pixel in the device running average. */
+        public int getSpp() {
+            return spp;
+        }
+
+        protected ByteBuffer getSampleStaging(int slot) {
+            if (sampleStaging[slot] == null) {
+                sampleStaging[slot] = ByteBuffer.allocateDirect(Sizeof.cl_float * length)
+                        .order(ByteOrder.nativeOrder());
+            }
+            return sampleStaging[slot];
+        }
+
+        protected ByteBuffer getImageStaging(int slot) {
+            if (imageStaging[slot] == null) {
+                imageStaging[slot] = ByteBuffer.allocateDirect(Sizeof.cl_int * (length / 3))
+                        .order(ByteOrder.nativeOrder());
+            }
+            return imageStaging[slot];
+        }
+
+        protected WavefrontState getWavefrontState() {
+            if (wavefrontState == null) {
+                wavefrontState = new WavefrontState(length / 3);
+            }
+            return wavefrontState;
         }
 
         public void release() {
+            // Pending reads write into the staging buffers, which must stay alive until they complete
+            for (PendingFrame frame : frames) {
+                if (frame != null) {
+                    frame.discard();
+                }
+            }
+            finishActivePixels();
+            if (wavefrontState != null) {
+                wavefrontState.release();
+            }
+            clReleaseMemObject(clCamera);
             clReleaseMemObject(clRayDirs);
             clReleaseMemObject(clRayJitter);
             clReleaseMemObject(clRayRes);
-        }
-    }
-
-    private void packPrimitives(Primitive[] primitives, FloatArrayList trigs, IntArrayList textures, Map<Material, Integer> indexes) {
-        for (Primitive prim : primitives) {
-            if (prim instanceof TexturedTriangle) {
-                TexturedTriangle triangle = (TexturedTriangle) prim;
-                trigs.add(0);   // Textured triangle = ID 0
-                packAabb(triangle.bounds, trigs);   // 1-6
-                trigs.add((float) triangle.e1.x);   // 7
-                trigs.add((float) triangle.e1.y);
-                trigs.add((float) triangle.e1.z);
-                trigs.add((float) triangle.e2.x);   // 10
-                trigs.add((float) triangle.e2.y);
-                trigs.add((float) triangle.e2.z);
-                trigs.add((float) triangle.o.x);    // 13
-                trigs.add((float) triangle.o.y);
-                trigs.add((float) triangle.o.z);
-                trigs.add((float) triangle.n.x);    // 16
-                trigs.add((float) triangle.n.y);
-                trigs.add((float) triangle.n.z);
-                trigs.add((float) reflectTriangleDouble(triangle, "t1u"));   // 19
-                trigs.add((float) reflectTriangleDouble(triangle, "t1v"));
-                trigs.add((float) reflectTriangleDouble(triangle, "t2u"));   // 21
-                trigs.add((float) reflectTriangleDouble(triangle, "t2v"));
-                trigs.add((float) reflectTriangleDouble(triangle, "t3u"));   // 23
-                trigs.add((float) reflectTriangleDouble(triangle, "t3v"));
-                trigs.add(triangle.doubleSided ? 1 : 0);    // 25
-                trigs.add((float) triangle.material.getTexture(0).getWidth());  // 26
-                trigs.add((float) triangle.material.getTexture(0).getHeight()); // 27
-                trigs.add(triangle.material.emittance);     // 28
-
-                if (!indexes.containsKey(triangle.material)) {
-                    indexes.put(triangle.material, textures.size());
-                    textures.addAll(IntList.of(triangle.material.getTexture(0).getBitmap().data));
+            clReleaseMemObject(clSampleBuffer);
+            clReleaseMemObject(clImage);
+            if (clMergeBuffer != null) {
+                clReleaseMemObject(clMergeBuffer);
+            }
+            clReleaseMemObject(clMask);
+            clReleaseMemObject(clResSquares);
+            clReleaseMemObject(clRayCounts);
+            if (clRetry != null) {
+                clReleaseMemObject(clRetry);
+            }
+            if (adaptive) {
+                cl_mem[] buffers = {clSquareBuffer, clPixelSamples, clSquareSamples, clError, clActivePixels};
+                for (cl_mem buffer : buffers) {
+                    clReleaseMemObject(buffer);
                 }
-
-                trigs.add(indexes.get(triangle.material));  // 29
             }
         }
     }
 
-    void packAabb(AABB box, FloatArrayList array) {
-        array.add((float) box.xmin);
-        array.add((float) box.xmax);
-        array.add((float) box.ymin);
-        array.add((float) box.ymax);
-        array.add((float) box.zmin);
-        array.add((float) box.zmax);
-    }
-
     /** Get a string from OpenCL
      * Based on code from https://github.com/gpu/JOCLSamples/
      * List of available parameter names: https://www.khronos.org/registry/OpenCL/sdk/1.2/docs/man/xhtml/clGetDeviceInfo.html
@@ -852,14 +2253,270 @@ public class GpuRayTracer {
         return values;
     }
 
-    private static double reflectTriangleDouble(TexturedTriangle triangle, String field) {
-        try {
-            Field f = triangle.getClass().getDeclaredField(field);
-            f.setAccessible(true);
-            return (double) f.get(triangle);
-        } catch (NoSuchFieldException | IllegalAccessException e) {
-            Log.error(e);
-            return 0;
+    /**
+     * Device buffers of the wavefront path tracer. Path and hit data is indexed by pixel, the queues hold
+     * pixel indexes.
+     */
+    protected class WavefrontState {
+        protected cl_mem pathOrigin;
+        protected cl_mem pathDirection;
+        protected cl_mem pathThroughput;
+        protected cl_mem pathRadiance;
+        protected cl_mem pathRandom;
+        protected cl_mem hitNormal;
+        protected cl_mem hitColor;
+        protected cl_mem hitEmittance;
+        protected cl_mem[] queues = new cl_mem[2];
+        protected cl_mem[] queueLengths = new cl_mem[2];
+        protected cl_mem shadowQueue;
+        protected cl_mem shadowQueueLength;
+        protected cl_mem shadowOrigin;
+        protected cl_mem shadowDirection;
+        protected cl_mem shadowWeight;
+
+        // Queue lengths read back after every bounce, so the stages only launch the live paths
+        protected final ByteBuffer lengthStaging = ByteBuffer.allocateDirect(2 * Sizeof.cl_int)
+                .order(ByteOrder.nativeOrder());
+        protected int liveLength;
+        protected int shadowLength;
+
+        protected WavefrontState(int paths) {
+            long float4Size = (long) Sizeof.cl_float * 4 * paths;
+            long intSize = (long) Sizeof.cl_int * paths;
+
+            pathOrigin = clCreateBuffer(context, CL_MEM_READ_WRITE, float4Size, null, null);
+            pathDirection = clCreateBuffer(context, CL_MEM_READ_WRITE, float4Size, null, null);
+            pathThroughput = clCreateBuffer(context, CL_MEM_READ_WRITE, float4Size, null, null);
+            pathRadiance = clCreateBuffer(context, CL_MEM_READ_WRITE, float4Size, null, null);
+            pathRandom = clCreateBuffer(context, CL_MEM_READ_WRITE, intSize, null, null);
+            hitNormal = clCreateBuffer(context, CL_MEM_READ_WRITE, float4Size, null, null);
+            hitColor = clCreateBuffer(context, CL_MEM_READ_WRITE, float4Size, null, null);
+            hitEmittance = clCreateBuffer(context, CL_MEM_READ_WRITE, float4Size, null, null);
+            for (int i = 0; i < 2; i++) {
+                queues[i] = clCreateBuffer(context, CL_MEM_READ_WRITE, intSize, null, null);
+                queueLengths[i] = clCreateBuffer(context, CL_MEM_READ_WRITE, Sizeof.cl_int, null, null);
+            }
+            shadowQueue = clCreateBuffer(context, CL_MEM_READ_WRITE, intSize, null, null);
+            shadowQueueLength = clCreateBuffer(context, CL_MEM_READ_WRITE, Sizeof.cl_int, null, null);
+            shadowOrigin = clCreateBuffer(context, CL_MEM_READ_WRITE, float4Size, null, null);
+            shadowDirection = clCreateBuffer(context, CL_MEM_READ_WRITE, float4Size, null, null);
+            shadowWeight = clCreateBuffer(context, CL_MEM_READ_WRITE, float4Size, null, null);
+        }
+
+        protected cl_mem[] getBuffers() {
+            return new cl_mem[] {pathOrigin, pathDirection, pathThroughput, pathRadiance, pathRandom, hitNormal,
+                    hitColor, hitEmittance, queues[0], queues[1], queueLengths[0], queueLengths[1], shadowQueue,
+                    shadowQueueLength, shadowOrigin, shadowDirection, shadowWeight};
+        }
+
+        protected void release() {
+            for (cl_mem buffer : getBuffers()) {
+                clReleaseMemObject(buffer);
+            }
+        }
+    }
+
+    /**
+     * Pages of an octree which does not fit the device. The octree is split into pages of
+     * {@value MemoryBudget#OCTREE_PAGE_INTS} ints and a fixed number of them are resident in octreeData, found
+     * through a page table. Kernels request missing pages in a feedback buffer and mark the resident pages they
+     * read. After every pass the requested pages are loaded in place of the least recently used pages, and the
+     * samples which needed them are traced again with the same seed.
+     */
+    private class OctreePages {
+        // Feedback flags, must match OCTREE_PAGE_ in the kernel
+        private static final int USED = 1;
+        private static final int MISSING = 2;
+
+        /** Number of times the samples of a pixel range are traced again before the range is split. */
+        private static final int MAX_RETRIES = 4;
+
+        private final int[] treeData;
+        private final cl_mem pageTable;
+        private final cl_mem feedback;
+
+        // Slot of every page or -1, the host copy of the page table
+        private final int[] pages;
+        // Page in every slot or -1, and the feedback read after which it was last used
+        private final int[] slots;
+        private final long[] lastUsed;
+
+        private final int[] flags;
+        private final ByteBuffer staging = ByteBuffer.allocateDirect(MemoryBudget.OCTREE_PAGE_INTS * Sizeof.cl_int)
+                .order(ByteOrder.nativeOrder());
+        private long reads = 0;
+
+        private OctreePages(int[] treeData, int slotCount) {
+            this.treeData = treeData;
+            int pageCount = (treeData.length + MemoryBudget.OCTREE_PAGE_INTS - 1) / MemoryBudget.OCTREE_PAGE_INTS;
+            pages = new int[pageCount];
+            slots = new int[slotCount];
+            lastUsed = new long[slotCount];
+            flags = new int[pageCount];
+            Arrays.fill(pages, -1);
+            Arrays.fill(slots, -1);
+
+            pageTable = clCreateBuffer(context, CL_MEM_READ_ONLY, (long) Sizeof.cl_int * pageCount, null, null);
+            feedback = clCreateBuffer(context, CL_MEM_READ_WRITE, (long) Sizeof.cl_int * pageCount, null, null);
+            profiler.profile(EventProfiler.Type.FILL, "clear octree feedback", event ->
+                    clEnqueueFillBuffer(commandQueue, feedback, Pointer.to(new int[] {0}), Sizeof.cl_int, 0,
+                            (long) Sizeof.cl_int * pageCount, 0, null, event));
+
+            // Start with the first pages, which hold the top of the tree
+            for (int page = 0; page < Math.min(slotCount, pageCount); page++) {
+                load(page, page);
+            }
+            writePageTable();
+        }
+
+        /**
+         * Get the retry flags of a cache, cleared for a new pass.
+         */
+        private cl_mem getRetryBuffer(RayTraceCache cache) {
+            long size = (long) Sizeof.cl_int * cache.length / 3;
+            if (cache.clRetry == null) {
+                cache.clRetry = clCreateBuffer(context, CL_MEM_READ_WRITE, size, null, null);
+            }
+            profiler.profile(EventProfiler.Type.FILL, "clear retry", event ->
+                    clEnqueueFillBuffer(commandQueue, cache.clRetry, Pointer.to(new int[] {0}), Sizeof.cl_int, 0, size,
+                            0, null, event));
+            return cache.clRetry;
+        }
+
+        /**
+         * Trace the samples of a pass which needed missing pages again, until every sample saw the pages it
+         * needed. No sample of the pass is dropped, so every pixel gets the sample the merge counts. This waits
+         * for the pass, so paged octrees render without overlapping the host and the device.
+         *
+         * @param maskIndex Index of the pixel mask argument, the retry flags are passed as the mask
+         */
+        private void retry(cl_kernel kernel, int maskIndex, RayTraceCache cache) {
+            if (!stream()) return;
+            clSetKernelArg(kernel, maskIndex, Sizeof.cl_mem, Pointer.to(cache.clRetry));
+            retry(kernel, cache, 0, cache.length / 3);
+        }
+
+        /**
+         * Retry the samples of a pixel range. While the samples of the range need more pages than fit, the range
+         * is split so fewer pages are needed at once.
+         */
+        private void retry(cl_kernel kernel, RayTraceCache cache, long offset, long size) {
+            for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+                profiler.profile(EventProfiler.Type.KERNEL, "rayTracer retry", event ->
+                        clEnqueueNDRangeKernel(commandQueue, kernel, 1, new long[] {offset}, new long[] {size}, null,
+                                0, null, event));
+                if (!stream()) return;
+            }
+
+            if (size == 1) {
+                throw new IllegalStateException("A sample needs more octree pages than fit on " + getDeviceName() +
+                        ", lower the ray depth to render this scene.");
+            }
+            long half = size / 2;
+            retry(kernel, cache, offset, half);
+            retry(kernel, cache, offset + half, size - half);
+        }
+
+        /**
+         * Read the feedback of the kernels since the last read and load the requested pages. Pages used by the
+         * last kernels are not evicted.
+         *
+         * @return true if pages were missing
+         */
+        private boolean stream() {
+            long size = (long) Sizeof.cl_int * flags.length;
+            profiler.profile(EventProfiler.Type.READ, "read octree feedback", event ->
+                    clEnqueueReadBuffer(commandQueue, feedback, CL_TRUE, 0, size, Pointer.to(flags), 0, null, event));
+            profiler.profile(EventProfiler.Type.FILL, "clear octree feedback", event ->
+                    clEnqueueFillBuffer(commandQueue, feedback, Pointer.to(new int[] {0}), Sizeof.cl_int, 0, size, 0,
+                            null, event));
+            reads++;
+
+            IntArrayList missing = new IntArrayList();
+            for (int page = 0; page < flags.length; page++) {
+                if (flags[page] == MISSING) {
+                    missing.add(page);
+                } else if (flags[page] == USED && pages[page] >= 0) {
+                    lastUsed[pages[page]] = reads;
+                }
+            }
+            if (missing.isEmpty()) return false;
+
+            // Least recently used slots first, empty slots were never used
+            int[] victims = IntStream.range(0, slots.length).filter(slot -> lastUsed[slot] < reads).boxed()
+                    .sorted(Comparator.comparingLong(slot -> lastUsed[slot])).mapToInt(Integer::intValue).toArray();
+            for (int i = 0; i < Math.min(missing.size(), victims.length); i++) {
+                if (slots[victims[i]] >= 0) {
+                    pages[slots[victims[i]]] = -1;
+                }
+                load(missing.getInt(i), victims[i]);
+            }
+            writePageTable();
+            return true;
+        }
+
+        private void load(int page, int slot) {
+            fillOctreeSlice(staging, treeData, page * MemoryBudget.OCTREE_PAGE_INTS, MemoryBudget.OCTREE_PAGE_INTS);
+            if (layout.isBuffers()) {
+                long bytes = (long) Sizeof.cl_int * MemoryBudget.OCTREE_PAGE_INTS;
+                profiler.profile(EventProfiler.Type.WRITE, "write octree page", event ->
+                        clEnqueueWriteBuffer(commandQueue, octreeData, CL_TRUE, slot * bytes, bytes,
+                                Pointer.to(staging), 0, null, event));
+            } else {
+                // A page is a whole number of rows of the image
+                long rows = MemoryBudget.OCTREE_PAGE_INTS / (layout.width * 4L);
+                profiler.profile(EventProfiler.Type.WRITE, "write octree page", event ->
+                        clEnqueueWriteImage(commandQueue, octreeData, CL_TRUE, new long[] {0, slot * rows, 0},
+                                new long[] {layout.width, rows, 1}, 0, 0, Pointer.to(staging), 0, null, event));
+            }
+            slots[slot] = page;
+            pages[page] = slot;
+            lastUsed[slot] = reads;
+        }
+
+        private void writePageTable() {
+            profiler.profile(EventProfiler.Type.WRITE, "write octree page table", event ->
+                    clEnqueueWriteBuffer(commandQueue, pageTable, CL_TRUE, 0, (long) Sizeof.cl_int * pages.length,
+                            Pointer.to(pages), 0, null, event));
+        }
+
+        private void release() {
+            clReleaseMemObject(pageTable);
+            clReleaseMemObject(feedback);
+        }
+    }
+
+    /**
+     * Path tracing kernels compiled with a render configuration, see getVariant.
+     */
+    private class ProgramVariant {
+        private final cl_program program;
+        private final cl_kernel pathTracerKernel;
+        private final cl_kernel wavefrontExtendKernel;
+        private final cl_kernel wavefrontShadeKernel;
+        private final cl_kernel wavefrontShadowKernel;
+
+        private ProgramVariant(String options) {
+            program = KernelLoader.loadProgram(context, new cl_device_id[] { devices[deviceIndex] }, options);
+            pathTracerKernel = clCreateKernel(program, "rayTracer", null);
+            wavefrontExtendKernel = clCreateKernel(program, "wavefrontExtend", null);
+            wavefrontShadeKernel = clCreateKernel(program, "wavefrontShade", null);
+            wavefrontShadowKernel = clCreateKernel(program, "wavefrontShadow", null);
+        }
+
+        private void bindScene() {
+            bindSceneArguments(pathTracerKernel);
+            bindSceneArguments(wavefrontExtendKernel);
+            bindSceneArguments(wavefrontShadeKernel);
+            bindSceneArguments(wavefrontShadowKernel);
+        }
+
+        private void release() {
+            clReleaseKernel(pathTracerKernel);
+            clReleaseKernel(wavefrontExtendKernel);
+            clReleaseKernel(wavefrontShadeKernel);
+            clReleaseKernel(wavefrontShadowKernel);
+            clReleaseProgram(program);
         }
     }
 }
@@ -19,6 +19,7 @@ import se.llbit.log.Log;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.Arrays;
+import java.util.stream.Collectors;
 
 public class GpuSelector extends Stage {
     private Scene scene;
@@ -26,16 +27,20 @@ public class GpuSelector extends Stage {
     @SuppressWarnings("unchecked")
     public GpuSelector() {
         // Build scene
-        GpuRayTracer tracer = GpuRayTracer.getTracer();
-        ClDevice[] devices = new ClDevice[tracer.devices.length];
+        cl_device_id[] clDevices = GpuRayTracer.getDevices();
+        ClDevice[] devices = new ClDevice[clDevices.length];
         for (int i = 0; i < devices.length; i++) {
-            devices[i] = new ClDevice(tracer.devices[i], i);
+            devices[i] = new ClDevice(clDevices[i], i);
         }
 
         TableView<ClDevice> table = new TableView<>();
         table.setPrefWidth(433);
         table.setPrefHeight(200);
         table.setItems(FXCollections.observableList(Arrays.asList(devices)));
+        table.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+        for (int index : GpuRayTracer.getSelectedDevices()) {
+            if (index >= 0 && index < devices.length) table.getSelectionModel().select(index);
+        }
 
         TableColumn<ClDevice, String> nameCol = new TableColumn<>("Device Name");
         nameCol.setCellValueFactory(dev -> new SimpleStringProperty(dev.getValue().name));
@@ -50,7 +55,7 @@ public class GpuSelector extends Stage {
         box.setSpacing(10);
         box.setPadding(new Insets(10));
 
-        box.getChildren().add(new Label("Select OpenCL device to use:"));
+        box.getChildren().add(new Label("Select OpenCL devices to use. The first device holds the render:"));
         box.getChildren().add(table);
 
         HBox buttons = new HBox();
@@ -61,12 +66,16 @@ public class GpuSelector extends Stage {
         cancelButton.setOnMouseClicked(event -> this.close());
         buttons.getChildren().add(cancelButton);
 
-        Button selectButton = new Button("Select Device");
+        Button selectButton = new Button("Select Devices");
         selectButton.setDefaultButton(true);
         selectButton.setTooltip(new Tooltip("Restart Chunky for changes to take effect."));
         selectButton.setOnMouseClicked(event -> {
             if (!table.getSelectionModel().isEmpty()) {
-                PersistentSettings.settings.setInt("clDevice", table.getSelectionModel().getSelectedItem().index);
+                int[] selected = table.getSelectionModel().getSelectedItems().stream()
+                        .mapToInt(device -> device.index).sorted().toArray();
+                PersistentSettings.settings.setInt("clDevice", selected[0]);
+                PersistentSettings.settings.setString("clDevices", Arrays.stream(selected)
+                        .mapToObj(Integer::toString).collect(Collectors.joining(",")));
                 PersistentSettings.save();
                 this.close();
             }
@@ -78,7 +87,7 @@ public class GpuSelector extends Stage {
         scene = new Scene(box);
 
         // Apply scene
-        this.setTitle("Select OpenCL Device");
+        this.setTitle("Select OpenCL Devices");
         this.setScene(scene);
     }
 
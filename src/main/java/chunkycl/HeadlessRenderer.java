@@ -0,0 +1,351 @@
+package chunkycl;
+
+import se.llbit.chunky.main.Chunky;
+import se.llbit.chunky.main.ChunkyOptions;
+import se.llbit.chunky.renderer.RenderContext;
+import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.chunky.resources.BitmapImage;
+import se.llbit.json.JsonObject;
+import se.llbit.log.Log;
+import se.llbit.math.Vector3;
+import se.llbit.util.TaskTracker;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Renders a scene without the UI and writes the image and a JSON performance report. Used to track the
+ * throughput of the renderer on a set of scenes:
+ * <pre>
+ * java -jar ChunkyClPlugin.jar --headless scene.json --spp 64 --output scene.png --report scene-report.json
+ * </pre>
+ * With --check-memory the scene is not rendered, the report tells if the scene fits the device memory instead.
+ * Without --report the report is written to stdout, everything else printed while rendering goes to stderr.
+ */
+public class HeadlessRenderer {
+    private File sceneFile = null;
+    private int spp = 16;
+    private int batch = 8;
+    private File output = null;
+    private File report = null;
+    private boolean wavefront = false;
+    private long seed = 0;
+    private boolean checkMemory = false;
+
+    // Standard output for the report, the device and Chunky prints are sent to stderr
+    private final PrintStream stdout = System.out;
+
+    public static void main(String[] args) {
+        HeadlessRenderer renderer = new HeadlessRenderer();
+        try {
+            renderer.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: --headless <scene.json> [--spp <samples>] [--batch <samples>] " +
+                    "[--output <image.png>] [--report <report.json>] [--wavefront] [--seed <seed>] [--check-memory]");
+            System.exit(2);
+        }
+        System.setOut(System.err);
+
+        try {
+            renderer.render();
+        } catch (Exception e) {
+            Log.error("Headless render failed.", e);
+            System.exit(1);
+        }
+
+        // Chunky worker threads keep the JVM alive
+        System.exit(0);
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--headless":
+                    break;
+                case "--spp":
+                    spp = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--batch":
+                    batch = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--output":
+                    output = new File(value(args, ++i, arg));
+                    break;
+                case "--report":
+                    report = new File(value(args, ++i, arg));
+                    break;
+                case "--wavefront":
+                    wavefront = true;
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value(args, ++i, arg));
+                    break;
+                case "--check-memory":
+                    checkMemory = true;
+                    break;
+                default:
+                    if (arg.startsWith("--") || sceneFile != null) {
+                        throw new IllegalArgumentException("Unknown argument: " + arg);
+                    }
+                    sceneFile = new File(arg).getAbsoluteFile();
+            }
+        }
+
+        if (sceneFile == null) throw new IllegalArgumentException("No scene file given.");
+        if (spp < 1 || batch < 1) throw new IllegalArgumentException("Samples must be positive.");
+    }
+
+    private static String value(String[] args, int index, String name) {
+        if (index >= args.length) throw new IllegalArgumentException("Missing value for " + name);
+        return args[index];
+    }
+
+    private void render() throws IOException, InterruptedException {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+
+        // Load the scene from its scene directory
+        long start = System.nanoTime();
+        Chunky.loadDefaultTextures();
+        ChunkyOptions options = ChunkyOptions.getDefaults();
+        options.sceneDir = sceneFile.getParentFile();
+        Chunky chunky = new Chunky(options);
+
+        String sceneName = sceneFile.getName();
+        if (sceneName.endsWith(".json")) {
+            sceneName = sceneName.substring(0, sceneName.length() - ".json".length());
+        }
+        Scene scene = new Scene();
+        scene.loadScene(new RenderContext(chunky), sceneName, TaskTracker.NONE);
+        double sceneLoadMs = (System.nanoTime() - start) / 1e6;
+
+        // Device times are taken from the profiled events
+        EventProfiler.setEnabled(true);
+
+        // Upload the scene
+        OpenClRenderer renderer = wavefront ? new OpenClWavefrontRenderer() : new OpenClRenderer();
+        GpuRayTracer tracer = renderer.rayTracer;
+        if (checkMemory) {
+            writeReport(checkMemory(sceneName, tracer, scene));
+            return;
+        }
+
+        start = System.nanoTime();
+        tracer.generateSky(scene);
+        double skyMs = (System.nanoTime() - start) / 1e6;
+        tracer.load(scene, TaskTracker.Task.NONE);
+
+        start = System.nanoTime();
+        CameraRays cameraRays = CameraRays.create(scene, true);
+        double cameraRaysMs = (System.nanoTime() - start) / 1e6;
+
+        Vector3 origin = new Vector3(scene.camera().getPosition());
+        origin.sub(scene.getOrigin());
+        Random random = new Random(seed);
+        double[] samples = scene.getSampleBuffer();
+        int pixels = cameraRays.getPixels();
+
+        // Render from scratch, previous samples of the scene are ignored
+        GpuRayTracer.RayTraceCache cache = tracer.createCache(cameraRays);
+        cache.enableRayCounting();
+
+        // The first sample includes building the kernels, so it is not part of the throughput
+        start = System.nanoTime();
+        renderer.traceSample(tracer, origin, random, scene, cache);
+        tracer.mergeSamples(cache);
+        tracer.finish();
+        double firstSampleMs = (System.nanoTime() - start) / 1e6;
+        long firstSampleRays = cache.getRayCount();
+        EventProfiler profiler = tracer.profiler;
+        profiler.reset();
+
+        long batchNs = 0;
+        long readNs = 0;
+        long hostMergeNs = 0;
+        long renderStart = System.nanoTime();
+        int rendered = 1;
+        while (rendered < spp) {
+            int samplesInBatch = Math.min(batch, spp - rendered);
+
+            // Trace and merge on the device
+            start = System.nanoTime();
+            for (int i = 0; i < samplesInBatch; i++) {
+                renderer.traceSample(tracer, origin, random, scene, cache);
+            }
+            tracer.mergeSamples(cache);
+            tracer.finish();
+            batchNs += System.nanoTime() - start;
+            rendered += samplesInBatch;
+        }
+
+        // Like the interactive renderer, the samples are only read back once the render is done
+        start = System.nanoTime();
+        tracer.readSamples(cache);
+        readNs += System.nanoTime() - start;
+
+        start = System.nanoTime();
+        scene.spp = tracer.copySamples(cache, samples);
+        hostMergeNs += System.nanoTime() - start;
+        double renderSeconds = (System.nanoTime() - renderStart) / 1e9;
+
+        long deviceKernelNs = profiler.getTotalRunTime(EventProfiler.Type.KERNEL);
+        long deviceTransferNs = profiler.getTotalRunTime(EventProfiler.Type.WRITE) +
+                profiler.getTotalRunTime(EventProfiler.Type.READ);
+        long deviceFillNs = profiler.getTotalRunTime(EventProfiler.Type.FILL);
+        long rays = cache.getRayCount() - firstSampleRays;
+
+        // Finalize the image
+        start = System.nanoTime();
+        if (!tracer.postProcess(cache, scene)) {
+            scene.postProcessFrame(TaskTracker.NONE);
+        }
+        double postProcessMs = (System.nanoTime() - start) / 1e6;
+        double nsPerStep = tracer.measureOctree(cache, origin, renderer.drawDepth, 10);
+        Map<String, Long> deviceMemory = tracer.getMemoryUsage(cache);
+        cache.release();
+
+        if (output != null) {
+            writeImage(scene.getBackBuffer(), output);
+        }
+
+        // Build the report
+        JsonObject json = new JsonObject();
+        json.add("scene", sceneName);
+        json.add("device", tracer.getDeviceName());
+        json.add("renderer", renderer.getId());
+        json.add("width", scene.canvasWidth());
+        json.add("height", scene.canvasHeight());
+        json.add("spp", scene.spp);
+
+        JsonObject load = new JsonObject();
+        load.add("sceneFile", sceneLoadMs);
+        load.add("sky", skyMs);
+        for (Map.Entry<String, Double> stage : tracer.getLoadTimes().entrySet()) {
+            load.add(stage.getKey(), stage.getValue());
+        }
+        load.add("cameraRays", cameraRaysMs);
+        json.add("loadMs", load);
+
+        // Rates exclude the first sample
+        long measuredSamples = (long) (rendered - 1) * pixels;
+        json.add("firstSampleMs", firstSampleMs);
+        json.add("renderSeconds", renderSeconds);
+        json.add("samplesPerSecond", renderSeconds > 0 ? measuredSamples / renderSeconds : 0);
+        json.add("raysPerSecond", renderSeconds > 0 ? rays / renderSeconds : 0);
+        json.add("raysPerSample", measuredSamples > 0 ? (double) rays / measuredSamples : 0);
+
+        JsonObject time = new JsonObject();
+        // Device execution time of the profiled commands
+        time.add("kernel", deviceKernelNs / 1e6);
+        time.add("transfer", deviceTransferNs / 1e6);
+        time.add("fill", deviceFillNs / 1e6);
+        // Host wall time of tracing and merging the batches, and of reading the samples back
+        time.add("batchWall", batchNs / 1e6);
+        time.add("readWall", readNs / 1e6);
+        time.add("hostMerge", hostMergeNs / 1e6);
+        time.add("postProcess", postProcessMs);
+        json.add("timeMs", time);
+
+        JsonObject octree = new JsonObject();
+        octree.add("nodes", tracer.getOctreeNodes());
+        octree.add("deviceNodes", tracer.getDeviceOctreeNodes());
+        octree.add("compressionRatio", tracer.getDeviceOctreeNodes() > 0 ?
+                (double) tracer.getOctreeNodes() / tracer.getDeviceOctreeNodes() : 1);
+        octree.add("nsPerStep", nsPerStep);
+        json.add("octree", octree);
+
+        JsonObject memory = new JsonObject();
+        memory.add("peakHostHeap", peakHeapUsage());
+        JsonObject resources = new JsonObject();
+        long deviceTotal = 0;
+        for (Map.Entry<String, Long> resource : deviceMemory.entrySet()) {
+            resources.add(resource.getKey(), resource.getValue());
+            deviceTotal += resource.getValue();
+        }
+        memory.add("device", deviceTotal);
+        memory.add("deviceResources", resources);
+        json.add("memoryBytes", memory);
+
+        writeReport(json);
+    }
+
+    /**
+     * Plan the device memory of a scene without uploading it.
+     */
+    private static JsonObject checkMemory(String sceneName, GpuRayTracer tracer, Scene scene) {
+        MemoryBudget.Plan plan = tracer.planScene(scene);
+        if (plan == null) throw new IllegalStateException("Could not read the scene data.");
+
+        JsonObject json = new JsonObject();
+        json.add("scene", sceneName);
+        json.add("device", tracer.getDeviceName());
+        json.add("fits", plan.fits());
+        json.add("layout", plan.fits() ? plan.layout.toString() : "none");
+        if (plan.problem != null) {
+            json.add("problem", plan.problem);
+        }
+
+        MemoryBudget budget = tracer.budget;
+        JsonObject limits = new JsonObject();
+        limits.add("globalMemory", budget.globalMemory);
+        limits.add("maxAllocation", budget.maxAllocation);
+        limits.add("maxImageWidth", budget.maxImageWidth);
+        limits.add("maxImageHeight", budget.maxImageHeight);
+        limits.add("imageSupport", budget.imageSupport);
+        json.add("deviceLimits", limits);
+
+        JsonObject data = new JsonObject();
+        for (Map.Entry<String, Long> array : plan.bytes.entrySet()) {
+            data.add(array.getKey(), array.getValue());
+        }
+        json.add("dataBytes", data);
+        json.add("totalDataBytes", plan.totalBytes);
+
+        JsonObject render = new JsonObject();
+        for (Map.Entry<String, Long> buffer : plan.renderBytes.entrySet()) {
+            render.add(buffer.getKey(), buffer.getValue());
+        }
+        json.add("renderBytes", render);
+        json.add("totalRenderBytes", plan.totalRenderBytes);
+        return json;
+    }
+
+    private void writeReport(JsonObject json) throws IOException {
+        if (report != null) {
+            Files.write(report.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+        } else {
+            stdout.println(json.toString());
+        }
+    }
+
+    private static long peakHeapUsage() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static void writeImage(BitmapImage image, File file) throws IOException {
+        BufferedImage buffered = new BufferedImage(image.width, image.height, BufferedImage.TYPE_INT_ARGB);
+        buffered.setRGB(0, 0, image.width, image.height, image.data, 0, image.width);
+        if (!ImageIO.write(buffered, "png", file)) {
+            throw new IOException("No PNG writer available.");
+        }
+    }
+}
@@ -3,23 +3,46 @@ package chunkycl;
 import static org.jocl.CL.*;
 
 import org.jocl.*;
+import se.llbit.chunky.PersistentSettings;
 import se.llbit.log.Log;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 public class KernelLoader {
+    /** Size of the binary cache, the least recently used binaries are deleted above it. */
+    private static final long CACHE_BYTES = 256L * 1024 * 1024;
+
+    /** Binaries which have not been used for this long are deleted, their sources or driver have likely changed. */
+    private static final long CACHE_MAX_AGE = TimeUnit.DAYS.toMillis(30);
+
     private KernelLoader() {}
 
     /**
      * Load the program in the jar resources.
      */
     public static cl_program loadProgram(cl_context context, cl_device_id[] devices) {
+        return loadProgram(context, devices, "");
+    }
+
+    /**
+     * Load the program in the jar resources with additional build options, such as -D definitions.
+     * Compiled binaries are cached on disk and reused if the device, driver, options and sources match.
+     */
+    public static cl_program loadProgram(cl_context context, cl_device_id[] devices, String options) {
         // Load kernel
         String kernel = readResourceFile("kernel/rayTracer.cl");
-        cl_program renderKernel = clCreateProgramWithSource(context, 1, new String[] { kernel }, null, null);
 
         // Search for include headers
         ArrayList<String> headerFiles = new ArrayList<>();
@@ -29,20 +52,159 @@ public class KernelLoader {
         });
 
         // Load headers
-        cl_program[] includes = new cl_program[headerFiles.size()];
+        String[] headers = new String[headerFiles.size()];
         for (int i = 0; i < headerFiles.size(); i++) {
-            String headerFile = readResourceFile("kernel/include/" + headerFiles.get(i));
-            includes[i] = clCreateProgramWithSource(context, 1, new String[] { headerFile }, null, null);
+            headers[i] = readResourceFile("kernel/include/" + headerFiles.get(i));
+        }
+
+        // Try the binary cache. Binaries are only cached for single device programs
+        File cacheFile = null;
+        if (devices.length == 1) {
+            cacheFile = getCacheFile(devices[0], options, kernel, headerFiles, headers);
+            cl_program cached = loadBinary(context, devices, options, cacheFile);
+            if (cached != null) return cached;
         }
 
-        int code = clCompileProgram(renderKernel, devices.length, devices, "",
+        cl_program renderKernel = clCreateProgramWithSource(context, 1, new String[] { kernel }, null, null);
+
+        cl_program[] includes = new cl_program[headers.length];
+        for (int i = 0; i < headers.length; i++) {
+            includes[i] = clCreateProgramWithSource(context, 1, new String[] { headers[i] }, null, null);
+        }
+
+        int code = clCompileProgram(renderKernel, devices.length, devices, options,
                 includes.length, includes, headerFiles.toArray(new String[0]), null, null);
         if (code != CL_SUCCESS) {
             throw new RuntimeException("Program build failed with error code: " + code);
         }
 
-        return clLinkProgram(context, devices.length, devices, "", 1,
+        cl_program program = clLinkProgram(context, devices.length, devices, "", 1,
                 new cl_program[] { renderKernel }, null, null, null);
+
+        if (cacheFile != null) {
+            saveBinary(program, cacheFile);
+        }
+        return program;
+    }
+
+    /**
+     * Get the binary cache file for a device. The name is a hash of the device, driver, build options and sources.
+     */
+    private static File getCacheFile(cl_device_id device, String options, String kernel,
+                                     ArrayList<String> headerFiles, String[] headers) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String[] keys = {
+                    GpuRayTracer.getString(device, CL_DEVICE_NAME),
+                    GpuRayTracer.getString(device, CL_DRIVER_VERSION),
+                    GpuRayTracer.getString(device, CL_DEVICE_VERSION),
+                    options,
+                    kernel
+            };
+            for (String key : keys) {
+                digest.update(key.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            for (int i = 0; i < headers.length; i++) {
+                digest.update(headerFiles.get(i).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(headers[i].getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+
+            StringBuilder name = new StringBuilder();
+            for (byte b : digest.digest()) {
+                name.append(String.format("%02x", b));
+            }
+            return new File(new File(PersistentSettings.settingsDirectory(), "chunkycl-cache"), name + ".bin");
+        } catch (NoSuchAlgorithmException e) {
+            Log.warn("Could not hash the OpenCL program, binary cache disabled.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Load a cached program binary.
+     *
+     * @return The built program, or null if there is no cached binary or the device rejected it
+     */
+    private static cl_program loadBinary(cl_context context, cl_device_id[] devices, String options, File cacheFile) {
+        if (cacheFile == null || !cacheFile.isFile()) return null;
+
+        cl_program program = null;
+        try {
+            byte[] binary = Files.readAllBytes(cacheFile.toPath());
+            int[] status = new int[1];
+            program = clCreateProgramWithBinary(context, 1, devices, new long[] { binary.length },
+                    new byte[][] { binary }, status, null);
+            if (status[0] != CL_SUCCESS) {
+                throw new CLException("Binary rejected with status " + status[0]);
+            }
+            clBuildProgram(program, 1, devices, options, null, null);
+
+            // The modification time marks when a binary was last used, see pruneCache
+            if (!cacheFile.setLastModified(System.currentTimeMillis())) {
+                Log.info("Could not update the time of OpenCL program cache " + cacheFile);
+            }
+            return program;
+        } catch (IOException | CLException e) {
+            Log.info("Cached OpenCL program could not be used, building from source: " + e.getMessage());
+            if (program != null) clReleaseProgram(program);
+            if (!cacheFile.delete()) {
+                Log.warn("Could not delete OpenCL program cache " + cacheFile);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Save the binary of a single device program.
+     */
+    private static void saveBinary(cl_program program, File cacheFile) {
+        try {
+            long[] size = new long[1];
+            clGetProgramInfo(program, CL_PROGRAM_BINARY_SIZES, Sizeof.size_t, Pointer.to(size), null);
+            if (size[0] == 0) return;
+
+            byte[] binary = new byte[(int) size[0]];
+            clGetProgramInfo(program, CL_PROGRAM_BINARIES, Sizeof.POINTER, Pointer.to(Pointer.to(binary)), null);
+
+            // Write to a temporary file first so an interrupted write is never loaded
+            File directory = cacheFile.getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            File temp = File.createTempFile("program", ".tmp", directory);
+            Files.write(temp.toPath(), binary);
+            Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | CLException e) {
+            Log.warn("Could not cache the OpenCL program binary.", e);
+        }
+        pruneCache(cacheFile.getParentFile());
+    }
+
+    /**
+     * Delete the binaries which have not been used for CACHE_MAX_AGE, then the least recently used binaries until
+     * the cache is below CACHE_BYTES. Temporary files left by interrupted writes are deleted with the old binaries.
+     */
+    private static void pruneCache(File directory) {
+        File[] files = directory.listFiles(file -> file.isFile() &&
+                (file.getName().endsWith(".bin") || file.getName().endsWith(".tmp")));
+        if (files == null) return;
+
+        // Most recently used first
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified).reversed());
+        long oldest = System.currentTimeMillis() - CACHE_MAX_AGE;
+        long bytes = 0;
+        for (File file : files) {
+            bytes += file.length();
+            if (file.lastModified() < oldest || bytes > CACHE_BYTES) {
+                if (!file.delete()) {
+                    Log.warn("Could not delete OpenCL program cache " + file);
+                }
+            }
+        }
     }
 
     protected static String readResourceFile(String file) {
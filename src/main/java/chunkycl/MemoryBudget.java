@@ -0,0 +1,326 @@
+package chunkycl;
+
+import static org.jocl.CL.*;
+
+import org.jocl.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory limits of a device and the layout of the scene data arrays in its memory. The data arrays are stored as
+ * RGBA int images of a fixed width and read with the index functions of kernel/include/imageArrays.h. The width is
+ * chosen so every array fits the image size limits of the device, devices where no width fits read the arrays
+ * from buffers instead. Octrees which do not fit the device are paged, only part of them is kept in device memory.
+ * The render buffers for the canvas are reserved next to the data arrays.
+ */
+public class MemoryBudget {
+    /** Width of the data images the kernel is written for, used whenever the device supports it. */
+    public static final int DEFAULT_WIDTH = 8192;
+
+    /** Name of the octree data array, the array which is paged if the scene does not fit. */
+    public static final String OCTREE = "octree";
+
+    /** Size of an octree page in ints, must match OCTREE_PAGE_BITS in the kernel. */
+    public static final int OCTREE_PAGE_BITS = 20;
+    public static final int OCTREE_PAGE_INTS = 1 << OCTREE_PAGE_BITS;
+
+    /** Least number of resident octree pages for paging to be useful. */
+    private static final int MIN_OCTREE_PAGES = 16;
+
+    // Device memory per pixel of the render buffers, must match the allocations of RayTraceCache with adaptive
+    // sampling and paging, WavefrontState and the preview buffers
+    private static final long CACHE_PIXEL_BYTES = 4 * 3 * Sizeof.cl_float + 4 * Sizeof.cl_int;
+    private static final long ADAPTIVE_PIXEL_BYTES = 4 * Sizeof.cl_int;
+    private static final long WAVEFRONT_PIXEL_BYTES = 11 * 4 * Sizeof.cl_float + 4 * Sizeof.cl_int;
+    private static final long PREVIEW_PIXEL_BYTES = 3 * Sizeof.cl_float + Sizeof.cl_int;
+
+    // Page the octree even if it fits, for testing the paged octree on small scenes
+    private static final boolean FORCE_PAGED_OCTREE = Boolean.getBoolean("chunkycl.pagedOctree");
+
+    public final long globalMemory;
+    public final long maxAllocation;
+    public final long maxImageWidth;
+    public final long maxImageHeight;
+    public final boolean imageSupport;
+
+    public MemoryBudget(cl_device_id device) {
+        this(getLong(device, CL_DEVICE_GLOBAL_MEM_SIZE, Sizeof.cl_ulong),
+                getLong(device, CL_DEVICE_MAX_MEM_ALLOC_SIZE, Sizeof.cl_ulong),
+                getLong(device, CL_DEVICE_IMAGE2D_MAX_WIDTH, Sizeof.size_t),
+                getLong(device, CL_DEVICE_IMAGE2D_MAX_HEIGHT, Sizeof.size_t),
+                getLong(device, CL_DEVICE_IMAGE_SUPPORT, Sizeof.cl_int) != 0);
+    }
+
+    MemoryBudget(long globalMemory, long maxAllocation, long maxImageWidth, long maxImageHeight,
+                 boolean imageSupport) {
+        this.globalMemory = globalMemory;
+        this.maxAllocation = maxAllocation;
+        this.maxImageWidth = maxImageWidth;
+        this.maxImageHeight = maxImageHeight;
+        this.imageSupport = imageSupport;
+    }
+
+    private static long getLong(cl_device_id device, int paramName, int size) {
+        if (size == Sizeof.cl_int) {
+            int[] value = new int[1];
+            clGetDeviceInfo(device, paramName, size, Pointer.to(value), null);
+            return value[0];
+        }
+        long[] value = new long[1];
+        clGetDeviceInfo(device, paramName, size, Pointer.to(value), null);
+        return value[0];
+    }
+
+    /**
+     * Get the layout used before the size of the scene is known.
+     */
+    public Layout getDefaultLayout() {
+        if (!imageSupport) return Layout.BUFFERS;
+        return new Layout(getStartWidth(), 0);
+    }
+
+    // The smallest candidate width, the default width or the widest power of two the device supports
+    private int getStartWidth() {
+        int width = DEFAULT_WIDTH;
+        while (width > 1 && width > maxImageWidth) {
+            width /= 2;
+        }
+        return width;
+    }
+
+    /**
+     * Get the device memory of the buffers used to render a canvas. Every renderer is counted, since the preview
+     * and the render buffers are kept while switching between them. The wavefront state is counted even if
+     * only the path tracing kernel is used.
+     *
+     * @param pixels        Number of pixels of the canvas
+     * @param skyResolution Width and height of the sky texture
+     * @return The size of every render buffer in bytes
+     */
+    public static Map<String, Long> getRenderBuffers(long pixels, int skyResolution) {
+        Map<String, Long> buffers = new LinkedHashMap<>();
+        buffers.put("renderCache", pixels * CACHE_PIXEL_BYTES);
+        buffers.put("adaptiveSampling", pixels * ADAPTIVE_PIXEL_BYTES);
+        buffers.put("wavefrontState", pixels * WAVEFRONT_PIXEL_BYTES);
+        buffers.put("preview", pixels * PREVIEW_PIXEL_BYTES);
+        buffers.put("sky", (long) skyResolution * skyResolution * 4 * Sizeof.cl_float);
+        return buffers;
+    }
+
+    /**
+     * Choose the layout of the scene data arrays. Images are preferred since their reads are cached, the narrowest
+     * width which fits every array is used. Buffers are used if no image width fits. If neither fits the octree is
+     * paged.
+     *
+     * @param dataArrays    Length of every data array in ints
+     * @param renderBuffers Size of every render buffer in bytes, see getRenderBuffers
+     */
+    public Plan plan(Map<String, Long> dataArrays, Map<String, Long> renderBuffers) {
+        long reserved = 0;
+        for (long bytes : renderBuffers.values()) {
+            reserved += bytes;
+        }
+
+        Plan plan = plan(dataArrays, renderBuffers, reserved, 0);
+        if (plan.fits() && !FORCE_PAGED_OCTREE) return plan;
+
+        int pages = getOctreePages(dataArrays, reserved);
+        if (pages >= MIN_OCTREE_PAGES) {
+            Plan paged = plan(dataArrays, renderBuffers, reserved, pages);
+            if (paged.fits()) return paged;
+        }
+        return plan;
+    }
+
+    private Plan plan(Map<String, Long> dataArrays, Map<String, Long> renderBuffers, long reserved,
+                      int octreePages) {
+        // A paged octree only needs its resident pages in device memory
+        Map<String, Long> resident = dataArrays;
+        if (octreePages > 0) {
+            resident = new LinkedHashMap<>(dataArrays);
+            resident.put(OCTREE, (long) octreePages * OCTREE_PAGE_INTS);
+        }
+
+        if (imageSupport) {
+            for (long width = getStartWidth(); width <= maxImageWidth; width *= 2) {
+                Layout layout = new Layout((int) width, octreePages);
+                if (check(layout, resident, reserved) == null) {
+                    return new Plan(layout, resident, renderBuffers, null);
+                }
+            }
+        }
+
+        // Buffers are only limited by the allocation size, so their limit is the one reported if nothing fits
+        Layout buffers = new Layout(0, octreePages);
+        String problem = check(buffers, resident, reserved);
+        return new Plan(problem == null ? buffers : null, resident, renderBuffers, problem);
+    }
+
+    /**
+     * Get the number of octree pages to keep in device memory. The pages may use what the other data arrays
+     * leave of three quarters of the device memory, the rest is left for the render buffers and the driver. Render
+     * buffers which need more than a quarter leave less for the pages.
+     */
+    private int getOctreePages(Map<String, Long> dataArrays, long reserved) {
+        Long octree = dataArrays.get(OCTREE);
+        if (octree == null) return 0;
+
+        long other = 0;
+        for (Map.Entry<String, Long> array : dataArrays.entrySet()) {
+            if (!array.getKey().equals(OCTREE)) other += Layout.BUFFERS.getBytes(array.getValue());
+        }
+        long bytes = Math.min(maxAllocation, Math.min(globalMemory / 4 * 3, globalMemory - reserved) - other);
+        long pages = Math.min(bytes / ((long) OCTREE_PAGE_INTS * Sizeof.cl_int),
+                (octree + OCTREE_PAGE_INTS - 1) / OCTREE_PAGE_INTS);
+        return (int) Math.max(0, pages);
+    }
+
+    /**
+     * Check if the data arrays fit the device with a layout, next to the render buffers.
+     *
+     * @param reserved Device memory of the render buffers in bytes
+     * @return A description of the first limit which is exceeded, or null if the arrays fit
+     */
+    private String check(Layout layout, Map<String, Long> dataArrays, long reserved) {
+        long total = 0;
+        for (Map.Entry<String, Long> array : dataArrays.entrySet()) {
+            long ints = array.getValue();
+            long bytes = layout.getBytes(ints);
+            if (!layout.isBuffers() && layout.getHeight(ints) > maxImageHeight) {
+                return String.format("%s needs %d rows of %d pixels, the device supports %d x %d images.",
+                        array.getKey(), layout.getHeight(ints), layout.width, maxImageWidth, maxImageHeight);
+            }
+            if (bytes > maxAllocation) {
+                return String.format("%s needs %s, the device allocates at most %s at once.",
+                        array.getKey(), formatBytes(bytes), formatBytes(maxAllocation));
+            }
+            total += bytes;
+        }
+        if (total + reserved > globalMemory) {
+            return String.format("The scene needs %s and the render buffers %s, the device has %s.",
+                    formatBytes(total), formatBytes(reserved), formatBytes(globalMemory));
+        }
+        return null;
+    }
+
+    public static String formatBytes(long bytes) {
+        return String.format("%.1f MB", bytes / 1048576.0);
+    }
+
+    /**
+     * Layout of the scene data arrays on the device.
+     */
+    public static final class Layout {
+        public static final Layout BUFFERS = new Layout(0, 0);
+
+        /** Width of the data images in pixels, or 0 if the data arrays are buffers. */
+        public final int width;
+
+        /** Number of octree pages kept in device memory, or 0 if the entire octree is. */
+        public final int octreePages;
+
+        private Layout(int width, int octreePages) {
+            this.width = width;
+            this.octreePages = octreePages;
+        }
+
+        public boolean isBuffers() {
+            return width == 0;
+        }
+
+        /**
+         * Get the kernel build options selecting this layout, see kernel/include/imageArrays.h.
+         */
+        public String getBuildOptions() {
+            String options = isBuffers() ? "-D DATA_BUFFERS" : width == DEFAULT_WIDTH ? "" : "-D DATA_WIDTH=" + width;
+            if (isOctreePaged()) {
+                options += " -D OCTREE_PAGED";
+            }
+            return options.trim();
+        }
+
+        public boolean isOctreePaged() {
+            return octreePages > 0;
+        }
+
+        /** Width in pixels of the image holding an array. */
+        public long getWidth(long ints) {
+            return Math.max(1, Math.min((ints + 3) / 4, width));
+        }
+
+        /** Height in pixels of the image holding an array. */
+        public long getHeight(long ints) {
+            return Math.max(1, ((ints + 3) / 4 + width - 1) / width);
+        }
+
+        /** Length in ints of an array padded to fill its image. */
+        public long getPaddedLength(long ints) {
+            if (isBuffers()) return Math.max(1, ints);
+            return getWidth(ints) * getHeight(ints) * 4;
+        }
+
+        public long getBytes(long ints) {
+            return getPaddedLength(ints) * Sizeof.cl_int;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Layout && ((Layout) o).width == width && ((Layout) o).octreePages == octreePages;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * width + octreePages;
+        }
+
+        @Override
+        public String toString() {
+            String layout = isBuffers() ? "buffers" : width + " wide images";
+            return isOctreePaged() ? layout + " with " + octreePages + " resident octree pages" : layout;
+        }
+    }
+
+    /**
+     * A planned layout of the scene data arrays.
+     */
+    public static final class Plan {
+        /** The layout, or null if the scene does not fit the device. */
+        public final Layout layout;
+
+        /** Device memory of every data array in bytes. */
+        public final Map<String, Long> bytes = new LinkedHashMap<>();
+        public final long totalBytes;
+
+        /** Device memory of every render buffer in bytes, reserved next to the data arrays. */
+        public final Map<String, Long> renderBytes;
+        public final long totalRenderBytes;
+
+        /** The limit the scene exceeds, or null if it fits. */
+        public final String problem;
+
+        private Plan(Layout layout, Map<String, Long> dataArrays, Map<String, Long> renderBuffers, String problem) {
+            this.layout = layout;
+            this.renderBytes = renderBuffers;
+            this.problem = problem;
+
+            long total = 0;
+            for (Map.Entry<String, Long> array : dataArrays.entrySet()) {
+                long size = (layout != null ? layout : Layout.BUFFERS).getBytes(array.getValue());
+                bytes.put(array.getKey(), size);
+                total += size;
+            }
+            totalBytes = total;
+
+            long render = 0;
+            for (long size : renderBuffers.values()) {
+                render += size;
+            }
+            totalRenderBytes = render;
+        }
+
+        public boolean fits() {
+            return layout != null;
+        }
+    }
+}
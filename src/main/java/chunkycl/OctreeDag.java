@@ -0,0 +1,144 @@
+package chunkycl;
+
+import java.util.Arrays;
+
+/**
+ * Compresses a packed octree into a directed acyclic graph which stores identical subtrees once. The DAG keeps the
+ * packed octree encoding: a positive node is the index of its 8 children and other nodes are leaves holding the
+ * negated block type, so the kernel traverses it exactly like the octree. Minecraft terrain repeats a lot, so most
+ * subtrees near the leaves are shared.
+ */
+public final class OctreeDag {
+    // Marks a group which has not been compressed yet, no node has this value
+    private static final int PENDING = Integer.MIN_VALUE;
+
+    private OctreeDag() {
+    }
+
+    /**
+     * Compress the tree data of a packed octree. Groups of children are merged bottom up: a group is replaced by an
+     * identical group which is already in the DAG, and a group of 8 identical leaves is replaced by the leaf.
+     *
+     * @return The tree data of the DAG, or null if the children in the tree are not stored in aligned groups of 8
+     */
+    public static int[] compress(int[] treeData) {
+        int root = treeData[0];
+        if (root <= 0) return new int[] {root};
+
+        // Children are allocated in groups of 8 after the root, so group g starts at index 8g + 1
+        int[] compressed = new int[(treeData.length + 6) / 8];
+        Arrays.fill(compressed, PENDING);
+        if (!isGroup(treeData, root)) return null;
+
+        Groups groups = new Groups(Math.min(treeData.length, 1 << 20));
+        int[] children = new int[8];
+        int[] stack = new int[64];
+        int size = 0;
+        stack[size++] = root;
+
+        // Depth first, a group is compressed once all of its child groups are
+        while (size > 0) {
+            int group = stack[size - 1];
+            boolean ready = true;
+            for (int i = 0; i < 8; i++) {
+                int child = treeData[group + i];
+                if (child > 0 && compressed[child >> 3] == PENDING) {
+                    if (!isGroup(treeData, child)) return null;
+                    if (size == stack.length) stack = Arrays.copyOf(stack, size * 2);
+                    stack[size++] = child;
+                    ready = false;
+                }
+            }
+            if (!ready) continue;
+            size--;
+
+            boolean uniform = true;
+            for (int i = 0; i < 8; i++) {
+                int child = treeData[group + i];
+                children[i] = child > 0 ? compressed[child >> 3] : child;
+                uniform &= children[i] == children[0];
+            }
+            compressed[group >> 3] = uniform && children[0] <= 0 ? children[0] : groups.add(children);
+        }
+
+        groups.data[0] = compressed[root >> 3];
+        return Arrays.copyOf(groups.data, groups.length);
+    }
+
+    private static boolean isGroup(int[] treeData, int index) {
+        return (index & 7) == 1 && index + 8 <= treeData.length;
+    }
+
+    /**
+     * The groups of the DAG, deduplicated through an open addressing hash table of group indexes.
+     */
+    private static final class Groups {
+        // Tree data of the DAG, the root is stored at index 0
+        int[] data;
+        int length = 1;
+
+        private int[] table = new int[1 << 16];
+        private int count = 0;
+
+        Groups(int capacity) {
+            data = new int[Math.max(capacity, 9)];
+        }
+
+        /**
+         * Get the index of a group, adding it if there is no identical group.
+         */
+        int add(int[] children) {
+            int mask = table.length - 1;
+            for (int slot = hash(children, 0) & mask; ; slot = (slot + 1) & mask) {
+                int group = table[slot];
+                if (group == 0) break;
+                if (equals(group, children)) return group;
+            }
+
+            if (length + 8 > data.length) {
+                data = Arrays.copyOf(data, (int) Math.min(Integer.MAX_VALUE - 8, data.length * 3L / 2 + 8));
+            }
+            int group = length;
+            System.arraycopy(children, 0, data, group, 8);
+            length += 8;
+
+            if (++count * 2 > table.length) {
+                grow();
+            }
+            insert(group);
+            return group;
+        }
+
+        private boolean equals(int group, int[] children) {
+            for (int i = 0; i < 8; i++) {
+                if (data[group + i] != children[i]) return false;
+            }
+            return true;
+        }
+
+        private void insert(int group) {
+            int mask = table.length - 1;
+            int slot = hash(data, group) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = group;
+        }
+
+        private void grow() {
+            int[] old = table;
+            table = new int[old.length * 2];
+            for (int group : old) {
+                if (group != 0) insert(group);
+            }
+        }
+
+        private static int hash(int[] values, int offset) {
+            int hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = hash * 0x9E3779B1 + values[offset + i];
+            }
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package chunkycl;
 
 import se.llbit.chunky.renderer.DefaultRenderManager;
+import se.llbit.chunky.renderer.scene.Camera;
 import se.llbit.chunky.renderer.scene.Scene;
 import se.llbit.math.Vector3;
 import se.llbit.util.TaskTracker;
@@ -9,6 +10,15 @@ import java.util.Arrays;
 import java.util.Random;
 
 public class OpenClPreviewRenderer extends AbstractOpenClRenderer {
+    /** Frame time the reduced resolution preview aims for while the camera moves, in nanoseconds. */
+    private static final long TARGET_FRAME_TIME = 33_000_000;
+
+    // Camera of the previous frame, to detect camera movement
+    private double[] lastCamera = null;
+
+    // Time of the last full resolution frame, in nanoseconds
+    private long fullFrameTime = 0;
+
     @Override
     public String getId() {
         return "ChunkyClPreviewRenderer";
@@ -33,19 +43,47 @@ public class OpenClPreviewRenderer extends AbstractOpenClRenderer {
         // Generate randomness
         Random random = new Random(System.currentTimeMillis());
 
-        // Generate camera rays
-        float[] rayDirs = generateCameraRays(bufferedScene);
+        // Camera rays, only generated on the host for projections the device does not support
+        CameraRays rays = CameraRays.create(bufferedScene, false);
 
         Vector3 origin = new Vector3(bufferedScene.camera().getPosition());
         origin.sub(bufferedScene.getOrigin());
 
-        rayTracer.previewTrace(origin, rayDirs, bufferedScene, drawDepth, drawEntities);
+        // While the camera moves, trace at a reduced resolution first. The full resolution frame follows
+        // unless the scene changes again in the meantime.
+        int scale = getMovingScale(bufferedScene);
+        if (scale > 1) {
+            rayTracer.previewTrace(origin, rays, bufferedScene, drawDepth, drawEntities, scale);
+            manager.redrawScreen();
+            if (callback.getAsBoolean()) return;
+        }
+
+        long start = System.nanoTime();
+        rayTracer.previewTrace(origin, rays, bufferedScene, drawDepth, drawEntities, 1);
+        fullFrameTime = System.nanoTime() - start;
         manager.redrawScreen();
 
         callback.getAsBoolean();
         renderTask.update("Preview", 1, 1, "");
     }
 
+    /**
+     * Get the block size to preview a moving camera with, based on the time of the last full resolution frame.
+     *
+     * @return 1 if the camera did not move or full resolution frames are fast enough
+     */
+    private int getMovingScale(Scene scene) {
+        Camera camera = scene.camera();
+        Vector3 position = camera.getPosition();
+        double[] current = {position.x, position.y, position.z, camera.getYaw(), camera.getPitch(),
+                camera.getRoll(), camera.getFov(), scene.canvasWidth(), scene.canvasHeight()};
+        boolean moving = lastCamera != null && !Arrays.equals(current, lastCamera);
+        lastCamera = current;
+
+        if (!moving || fullFrameTime <= TARGET_FRAME_TIME) return 1;
+        return fullFrameTime / 4 <= TARGET_FRAME_TIME ? 2 : 4;
+    }
+
     @Override
     public boolean autoPostProcess() {
         return false;
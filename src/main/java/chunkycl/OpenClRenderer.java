@@ -2,19 +2,53 @@ package chunkycl;
 
 import se.llbit.chunky.renderer.DefaultRenderManager;
 import se.llbit.chunky.renderer.RenderWorkerPool;
+import se.llbit.chunky.renderer.ResetReason;
+import se.llbit.chunky.renderer.SceneProvider;
+import se.llbit.chunky.renderer.SnapshotControl;
 import se.llbit.chunky.renderer.postprocessing.PixelPostProcessingFilter;
 import se.llbit.chunky.renderer.postprocessing.PostProcessingFilter;
 import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.log.Log;
 import se.llbit.math.ColorUtil;
 import se.llbit.math.QuickMath;
 import se.llbit.math.Ray;
 import se.llbit.math.Vector3;
 import se.llbit.util.TaskTracker;
 
-import java.util.Arrays;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class OpenClRenderer extends AbstractOpenClRenderer {
+    /** Target time in milliseconds between reading back accumulated samples. */
+    protected static final long BATCH_INTERVAL = 500;
+
+    /** Number of sum buffers of a secondary device, bounding the batches waiting to be merged. */
+    private static final int SUM_BUFFERS = 2;
+
+    /** Minimum samples per pixel for the adaptive sampling error estimate. */
+    protected static final int ADAPTIVE_MIN_SAMPLES = 16;
+
+    /** Only sample pixels until their estimated error is below the threshold. */
+    protected boolean adaptiveSampling = false;
+
+    /** Relative standard error of the pixel luminance at which adaptive sampling stops sampling a pixel. */
+    protected double adaptiveThreshold = 0.01;
+
+    /** Show the adaptive sampling error instead of the image while rendering. */
+    protected boolean showSamplingError = false;
+
+    // Adaptive sampling cache of the last render, kept until the next reset so the next render continues with the
+    // per pixel sample counts instead of sampling every pixel again
+    private GpuRayTracer.RayTraceCache adaptiveCache = null;
+    private int adaptiveCacheReset = 0;
+
     @Override
     public String getId() {
         return "ChunkyClRenderer";
@@ -44,9 +78,8 @@ public class OpenClRenderer extends AbstractOpenClRenderer {
         // Generate randomness
         Random random = new Random(System.currentTimeMillis());
 
-        // Generate camera rays
-        float[] rayDirs = generateCameraRays(bufferedScene);
-        float[] jitterDirs = generateJitterLengths(rayDirs, bufferedScene);
+        // Camera rays, only generated on the host for projections the device does not support
+        CameraRays rays = CameraRays.create(bufferedScene, true);
 
         Ray testRay = new Ray();
         bufferedScene.camera().calcViewRay(testRay, 0, 0);
@@ -58,79 +91,258 @@ public class OpenClRenderer extends AbstractOpenClRenderer {
         // Sample buffer
         double[] samples = bufferedScene.getSampleBuffer();
 
-        // Generate raytracing cache
-        GpuRayTracer.RayTraceCache cache = rayTracer.createCache(rayDirs, jitterDirs);
+        // Continue the adaptive sampling of the last render, or generate a raytracing cache and continue from the
+        // current samples
+        GpuRayTracer.RayTraceCache cache = takeAdaptiveCache(bufferedScene);
+        if (cache == null) {
+            cache = rayTracer.createCache(rays);
+            rayTracer.uploadSamples(cache, samples, bufferedScene.spp);
+        }
+
+        // Log the octree traversal cost if requested
+        if (Boolean.getBoolean("chunkycl.octreeStats")) {
+            rayTracer.measureOctree(cache, origin, drawDepth, 10);
+        }
 
         // Create work pools
         int threads = Math.max(manager.pool.threads/2, 1);
-        RenderPoolMerger mergePool = new RenderPoolMerger(manager.pool, threads);
         RenderPoolFinalizer finalizePool = new RenderPoolFinalizer(manager.pool, threads);
 
-        while (bufferedScene.spp < bufferedScene.getTargetSpp()) {
-            float[] rendermap = rayTracer.rayTrace(origin, random, bufferedScene.getRayDepth(), false,
-                    bufferedScene, drawDepth, drawEntities, bufferedScene.getDirectLight(), cache);
+        // Samples which have not been claimed by any device yet
+        AtomicInteger unclaimed = new AtomicInteger(bufferedScene.getTargetSpp() - bufferedScene.spp);
+
+        // Start the secondary devices, their samples are merged into the primary device
+        List<GpuRayTracer> tracers = GpuRayTracer.getTracers();
+        List<DeviceWorker> workers = new ArrayList<>();
+        for (GpuRayTracer tracer : tracers) {
+            if (tracer == rayTracer) continue;
+            tracer.generateSky(bufferedScene);
+            tracer.load(bufferedScene, TaskTracker.Task.NONE);
+            DeviceWorker worker = new DeviceWorker(tracer, bufferedScene, origin, rays,
+                    new Random(random.nextLong()), unclaimed);
+            worker.start();
+            workers.add(worker);
+        }
 
-            // Finalize
-            if (finalizePool.isDone()) {
-                manager.redrawScreen();
-                finalizePool.postProcessFrame(bufferedScene);
+        // Adaptive sampling needs the squared samples, which are not merged from other devices
+        boolean adaptive = adaptiveSampling && workers.isEmpty();
+        if (adaptive) {
+            cache.enableAdaptive((float) adaptiveThreshold, ADAPTIVE_MIN_SAMPLES, bufferedScene.getTargetSpp());
+        } else if (adaptiveSampling) {
+            Log.info("Adaptive sampling is not supported with multiple OpenCL devices.");
+        }
+
+        // Frame which is being read back while the next batch is traced
+        GpuRayTracer.PendingFrame pending = null;
+        SnapshotControl snapshots = getSnapshotControl(manager);
+        int dumpFrequency = getDumpFrequency(bufferedScene);
+
+        int batchSamples = 1;
+        while (bufferedScene.spp < bufferedScene.getTargetSpp() && cache.getActivePixels() > 0) {
+            long batchStart = System.currentTimeMillis();
+
+            // Trace a batch of samples which are accumulated on the GPU
+            int batch = claimSamples(unclaimed, batchSamples, bufferedScene.getTargetSpp(), dumpFrequency);
+            for (int i = 0; i < batch; i++) {
+                traceSample(rayTracer, origin, random, bufferedScene, cache);
             }
 
-            // Wait for previous merge to finish
-            mergePool.join();
+            // Merge on the GPU
+            rayTracer.mergeSamples(cache);
+
+            // Merge the samples from the other devices. Wait for them if this device has nothing left to do
+            boolean merged = false;
+            for (DeviceWorker worker : workers) {
+                merged |= worker.mergeInto(rayTracer, cache, batch == 0 && !merged ? BATCH_INTERVAL : 0);
+            }
+            if (batch == 0 && !merged) {
+                // Every pixel got its samples, adaptive sampling can finish below the target
+                if (workers.isEmpty()) break;
+
+                if (workers.stream().allMatch(DeviceWorker::isFinished) && unclaimed.get() == 0 &&
+                        workers.stream().noneMatch(DeviceWorker::hasResults)) {
+                    // Samples were lost to a failed device
+                    Log.warn("Could not render all samples, a secondary OpenCL device failed.");
+                    break;
+                }
+                if (callback.getAsBoolean()) break;
+                continue;
+            }
 
-            // Merge
-            mergePool.merge(bufferedScene, rendermap);
+            // Finalize and read back this batch without blocking. The previous frame is shown while the device
+            // works on this one and the next batch is queued behind it.
+            // The samples are only read back when Chunky saves them or the render is done
+            boolean readSamples = cache.spp >= bufferedScene.getTargetSpp() ||
+                    needsSamples(snapshots, bufferedScene, cache.spp);
+            GpuRayTracer.PendingFrame frame = rayTracer.enqueueFrame(cache, bufferedScene,
+                    showSamplingError && adaptive, readSamples);
+            if (pending != null) showFrame(manager, pending, finalizePool);
+            pending = frame;
+
+            // Scale the batch so a sync happens roughly every BATCH_INTERVAL milliseconds. Batches cut short at a
+            // dump do not grow the batch size.
+            long batchTime = System.currentTimeMillis() - batchStart;
+            if (batchTime < BATCH_INTERVAL / 2 && batch == batchSamples) {
+                batchSamples *= 2;
+            } else if (batchTime > BATCH_INTERVAL * 2 && batchSamples > 1) {
+                batchSamples /= 2;
+            }
 
-            bufferedScene.spp += 1;
             if (callback.getAsBoolean()) break;
         }
 
-        mergePool.join();
+        // Every pixel converged below the target, pause like Chunky does when the target is reached. Returning
+        // would make Chunky render again, as the samples per pixel are below the target.
+        boolean converged = adaptive && cache.getActivePixels() == 0;
+        if (converged) {
+            Log.infof("Adaptive sampling converged at %d samples per pixel on average.", bufferedScene.spp);
+            pauseRender(manager);
+        }
+
+        // Stop the secondary devices, samples which have not been merged are dropped
+        for (DeviceWorker worker : workers) {
+            worker.finish();
+        }
+
+        // The final post processing and the render dump read the samples
+        boolean synced = pending == null || pending.hasSamples();
+        if (pending != null) showFrame(manager, pending, finalizePool);
+        finalizePool.join();
+        if (!synced) {
+            bufferedScene.spp = rayTracer.syncSamples(cache, samples);
+        }
+
         bufferedScene.postProcessFrame(TaskTracker.NONE);
         manager.redrawScreen();
-        cache.release();
+        if (adaptive) {
+            adaptiveCache = cache;
+            adaptiveCacheReset = lastReset;
+        } else {
+            cache.release();
+        }
     }
 
     @Override
-    public boolean autoPostProcess() {
-        return false;
+    public void sceneReset(DefaultRenderManager manager, ResetReason reason, int resetCount) {
+        super.sceneReset(manager, reason, resetCount);
+
+        // The samples of the adaptive sampling cache were reset
+        if (adaptiveCache != null && adaptiveCacheReset != lastReset) {
+            adaptiveCache.release();
+            adaptiveCache = null;
+        }
     }
 
-    private static class RenderPoolMerger {
-        private RenderWorkerPool.RenderJobFuture[] jobs;
-        private RenderWorkerPool pool;
+    /**
+     * Take the adaptive sampling cache of the last render if it continues the samples of the scene.
+     *
+     * @return The cache, or null if a new cache must be created
+     */
+    private GpuRayTracer.RayTraceCache takeAdaptiveCache(Scene scene) {
+        GpuRayTracer.RayTraceCache cache = adaptiveCache;
+        adaptiveCache = null;
+        if (cache == null) return null;
+
+        if (adaptiveSampling && adaptiveCacheReset == lastReset && cache.getSpp() == scene.spp) {
+            return cache;
+        }
+        cache.release();
+        return null;
+    }
 
-        public RenderPoolMerger(RenderWorkerPool pool, int threads) {
-            this.pool = pool;
-            this.jobs = new RenderWorkerPool.RenderJobFuture[threads];
+    /**
+     * Pause rendering through the scene provider of Chunky, which is accessed through reflection.
+     */
+    private static void pauseRender(DefaultRenderManager manager) {
+        try {
+            Field sceneProvider = DefaultRenderManager.class.getDeclaredField("sceneProvider");
+            sceneProvider.setAccessible(true);
+            ((SceneProvider) sceneProvider.get(manager)).withEditSceneProtected(Scene::pauseRender);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            Log.info("Could not pause rendering, the scene provider is not accessible.");
         }
+    }
 
-        public void join() throws InterruptedException {
-            for (RenderWorkerPool.RenderJobFuture job : jobs) {
-                if (job != null) job.awaitFinish();
-            }
+    /**
+     * Get the dump frequency if snapshots or render dumps are saved while rendering, otherwise 0.
+     */
+    protected static int getDumpFrequency(Scene scene) {
+        return scene.shouldSaveSnapshots() || scene.shouldSaveDumps() ? scene.getDumpFrequency() : 0;
+    }
+
+    /**
+     * Get the snapshot settings of Chunky through reflection.
+     *
+     * @return The snapshot control, or null if it is not accessible
+     */
+    private static SnapshotControl getSnapshotControl(DefaultRenderManager manager) {
+        try {
+            Field snapshotControl = DefaultRenderManager.class.getDeclaredField("snapshotControl");
+            snapshotControl.setAccessible(true);
+            return (SnapshotControl) snapshotControl.get(manager);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            Log.info("Samples are read back for every frame, the snapshot settings are not accessible.");
+            return null;
         }
+    }
 
-        public void merge(Scene scene, float[] renderMap) throws InterruptedException {
-            this.join();
+    /**
+     * Check if Chunky saves a snapshot or a render dump at a number of samples, which needs the samples on the
+     * host. Without the snapshot settings every frame needs the samples.
+     */
+    private static boolean needsSamples(SnapshotControl snapshots, Scene scene, int spp) {
+        return snapshots == null || snapshots.saveSnapshot(scene, spp) || snapshots.saveRenderDump(scene, spp);
+    }
 
-            double[] sampleBuffer = scene.getSampleBuffer();
-            int sppF = scene.spp;
-            double sinv = 1.0 / (sppF + 1);
-
-            for (int i = 0; i < jobs.length; i++) {
-                int finalI = i;
-                int threads = jobs.length;
-                jobs[i] = pool.submit(renderWorker -> {
-                    for (int k = finalI; k < sampleBuffer.length; k += threads)
-                        sampleBuffer[k] = (sampleBuffer[k] * sppF + renderMap[k]) * sinv;
-                });
+    /**
+     * Wait for a frame to be read back and show it. Filters which are not supported on the GPU are post
+     * processed on the CPU.
+     */
+    private static void showFrame(DefaultRenderManager manager, GpuRayTracer.PendingFrame frame,
+                                  RenderPoolFinalizer finalizePool) throws InterruptedException {
+        Scene scene = manager.bufferedScene;
+
+        // The CPU post processing of the last frame reads the sample buffer
+        finalizePool.join();
+        scene.spp = frame.finish(scene.getSampleBuffer(), scene.getBackBuffer().data);
+        manager.redrawScreen();
+        if (!frame.isFinalized()) finalizePool.postProcessFrame(scene);
+    }
+
+    /**
+     * Claim up to a number of samples from the unclaimed samples. Claims end on multiples of the dump frequency,
+     * so the samples per pixel reach every count at which Chunky saves a snapshot or a render dump.
+     *
+     * @param dumpFrequency Dump frequency of the scene, or 0 if nothing is saved while rendering
+     * @return The number of claimed samples
+     */
+    protected static int claimSamples(AtomicInteger unclaimed, int samples, int targetSpp, int dumpFrequency) {
+        while (true) {
+            int left = unclaimed.get();
+            int claimed = Math.min(left, samples);
+            if (dumpFrequency > 0) {
+                int spp = targetSpp - left;
+                claimed = Math.min(claimed, dumpFrequency - spp % dumpFrequency);
             }
+            if (claimed <= 0) return 0;
+            if (unclaimed.compareAndSet(left, left - claimed)) return claimed;
         }
     }
 
-    private static class RenderPoolFinalizer {
+    /**
+     * Enqueue a single sample per pixel into the accumulation buffer of the cache.
+     */
+    protected void traceSample(GpuRayTracer tracer, Vector3 origin, Random random, Scene scene, GpuRayTracer.RayTraceCache cache) {
+        tracer.rayTrace(origin, random, scene.getRayDepth(), false,
+                scene, drawDepth, drawEntities, scene.getDirectLight(), cache);
+    }
+
+    @Override
+    public boolean autoPostProcess() {
+        return false;
+    }
+
+    static class RenderPoolFinalizer {
         private RenderWorkerPool.RenderJobFuture[] jobs;
         private RenderWorkerPool pool;
 
@@ -158,22 +370,25 @@ public class OpenClRenderer extends AbstractOpenClRenderer {
             PostProcessingFilter filter = scene.getPostProcessingFilter();
             if (filter instanceof PixelPostProcessingFilter) {
                 PixelPostProcessingFilter pixelFilter =  (PixelPostProcessingFilter) filter;
+                double[] buffer = scene.getSampleBuffer();
+                double exposure = scene.getExposure();
+                int rows = (scene.height + jobs.length - 1) / jobs.length;
 
+                // Each job processes a contiguous block of rows
                 for (int i = 0; i < jobs.length; i++) {
-                    int finalI = i;
-                    double[] pixelBuffer = new double[3];
-                    double[] buffer = scene.getSampleBuffer();
-                    double exposure = scene.getExposure();
+                    int startY = i * rows;
+                    int endY = Math.min(startY + rows, scene.height);
 
                     jobs[i] = pool.submit(renderWorker -> {
-                        for (int x = 0; x < scene.width; x++) {
-                            for (int y = 0; y < scene.height; y++) {
-                                if ((x + y) % jobs.length == finalI) {
-                                    pixelFilter.processPixel(scene.width, scene.height, buffer,
-                                            x, y, exposure, pixelBuffer);
-                                    Arrays.setAll(pixelBuffer, a -> QuickMath.clamp(pixelBuffer[a] , 0, 1));
-                                    scene.getBackBuffer().setPixel(x, y, ColorUtil.getRGB(pixelBuffer));
+                        double[] pixelBuffer = new double[3];
+                        for (int y = startY; y < endY; y++) {
+                            for (int x = 0; x < scene.width; x++) {
+                                pixelFilter.processPixel(scene.width, scene.height, buffer,
+                                        x, y, exposure, pixelBuffer);
+                                for (int c = 0; c < 3; c++) {
+                                    pixelBuffer[c] = QuickMath.clamp(pixelBuffer[c], 0, 1);
                                 }
+                                scene.getBackBuffer().setPixel(x, y, ColorUtil.getRGB(pixelBuffer));
                             }
                         }
                     });
@@ -184,4 +399,136 @@ public class OpenClRenderer extends AbstractOpenClRenderer {
             }
         }
     }
+
+    /**
+     * Renders on a secondary device. Batches of samples are claimed from the shared unclaimed samples, so faster
+     * devices render more of the image, and the accumulated sums are handed to the render thread for merging.
+     */
+    private class DeviceWorker extends Thread {
+        private final GpuRayTracer tracer;
+        private final Scene scene;
+        private final Vector3 origin;
+        private final CameraRays rays;
+        private final Random random;
+        private final AtomicInteger unclaimed;
+        private final BlockingQueue<SampleBatch> results = new LinkedBlockingQueue<>();
+        // Sum buffers which are not waiting to be merged, so a slow merge makes the device wait
+        private final BlockingQueue<float[]> freeSums = new ArrayBlockingQueue<>(SUM_BUFFERS);
+        private int allocatedSums = 0;
+        private volatile boolean running = true;
+        private volatile boolean finished = false;
+
+        public DeviceWorker(GpuRayTracer tracer, Scene scene, Vector3 origin, CameraRays rays, Random random,
+                            AtomicInteger unclaimed) {
+            super("ChunkyCl Device " + tracer.deviceIndex);
+            this.tracer = tracer;
+            this.scene = scene;
+            this.origin = origin;
+            this.rays = rays;
+            this.random = random;
+            this.unclaimed = unclaimed;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            GpuRayTracer.RayTraceCache cache = null;
+            int batch = 0;
+            try {
+                cache = tracer.createCache(rays);
+
+                int batchSamples = 1;
+                while (running) {
+                    long batchStart = System.currentTimeMillis();
+
+                    float[] sums = takeSums();
+                    if (sums == null) break;
+                    batch = claimSamples(unclaimed, batchSamples, scene.getTargetSpp(), getDumpFrequency(scene));
+                    if (batch == 0) break;
+                    for (int i = 0; i < batch; i++) {
+                        traceSample(tracer, origin, random, scene, cache);
+                    }
+
+                    results.add(new SampleBatch(sums, tracer.takeSamples(cache, sums)));
+                    batch = 0;
+
+                    long batchTime = System.currentTimeMillis() - batchStart;
+                    if (batchTime < BATCH_INTERVAL / 2) {
+                        batchSamples *= 2;
+                    } else if (batchTime > BATCH_INTERVAL * 2 && batchSamples > 1) {
+                        batchSamples /= 2;
+                    }
+                }
+            } catch (InterruptedException e) {
+                unclaimed.addAndGet(batch);
+            } catch (RuntimeException e) {
+                Log.error("OpenCL device " + tracer.deviceIndex + " failed, continuing without it.", e);
+
+                // Give the lost samples back to the other devices
+                unclaimed.addAndGet(batch);
+            } finally {
+                if (cache != null) cache.release();
+                finished = true;
+            }
+        }
+
+        /**
+         * Get a sum buffer for the next batch, waiting for a merged batch if all buffers are in use.
+         *
+         * @return A sum buffer, or null if the worker was stopped while waiting
+         */
+        private float[] takeSums() throws InterruptedException {
+            float[] sums = freeSums.poll();
+            if (sums == null && allocatedSums < SUM_BUFFERS) {
+                allocatedSums++;
+                return new float[rays.getPixels() * 3];
+            }
+            while (sums == null && running) {
+                sums = freeSums.poll(BATCH_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+            return sums;
+        }
+
+        /**
+         * Merge the finished batches into the running average of the primary device.
+         *
+         * @param timeout Milliseconds to wait for a batch if none are finished
+         * @return true if any samples were merged
+         */
+        public boolean mergeInto(GpuRayTracer primary, GpuRayTracer.RayTraceCache cache, long timeout)
+                throws InterruptedException {
+            SampleBatch result = timeout > 0 ? results.poll(timeout, TimeUnit.MILLISECONDS) : results.poll();
+            boolean merged = false;
+            while (result != null) {
+                primary.mergeSamples(cache, result.sums, result.samples);
+                freeSums.offer(result.sums);
+                merged = true;
+                result = results.poll();
+            }
+            return merged;
+        }
+
+        public boolean isFinished() {
+            return finished;
+        }
+
+        public boolean hasResults() {
+            return !results.isEmpty();
+        }
+
+        public void finish() throws InterruptedException {
+            running = false;
+            join();
+        }
+    }
+
+    private static class SampleBatch {
+        protected final float[] sums;
+        protected final int samples;
+
+        public SampleBatch(float[] sums, int samples) {
+            this.sums = sums;
+            this.samples = samples;
+        }
+    }
 }
@@ -0,0 +1,33 @@
+package chunkycl;
+
+import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.math.Vector3;
+
+import java.util.Random;
+
+/**
+ * Renderer using the wavefront path tracer, which splits each bounce into separate intersection, shading and
+ * shadow kernels. Otherwise identical to the OpenClRenderer so the two can be compared on the same scene.
+ */
+public class OpenClWavefrontRenderer extends OpenClRenderer {
+    @Override
+    public String getId() {
+        return "ChunkyClWavefrontRenderer";
+    }
+
+    @Override
+    public String getName() {
+        return "Chunky CL Wavefront Renderer";
+    }
+
+    @Override
+    public String getDescription() {
+        return "An experimental wavefront variant of the OpenCL renderer.";
+    }
+
+    @Override
+    protected void traceSample(GpuRayTracer tracer, Vector3 origin, Random random, Scene scene, GpuRayTracer.RayTraceCache cache) {
+        tracer.rayTraceWavefront(origin, random, scene.getRayDepth(),
+                scene, drawDepth, drawEntities, scene.getDirectLight(), cache);
+    }
+}
@@ -0,0 +1,168 @@
+package chunkycl;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import se.llbit.chunky.main.Chunky;
+import se.llbit.chunky.world.Material;
+import se.llbit.log.Log;
+import se.llbit.math.AABB;
+import se.llbit.math.primitive.Primitive;
+import se.llbit.math.primitive.TexturedTriangle;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Packs the primitives in the leaves of the entity BVH into the arrays read by the kernel. Every leaf is packed
+ * as its triangle count followed by its triangles. The offset of every leaf is known before packing, so the
+ * leaves are packed in parallel into arrays of the exact size.
+ */
+public final class PrimitivePacker {
+    /** Floats of a packed textured triangle, must match the kernel. */
+    public static final int TRIANGLE_FLOATS = 30;
+
+    // The texture coordinates of a triangle are private, their fields are only looked up once
+    private static final Field[] TEXTURE_COORDINATES = getFields("t1u", "t1v", "t2u", "t2v", "t3u", "t3v");
+
+    private PrimitivePacker() {
+    }
+
+    /**
+     * Packed primitives of a BVH.
+     */
+    public static final class Packed {
+        /** Leaf primitives, stored as floats. */
+        public final float[] trigs;
+
+        /** Texture data of the triangle materials. */
+        public final int[] textures;
+
+        private Packed(float[] trigs, int[] textures) {
+            this.trigs = trigs;
+            this.textures = textures;
+        }
+    }
+
+    /**
+     * Pack the leaves of a BVH. The leaf nodes are changed to the negated offset of their packed primitives.
+     *
+     * @param nodes  Packed BVH nodes of 7 ints, a leaf node holds the negated index of its primitives
+     * @param leaves Primitives of every leaf
+     */
+    public static Packed pack(int[] nodes, Primitive[][] leaves) {
+        // Lay out the leaves and textures in node order, so the arrays match packing the leaves one by one
+        IntArrayList leafIndexes = new IntArrayList();
+        IntArrayList leafOffsets = new IntArrayList();
+        Map<Material, Integer> textureIndexes = new IdentityHashMap<>();
+        List<Material> materials = new ArrayList<>();
+        int length = 0;
+        int textureLength = 0;
+
+        for (int i = 0; i < nodes.length; i += 7) {
+            if (nodes[i] > 0) continue;
+
+            int leaf = -nodes[i];
+            int triangles = 0;
+            for (Primitive primitive : leaves[leaf]) {
+                if (!(primitive instanceof TexturedTriangle)) continue;
+                triangles++;
+
+                Material material = ((TexturedTriangle) primitive).material;
+                if (!textureIndexes.containsKey(material)) {
+                    textureIndexes.put(material, textureLength);
+                    materials.add(material);
+                    textureLength += material.getTexture(0).getBitmap().data.length;
+                }
+            }
+
+            leafIndexes.add(leaf);
+            leafOffsets.add(length);
+            nodes[i] = -length;
+            length += 1 + triangles * TRIANGLE_FLOATS;
+        }
+
+        float[] trigs = new float[length];
+        int[] textures = new int[textureLength];
+
+        Chunky.getCommonThreads().submit(() -> IntStream.range(0, leafIndexes.size()).parallel().forEach(i -> {
+            int offset = leafOffsets.getInt(i);
+            int triangles = 0;
+            for (Primitive primitive : leaves[leafIndexes.getInt(i)]) {
+                if (primitive instanceof TexturedTriangle) {
+                    TexturedTriangle triangle = (TexturedTriangle) primitive;
+                    packTriangle(triangle, textureIndexes.get(triangle.material), trigs,
+                            offset + 1 + triangles * TRIANGLE_FLOATS);
+                    triangles++;
+                }
+            }
+            trigs[offset] = triangles;
+        })).join();
+
+        Chunky.getCommonThreads().submit(() -> materials.parallelStream().forEach(material -> {
+            int[] data = material.getTexture(0).getBitmap().data;
+            System.arraycopy(data, 0, textures, textureIndexes.get(material), data.length);
+        })).join();
+
+        return new Packed(trigs, textures);
+    }
+
+    private static void packTriangle(TexturedTriangle triangle, int textureIndex, float[] trigs, int offset) {
+        trigs[offset] = 0;  // Textured triangle = ID 0
+        packAabb(triangle.bounds, trigs, offset + 1);   // 1-6
+        trigs[offset + 7] = (float) triangle.e1.x;
+        trigs[offset + 8] = (float) triangle.e1.y;
+        trigs[offset + 9] = (float) triangle.e1.z;
+        trigs[offset + 10] = (float) triangle.e2.x;
+        trigs[offset + 11] = (float) triangle.e2.y;
+        trigs[offset + 12] = (float) triangle.e2.z;
+        trigs[offset + 13] = (float) triangle.o.x;
+        trigs[offset + 14] = (float) triangle.o.y;
+        trigs[offset + 15] = (float) triangle.o.z;
+        trigs[offset + 16] = (float) triangle.n.x;
+        trigs[offset + 17] = (float) triangle.n.y;
+        trigs[offset + 18] = (float) triangle.n.z;
+        for (int i = 0; i < TEXTURE_COORDINATES.length; i++) {
+            trigs[offset + 19 + i] = (float) getDouble(TEXTURE_COORDINATES[i], triangle);   // 19-24
+        }
+        trigs[offset + 25] = triangle.doubleSided ? 1 : 0;
+        trigs[offset + 26] = triangle.material.getTexture(0).getWidth();
+        trigs[offset + 27] = triangle.material.getTexture(0).getHeight();
+        trigs[offset + 28] = triangle.material.emittance;
+        trigs[offset + 29] = textureIndex;
+    }
+
+    private static void packAabb(AABB box, float[] array, int offset) {
+        array[offset] = (float) box.xmin;
+        array[offset + 1] = (float) box.xmax;
+        array[offset + 2] = (float) box.ymin;
+        array[offset + 3] = (float) box.ymax;
+        array[offset + 4] = (float) box.zmin;
+        array[offset + 5] = (float) box.zmax;
+    }
+
+    private static Field[] getFields(String... names) {
+        Field[] fields = new Field[names.length];
+        for (int i = 0; i < names.length; i++) {
+            try {
+                fields[i] = TexturedTriangle.class.getDeclaredField(names[i]);
+                fields[i].setAccessible(true);
+            } catch (NoSuchFieldException e) {
+                Log.error(e);
+            }
+        }
+        return fields;
+    }
+
+    private static double getDouble(Field field, TexturedTriangle triangle) {
+        if (field == null) return 0;
+        try {
+            return field.getDouble(triangle);
+        } catch (IllegalAccessException e) {
+            Log.error(e);
+            return 0;
+        }
+    }
+}
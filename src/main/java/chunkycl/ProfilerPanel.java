@@ -0,0 +1,90 @@
+package chunkycl;
+
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.Label;
+import javafx.scene.control.TitledPane;
+import javafx.scene.control.Tooltip;
+import javafx.scene.layout.VBox;
+import javafx.util.Duration;
+
+import java.util.List;
+
+/**
+ * Shows the OpenCL command timings of every device while rendering.
+ */
+public class ProfilerPanel extends TitledPane {
+    private final CheckBox enabledCheckBox = new CheckBox("Profile OpenCL commands");
+    private final Label busyLabel = new Label();
+    private final Label commandsLabel = new Label();
+
+    public ProfilerPanel() {
+        super("OpenCL Profiler", null);
+        setExpanded(false);
+
+        enabledCheckBox.setTooltip(new Tooltip("Record the time every OpenCL command takes. This adds a small overhead."));
+        enabledCheckBox.setSelected(EventProfiler.isEnabled());
+        enabledCheckBox.selectedProperty().addListener((observable, oldValue, newValue) -> {
+            EventProfiler.setEnabled(newValue);
+            if (newValue) {
+                // Drop timings from the last time profiling was enabled
+                for (GpuRayTracer tracer : GpuRayTracer.getCreatedTracers()) {
+                    tracer.profiler.reset();
+                }
+            }
+            update();
+        });
+
+        VBox box = new VBox();
+        box.setSpacing(10);
+        box.getChildren().addAll(enabledCheckBox, busyLabel, commandsLabel);
+        setContent(box);
+
+        Timeline timeline = new Timeline(new KeyFrame(Duration.seconds(1), event -> update()));
+        timeline.setCycleCount(Animation.INDEFINITE);
+        timeline.play();
+        update();
+    }
+
+    private void update() {
+        if (!EventProfiler.isEnabled()) {
+            busyLabel.setText("Profiling is disabled.");
+            commandsLabel.setText("");
+            return;
+        }
+
+        // Only show existing tracers, creating one here would block the UI thread
+        List<GpuRayTracer> tracers = GpuRayTracer.getCreatedTracers();
+        if (tracers.isEmpty()) {
+            busyLabel.setText("No OpenCL device in use.");
+            commandsLabel.setText("");
+            return;
+        }
+
+        StringBuilder busy = new StringBuilder();
+        StringBuilder commands = new StringBuilder();
+        for (GpuRayTracer tracer : tracers) {
+            EventProfiler profiler = tracer.profiler;
+            double kernel = profiler.getBusyFraction(EventProfiler.Type.KERNEL);
+            double transfer = profiler.getBusyFraction(EventProfiler.Type.WRITE) +
+                    profiler.getBusyFraction(EventProfiler.Type.READ);
+            double fill = profiler.getBusyFraction(EventProfiler.Type.FILL);
+
+            if (busy.length() > 0) busy.append('\n');
+            busy.append(String.format("%s: kernels %.0f%%, transfers %.0f%%, fills %.0f%%, idle %.0f%%",
+                    tracer.getDeviceName(), kernel * 100, transfer * 100, fill * 100,
+                    Math.max(0, 1 - kernel - transfer - fill) * 100));
+
+            for (EventProfiler.CommandStats command : profiler.getCommandStats()) {
+                if (commands.length() > 0) commands.append('\n');
+                commands.append(String.format("%s: %d runs, wait %.2f ms, run %.2f ms", command.name,
+                        command.getCount(), (command.getQueuedTime() + command.getSubmitTime()) / 1e6,
+                        command.getRunTime() / 1e6));
+            }
+        }
+        busyLabel.setText(busy.toString());
+        commandsLabel.setText(commands.toString());
+    }
+}
@@ -0,0 +1,96 @@
+#ifndef CHUNKYCLPLUGIN_CAMERA_H
+#define CHUNKYCLPLUGIN_CAMERA_H
+
+// Camera parameter layout, must match CameraRays.java
+#define CAMERA_PROJECTION 0
+#define CAMERA_WIDTH 1
+#define CAMERA_HEIGHT 2
+#define CAMERA_FOV 3
+#define CAMERA_APERTURE 4
+#define CAMERA_SUBJECT_DISTANCE 5
+#define CAMERA_TRANSFORM 6
+
+#define PROJECTION_HOST 0
+#define PROJECTION_PINHOLE 1
+#define PROJECTION_FISHEYE 2
+#define PROJECTION_PANORAMIC 3
+
+// Generate the primary ray of a pixel. With jitter the ray is sampled at a random position in the pixel and
+// in the aperture. Projections which are not supported on the device use the ray directions from the host.
+// Needs randomness.h to be included first.
+void cameraPixelRay(__global const float *camera, __global const float *rayDir, __global const float *rayJitter,
+                    int x, int y, int jitter, unsigned int *random, float3 *origin, float3 *direction) {
+    int projection = (int) camera[CAMERA_PROJECTION];
+    int width = (int) camera[CAMERA_WIDTH];
+
+    if (projection == PROJECTION_HOST) {
+        int gid = y * width + x;
+        float3 d = (float3) (rayDir[gid*3 + 0], rayDir[gid*3 + 1], rayDir[gid*3 + 2]);
+        if (jitter) {
+            d.x += nextFloat(random) * rayJitter[gid*3 + 0];
+            d.y += nextFloat(random) * rayJitter[gid*3 + 1];
+            d.z += nextFloat(random) * rayJitter[gid*3 + 2];
+        }
+        *direction = normalize(d);
+        return;
+    }
+
+    // Position on the canvas, the canvas is 1 high
+    float invHeight = 1 / camera[CAMERA_HEIGHT];
+    float px = x;
+    float py = y;
+    if (jitter) {
+        px += nextFloat(random);
+        py += nextFloat(random);
+    }
+    float cx = -width * 0.5f * invHeight + px * invHeight;
+    float cy = -0.5f + py * invHeight;
+
+    // Camera space ray
+    float fov = camera[CAMERA_FOV];
+    float3 d;
+    if (projection == PROJECTION_FISHEYE) {
+        float ax = cx * fov;
+        float ay = cy * fov;
+        float angle = sqrt(ax*ax + ay*ay);
+        if (angle > 0) {
+            d = (float3) (sin(angle) * ax / angle, sin(angle) * ay / angle, cos(angle));
+        } else {
+            d = (float3) (0, 0, 1);
+        }
+    } else if (projection == PROJECTION_PANORAMIC) {
+        float ax = cx * fov;
+        float ay = cy * fov;
+        d = (float3) (cos(ay) * sin(ax), sin(ay), cos(ay) * cos(ax));
+    } else {
+        d = (float3) (fov * cx, fov * cy, 1);
+    }
+
+    // Depth of field, aim from a random point in the aperture at the focal plane
+    float3 o = (float3) (0, 0, 0);
+    float aperture = camera[CAMERA_APERTURE];
+    if (aperture > 0 && jitter) {
+        float r = sqrt(nextFloat(random)) * aperture;
+        float theta = nextFloat(random) * 2 * M_PI;
+        o = (float3) (r * cos(theta), r * sin(theta), 0);
+        d *= camera[CAMERA_SUBJECT_DISTANCE] / d.z;
+        d -= o;
+    }
+    d = normalize(d);
+
+    // Camera space to world space
+    float3 row0 = (float3) (camera[CAMERA_TRANSFORM + 0], camera[CAMERA_TRANSFORM + 1], camera[CAMERA_TRANSFORM + 2]);
+    float3 row1 = (float3) (camera[CAMERA_TRANSFORM + 3], camera[CAMERA_TRANSFORM + 4], camera[CAMERA_TRANSFORM + 5]);
+    float3 row2 = (float3) (camera[CAMERA_TRANSFORM + 6], camera[CAMERA_TRANSFORM + 7], camera[CAMERA_TRANSFORM + 8]);
+    *direction = normalize((float3) (dot(row0, d), dot(row1, d), dot(row2, d)));
+    *origin += (float3) (dot(row0, o), dot(row1, o), dot(row2, o));
+}
+
+// Generate the primary ray of the pixel at an index in the canvas
+void cameraRay(__global const float *camera, __global const float *rayDir, __global const float *rayJitter,
+               int gid, int jitter, unsigned int *random, float3 *origin, float3 *direction) {
+    int width = (int) camera[CAMERA_WIDTH];
+    cameraPixelRay(camera, rayDir, rayJitter, gid % width, gid / width, jitter, random, origin, direction);
+}
+
+#endif //CHUNKYCLPLUGIN_CAMERA_H
@@ -4,9 +4,61 @@
 // Image sampler for data textures.
 const sampler_t indexSampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
 
+// Layout of the scene data arrays, chosen by MemoryBudget.java. The arrays are RGBA int images DATA_WIDTH pixels
+// wide, or plain buffers with DATA_BUFFERS for devices where no image size fits the scene.
+#ifndef DATA_WIDTH
+#define DATA_WIDTH 8192
+#endif
+
+#define DATA_COORD(index) ((int2) (((index) / 4) % DATA_WIDTH, ((index) / 4) / DATA_WIDTH))
+
+#ifdef DATA_BUFFERS
+
+#define DATA_ARRAY __global const int *
+
 // Read a single float at an index
-float indexf(image2d_t img, int index) {
-    float4 roi = read_imagef(img, indexSampler, (int2) ((index / 4) % 8192, (index / 4) / 8192));
+float indexf(DATA_ARRAY img, int index) {
+    return as_float(img[index]);
+}
+
+// Read a single integer at an index
+int indexi(DATA_ARRAY img, int index) {
+    return img[index];
+}
+
+// Read a single unsigned integer at an index
+unsigned int indexu(DATA_ARRAY img, int index) {
+    return as_uint(img[index]);
+}
+
+// Read an array of floats
+void areadf(DATA_ARRAY img, int index, int length, float output[]) {
+    for (int i = 0; i < length; i++) {
+        output[i] = as_float(img[index + i]);
+    }
+}
+
+// Read an array of integers
+void areadi(DATA_ARRAY img, int index, int length, int output[]) {
+    for (int i = 0; i < length; i++) {
+        output[i] = img[index + i];
+    }
+}
+
+// Read an array of unsigned integers
+void areadu(DATA_ARRAY img, int index, int length, unsigned int output[]) {
+    for (int i = 0; i < length; i++) {
+        output[i] = as_uint(img[index + i]);
+    }
+}
+
+#else
+
+#define DATA_ARRAY image2d_t
+
+// Read a single float at an index
+float indexf(DATA_ARRAY img, int index) {
+    float4 roi = read_imagef(img, indexSampler, DATA_COORD(index));
     switch (index % 4) {
         case 0: return roi.x;
         case 1: return roi.y;
@@ -16,8 +68,8 @@ float indexf(image2d_t img, int index) {
 }
 
 // Read a single integer at an index
-int indexi(image2d_t img, int index) {
-    int4 roi = read_imagei(img, indexSampler, (int2) ((index / 4) % 8192, (index / 4) / 8192));
+int indexi(DATA_ARRAY img, int index) {
+    int4 roi = read_imagei(img, indexSampler, DATA_COORD(index));
     switch (index % 4) {
         case 0: return roi.x;
         case 1: return roi.y;
@@ -27,8 +79,8 @@ int indexi(image2d_t img, int index) {
 }
 
 // Read a single unsigned integer at an index
-unsigned int indexu(image2d_t img, int index) {
-    uint4 roi = read_imageui(img, indexSampler, (int2) ((index / 4) % 8192, (index / 4) / 8192));
+unsigned int indexu(DATA_ARRAY img, int index) {
+    uint4 roi = read_imageui(img, indexSampler, DATA_COORD(index));
     switch (index % 4) {
         case 0: return roi.x;
         case 1: return roi.y;
@@ -38,12 +90,12 @@ unsigned int indexu(image2d_t img, int index) {
 }
 
 // Read an array of floats
-void areadf(image2d_t img, int index, int length, float output[]) {
-    float4 roi = read_imagef(img, indexSampler, (int2) ((index / 4) % 8192, (index / 4) / 8192));
+void areadf(DATA_ARRAY img, int index, int length, float output[]) {
+    float4 roi = read_imagef(img, indexSampler, DATA_COORD(index));
     for (int i = 0; i < length; i++) {
         if ((index + i) % 4 == 0 && i != 0) {
             index += 4;
-            roi = read_imagef(img, indexSampler, (int2) ((index / 4) % 8192, (index / 4) / 8192));
+            roi = read_imagef(img, indexSampler, DATA_COORD(index));
         }
 
         switch ((index + i) % 4) {
@@ -56,12 +108,12 @@ void areadf(image2d_t img, int index, int length, float output[]) {
 }
 
 // Read an array of integers
-void areadi(image2d_t img, int index, int length, int output[]) {
-    int4 roi = read_imagei(img, indexSampler, (int2) ((index / 4) % 8192, (index / 4) / 8192));
+void areadi(DATA_ARRAY img, int index, int length, int output[]) {
+    int4 roi = read_imagei(img, indexSampler, DATA_COORD(index));
     for (int i = 0; i < length; i++) {
         if ((index + i) % 4 == 0 && i != 0) {
             index += 4;
-            roi = read_imagei(img, indexSampler, (int2) ((index / 4) % 8192, (index / 4) / 8192));
+            roi = read_imagei(img, indexSampler, DATA_COORD(index));
         }
 
         switch ((index + i) % 4) {
@@ -74,12 +126,12 @@ void areadi(image2d_t img, int index, int length, int output[]) {
 }
 
 // Read an array of unsigned integers
-void areadu(image2d_t img, int index, int length, unsigned int output[]) {
-    uint4 roi = read_imageui(img, indexSampler, (int2) ((index / 4) % 8192, (index / 4) / 8192));
+void areadu(DATA_ARRAY img, int index, int length, unsigned int output[]) {
+    uint4 roi = read_imageui(img, indexSampler, DATA_COORD(index));
     for (int i = 0; i < length; i++) {
         if ((index + i) % 4 == 0 && i != 0) {
             index += 4;
-            roi = read_imageui(img, indexSampler, (int2) ((index / 4) % 8192, (index / 4) / 8192));
+            roi = read_imageui(img, indexSampler, DATA_COORD(index));
         }
 
         switch ((index + i) % 4) {
@@ -91,4 +143,6 @@ void areadu(image2d_t img, int index, int length, unsigned int output[]) {
     }
 }
 
-#endif
\ No newline at end of file
+#endif
+
+#endif
@@ -1,27 +1,28 @@
 #include "randomness.h"
 #include "imageArrays.h"
+#include "camera.h"
 
 #define EPS 0.000005f    // Ray epsilon and exit offset
 #define OFFSET 0.0001f   // TODO: refine these values?
 
 // General arguments. Remove unnecessary arguments and add extra arguments in <data>:
 // float3 *origin, float3 *direction, float3 *normal, float4 *color, float3 *emittance, float *dist, <data>, unsigned int *random
-// Data should be grouped logically ie. if the octree is passed, (image2d_t) octreeData, (int) depth
+// Data should be grouped logically ie. if the octree is passed, (DATA_ARRAY) octreeData, (int) depth
 // All mutable vectors should be pointers, even if the current function does not need to modify it
 
 // Sky calculations
-void calcSkyRay(float3 *direction, float4 *color, float3 *emittance, image2d_t skyTexture, float3 sunPos, float sunIntensity, image2d_t textures, int sunIndex);
-void sunIntersect(float3 *direction, float4 *color, float3 *emittance, float3 sunPos, image2d_t textures, int sunIndex);
+void calcSkyRay(float3 *direction, float4 *color, float3 *emittance, image2d_t skyTexture, float3 sunPos, float sunIntensity, DATA_ARRAY textures, int sunIndex);
+void sunIntersect(float3 *direction, float4 *color, float3 *emittance, float3 sunPos, DATA_ARRAY textures, int sunIndex);
 void randomSunDirection(float3 *direction, float3 sunPos, unsigned int *random);
 
 // Octree calculations
-int octreeIntersect(float3 *origin, float3 *direction, float3 *normal, float4 *color, float3 *emittance, float *dist, int drawDepth, image2d_t octreeData, int depth, __global const int *transparent, int transparentLength, image2d_t textures, image1d_t blockData, image2d_t grassTextures, image2d_t foliageTextures);
-void getTextureRay(float3 *origin, float3 *normal, float4 *color, float3 *emittance, int block, image2d_t textures, image1d_t blockData, image2d_t grassTextures, image2d_t foliageTextures, int depth);
+int octreeIntersect(float3 *origin, float3 *direction, float3 *normal, float4 *color, float3 *emittance, float *dist, int drawDepth, DATA_ARRAY octreeData, __global const int *octreePages, __global int *octreeFeedback, int depth, DATA_ARRAY textures, image1d_t blockData, DATA_ARRAY tintPages, DATA_ARRAY tintTiles, int *steps, int *missing);
+void getTextureRay(float3 *origin, float3 *normal, float4 *color, float3 *emittance, int block, DATA_ARRAY textures, image1d_t blockData, DATA_ARRAY tintPages, DATA_ARRAY tintTiles, int depth);
 void exitBlock(float3 *origin, float3 *direction, float3 *normal, float *dist);
 
 // Entity calculations
-int entityIntersect(float3 *origin, float3 *direction, float3 *normal, float4 *color, float3 *emittance, float *dist, image2d_t entityData, image2d_t entityTrigs, image2d_t entityTextures);
-int texturedTriangleIntersect(float3 *origin, float3 *direction, float3 *normal, float4 *color, float3 *emittance, float *dist, int index, image2d_t entityTrigs, image2d_t entityTextures);
+int entityIntersect(float3 *origin, float3 *direction, float3 *normal, float4 *color, float3 *emittance, float *dist, DATA_ARRAY entityData, DATA_ARRAY entityTrigs, DATA_ARRAY entityTextures);
+int texturedTriangleIntersect(float3 *origin, float3 *direction, float3 *normal, float4 *color, float3 *emittance, float *dist, int index, DATA_ARRAY entityTrigs, DATA_ARRAY entityTextures);
 int aabbIntersect(float3 *origin, float3 *direction, float bounds[6]);
 float aabbIntersectDist(float3 *origin, float3 *direction, float bounds[6]);
 int aabbIntersectClose(float3 *origin, float3 *direction, float *dist, float bounds[6]);
@@ -30,76 +31,152 @@ int aabbInside(float3 *origin, float bounds[6]);
 // Reflection calculations
 void diffuseReflect(float3 *direction, float3 *normal, unsigned int *state);
 
+// Maximum octree depth supported by the stack traversal
+#define OCTREE_MAX_DEPTH 32
+
+// Paged octree, see GpuRayTracer.OctreePages. The page size must match MemoryBudget
+#define OCTREE_PAGE_BITS 20
+#define OCTREE_PAGE_MASK ((1 << OCTREE_PAGE_BITS) - 1)
+#define OCTREE_PAGE_USED 1
+#define OCTREE_PAGE_MISSING 2
+
+// Node read for a page which is not resident, a leaf of a block type which does not exist
+#define OCTREE_MISSING (-0x7FFFFFFF)
+
+int octreeNode(DATA_ARRAY octreeData, __global const int *octreePages, __global int *octreeFeedback, int index);
+
+// Block data flags, stored in the w component of blockData. Must match GpuRayTracer
+#define BLOCK_TINT_MASK 3
+#define BLOCK_TINT_GRASS 1
+#define BLOCK_TINT_FOLIAGE 2
+#define BLOCK_INVISIBLE 4
+
+// Post processing filters. Must match the ids in GpuRayTracer
+#define FILTER_NONE 0
+#define FILTER_GAMMA 1
+#define FILTER_TONEMAP1 2
+#define FILTER_ACES 3
+#define FILTER_HABLE 4
+
+float3 hableCurve(float3 x);
+
+// Render configuration. Specialized program variants set these with -D so the compiler can drop the unused paths
+// and size the bounce stacks, the generic program reads the kernel arguments instead
+#ifdef DRAW_ENTITIES
+#define DRAW_ENTITIES_OR(arg) (DRAW_ENTITIES)
+#else
+#define DRAW_ENTITIES_OR(arg) (arg)
+#endif
+
+#ifdef SUN_SAMPLING
+#define SUN_SAMPLING_OR(arg) (SUN_SAMPLING)
+#else
+#define SUN_SAMPLING_OR(arg) (arg)
+#endif
+
+// Max bounces are capped at 23 since there is no dynamic memory allocation, the stacks hold one extra bounce
+#ifdef MAX_BOUNCES
+#define MAX_BOUNCES_OR(arg) (MAX_BOUNCES)
+#define BOUNCE_STACK (MAX_BOUNCES + 1)
+#else
+#define MAX_BOUNCES_OR(arg) (arg)
+#define BOUNCE_STACK 24
+#endif
+
+// Programs built with COUNT_RAYS add the number of traced rays of every pixel to rayCounts, used by the
+// headless benchmark. Otherwise rayCounts is not accessed
+
+// Luminance weights used for the adaptive sampling error estimate
+#define LUMINANCE (float3) (0.2126f, 0.7152f, 0.0722f)
+
 // Samplers
 const sampler_t skySampler =   CLK_NORMALIZED_COORDS_TRUE  | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_LINEAR;
 
+// Scene arguments shared by the tracing kernels. These are bound once per scene load by GpuRayTracer
+#define SCENE_ARGUMENTS DATA_ARRAY octreeData, \
+                        __global const int *octreePages, \
+                        __global int *octreeFeedback, \
+                        const int depth, \
+                        DATA_ARRAY textures, \
+                        image1d_t blockData, \
+                        const int sunIndex, \
+                        image2d_t skyTexture, \
+                        DATA_ARRAY tintPages, \
+                        DATA_ARRAY tintTiles, \
+                        DATA_ARRAY entityData, \
+                        DATA_ARRAY entityTrigs, \
+                        DATA_ARRAY entityTextures
+
 // Ray tracer entrypoint
-__kernel void rayTracer(__global const float *rayPos,
+__kernel void rayTracer(SCENE_ARGUMENTS,
+                        const float4 rayPos,
+                        const float4 sunPos,
+                        const float sunIntensity,
+                        const int seed,
+                        const int rayDepthArg,
+                        const int drawEntitiesArg,
+                        const int sunSamplingArg,
+                        const int drawDepth,
+                        __global const float *camera,
                         __global const float *rayDir,
                         __global const float *rayJitter,
-                        __global const int *depth,
-                        image2d_t octreeData,
-                        __global const int *voxelLength,
-                        __global const int *transparent,
-                        __global const int *transparentLength,
-                        image2d_t textures,
-                        image1d_t blockData,
-                        __global const int *seed,
-                        __global const int *rayDepth,
-                        __global const float *sunPos,
-                        __global const int *sunIndex,
-                        __global const float *sunIntensity,
-                        image2d_t skyTexture,
-                        image2d_t grassTextures,
-                        image2d_t foliageTextures,
-                        image2d_t entityData,
-                        image2d_t entityTrigs,
-                        image2d_t entityTextures,
-                        __global const int *drawEntities,
-                        __global const int *sunSampling,
-                        __global const int *drawDepth,
-                        __global float *res)
+                        __global float *res,
+                        __global const int *mask,
+                        __global float *resSquares,
+                        __global int *rayCounts,
+                        __global int *retry)
 {
     int gid = get_global_id(0);
 
+    // Skip pixels which are not sampled by adaptive sampling, or which are not traced again for missing pages
+    if (!mask[gid]) return;
+
+    const int drawEntities = DRAW_ENTITIES_OR(drawEntitiesArg);
+    const int sunSampling = SUN_SAMPLING_OR(sunSamplingArg);
+
     // Initialize rng
-    unsigned int rngState = *seed + gid;
+    unsigned int rngState = seed + gid;
     unsigned int *random = &rngState;
     xorshift(random);
     xorshift(random);
 
-    // Ray origin
-    float3 origin = (float3) (rayPos[0], rayPos[1], rayPos[2]);
-
-    // Ray direction
-    float3 direction = normalize((float3) (
-            rayDir[gid*3 + 0] + nextFloat(random)*rayJitter[gid*3 + 0],
-            rayDir[gid*3 + 1] + nextFloat(random)*rayJitter[gid*3 + 1],
-            rayDir[gid*3 + 2] + nextFloat(random)*rayJitter[gid*3 + 2]
-    ));
+    // Ray origin and direction
+    float3 origin = rayPos.xyz;
+    float3 direction;
+    cameraRay(camera, rayDir, rayJitter, gid, 1, random, &origin, &direction);
 
     // Ray normal
     float3 normal = (float3) (0, 0, 0);
 
     // Sun position
-    float3 sunPosition = (float3) (sunPos[0], sunPos[1], sunPos[2]);
+    float3 sunPosition = sunPos.xyz;
 
     // temp array
     float3 temp;
 
+    // Octree traversal steps, unused
+    int steps = 0;
+
+    // Set if the path needed an octree page which is not resident, see octreeNode
+    int missing = 0;
+
     // Cap max bounces at 23 since no dynamic memory allocation
-    int maxbounces = *rayDepth;
-    if (maxbounces > 23) maxbounces = 23;
+    int maxbounces = MAX_BOUNCES_OR(rayDepthArg);
+    if (maxbounces > BOUNCE_STACK - 1) maxbounces = BOUNCE_STACK - 1;
 
     // Ray bounce data stacks
-    float colorStack[3 * 24] = {0};
-    float emittanceStack[3 * 24] = {0};
-    float directLightStack[3 * 24] = {0};
-    int typeStack[24];
+    float colorStack[3 * BOUNCE_STACK] = {0};
+    float emittanceStack[3 * BOUNCE_STACK] = {0};
+    float directLightStack[3 * BOUNCE_STACK] = {0};
+    int typeStack[BOUNCE_STACK];
+
+    // Traced rays, only stored with COUNT_RAYS
+    int rays = 0;
 
     // Do the bounces
     for (int bounces = 0; bounces < maxbounces; bounces++) {
         float dist = 1000000;
+        rays++;
 
         direction = normalize(direction);
 
@@ -108,19 +185,19 @@ __kernel void rayTracer(__global const float *rayPos,
         float3 emittance = (float3) (0, 0, 0);
 
         // Ray march
-        hit = octreeIntersect(&origin, &direction, &normal, &color, &emittance, &dist, *drawDepth, octreeData, *depth, transparent, *transparentLength, textures, blockData, grassTextures, foliageTextures);
+        hit = octreeIntersect(&origin, &direction, &normal, &color, &emittance, &dist, drawDepth, octreeData, octreePages, octreeFeedback, depth, textures, blockData, tintPages, tintTiles, &steps, &missing);
         dist -= OFFSET;
 
         // BVH intersection
-        if (*drawEntities) {
+        if (drawEntities) {
             hit = entityIntersect(&origin, &direction, &normal, &color, &emittance, &dist, entityData, entityTrigs, entityTextures) || hit;
         }
 
         // Exit on sky hit
         if (!hit) {
-            calcSkyRay(&direction, &color, &emittance, skyTexture, sunPosition, *sunIntensity, textures, *sunIndex);
+            calcSkyRay(&direction, &color, &emittance, skyTexture, sunPosition, sunIntensity, textures, sunIndex);
 
-            float sunScale = pow(*sunIntensity, 2.2f);
+            float sunScale = pow(sunIntensity, 2.2f);
 
             emittanceStack[bounces*3 + 0] = color.x * color.x * sunScale;
             emittanceStack[bounces*3 + 1] = color.y * color.y * sunScale;
@@ -149,16 +226,17 @@ __kernel void rayTracer(__global const float *rayPos,
 
         if (nextFloat(random) <= color.w) {
             // Sun sample
-            if (*sunSampling) {
+            if (sunSampling) {
                 float3 marchOrigin = (float3) (origin.x, origin.y, origin.z);
                 float mult = fabs(dot(direction, normal));
                 dist = 1000000;
                 randomSunDirection(&direction, sunPosition, random);
+                rays++;
                 marchOrigin += 4 * OFFSET * direction;
-                if (!octreeIntersect(&marchOrigin, &direction, &temp, &color, &emittance, &dist, *drawDepth, octreeData, *depth, transparent, *transparentLength, textures, blockData, grassTextures, foliageTextures) &&
-                    !(*drawEntities ? entityIntersect(&marchOrigin, &direction, &temp, &color, &emittance, &dist, entityData, entityTrigs, entityTextures) : 0)) {
+                if (!octreeIntersect(&marchOrigin, &direction, &temp, &color, &emittance, &dist, drawDepth, octreeData, octreePages, octreeFeedback, depth, textures, blockData, tintPages, tintTiles, &steps, &missing) &&
+                    !(drawEntities ? entityIntersect(&marchOrigin, &direction, &temp, &color, &emittance, &dist, entityData, entityTrigs, entityTextures) : 0)) {
                     // Unoccluded path
-                    calcSkyRay(&direction, &color, &emittance, skyTexture, sunPosition, *sunIntensity, textures, *sunIndex);
+                    calcSkyRay(&direction, &color, &emittance, skyTexture, sunPosition, sunIntensity, textures, sunIndex);
                     directLightStack[bounces*3 + 0] += mult;
                     directLightStack[bounces*3 + 1] += mult;
                     directLightStack[bounces*3 + 2] += mult;
@@ -213,64 +291,194 @@ __kernel void rayTracer(__global const float *rayPos,
         }
     }
 
-    res[gid*3 + 0] = colorStack[0];
-    res[gid*3 + 1] = colorStack[1];
-    res[gid*3 + 2] = colorStack[2];
+#ifdef OCTREE_PAGED
+    // Samples which needed a missing octree page are dropped and traced again with the same seed once the pages
+    // are loaded, so every accumulated sample saw the entire octree
+    retry[gid] = missing;
+    if (missing) return;
+#endif
+
+    // Accumulate the sample, the buffer is cleared by mergeSamples
+    res[gid*3 + 0] += colorStack[0];
+    res[gid*3 + 1] += colorStack[1];
+    res[gid*3 + 2] += colorStack[2];
+
+    // Accumulate the squared luminance for the adaptive sampling error estimate
+    float luminance = dot((float3) (colorStack[0], colorStack[1], colorStack[2]), LUMINANCE);
+    resSquares[gid] += luminance * luminance;
+
+#ifdef COUNT_RAYS
+    rayCounts[gid] += rays;
+#endif
 }
 
-// Preview tracer entrypoint
-__kernel void previewTracer(__global const float *rayPos,
-                            __global const float *rayDir,
-                            __global const int *width,
-                            __global const int *height,
-                            __global const int *trace,
-                            __global const int *depth,
-                            image2d_t octreeData,
-                            __global const int *voxelLength,
-                            __global const int *transparent,
-                            __global const int *transparentLength,
-                            image2d_t textures,
-                            image1d_t blockData,
-                            __global const float *sunPos,
-                            __global const int *sunIndex,
-                            __global const float *sunIntensity,
-                            image2d_t skyTexture,
-                            image2d_t grassTextures,
-                            image2d_t foliageTextures,
-                            image2d_t entityData,
-                            image2d_t entityTrigs,
-                            image2d_t entityTextures,
-                            __global const int *drawEntities,
-                            __global const int *drawDepth,
-                            __global unsigned int *res)
+// Merge accumulated samples into the running average sample buffer
+__kernel void mergeSamples(__global float *res,
+                           __global float *sampleBuffer,
+                           const int spp,
+                           const int samples)
 {
     int gid = get_global_id(0);
-    int px = gid % *width;
-    int py = gid / *width;
 
-    res[gid] = 0xFF000000;
+    sampleBuffer[gid] = (sampleBuffer[gid] * spp + res[gid]) / (spp + samples);
+    res[gid] = 0;
+}
 
-    // Crosshairs?
-    if ((px == *width / 2 && (py >= *height / 2 - 5 && py <= *height / 2 + 5)) ||
-        (py == *height / 2 && (px >= *width / 2 - 5 && px <= *width / 2 + 5))) {
-        res[gid] = 0xFFFFFFFF;
-        return;
+// Merge the accumulated samples of the sampled pixels into the running average and update the adaptive sampling
+// mask. A pixel is sampled until the relative standard error of its luminance is below the threshold, or it
+// reaches the maximum number of samples.
+__kernel void mergeAdaptive(__global float *res,
+                            __global float *resSquares,
+                            __global float *sampleBuffer,
+                            __global float *squareBuffer,
+                            __global int *pixelSamples,
+                            __global int *squareSamples,
+                            __global int *mask,
+                            __global float *error,
+                            __global int *activePixels,
+                            const int samples,
+                            const int minSamples,
+                            const int maxSamples,
+                            const float threshold)
+{
+    int gid = get_global_id(0);
+
+    // A merge without samples only updates the mask
+    if (mask[gid] && samples > 0) {
+        int spp = pixelSamples[gid];
+        sampleBuffer[gid*3 + 0] = (sampleBuffer[gid*3 + 0] * spp + res[gid*3 + 0]) / (spp + samples);
+        sampleBuffer[gid*3 + 1] = (sampleBuffer[gid*3 + 1] * spp + res[gid*3 + 1]) / (spp + samples);
+        sampleBuffer[gid*3 + 2] = (sampleBuffer[gid*3 + 2] * spp + res[gid*3 + 2]) / (spp + samples);
+        res[gid*3 + 0] = 0;
+        res[gid*3 + 1] = 0;
+        res[gid*3 + 2] = 0;
+        pixelSamples[gid] = spp + samples;
+
+        // Squares are only known for the samples traced since adaptive sampling started
+        int n = squareSamples[gid];
+        squareBuffer[gid] = (squareBuffer[gid] * n + resSquares[gid]) / (n + samples);
+        resSquares[gid] = 0;
+        squareSamples[gid] = n + samples;
     }
 
-    // Ray origin
-    float3 origin = (float3) (rayPos[0], rayPos[1], rayPos[2]);
+    // Relative standard error of the mean luminance
+    int n = squareSamples[gid];
+    float mean = dot(vload3(gid, sampleBuffer), LUMINANCE);
+    float variance = fmax(squareBuffer[gid] - mean * mean, 0.0f);
+    float err = n > 0 ? sqrt(variance / n) / fmax(mean, 0.001f) : MAXFLOAT;
+    error[gid] = err;
 
-    // Ray direction
-    float3 direction = normalize((float3) (rayDir[gid*3 + 0], rayDir[gid*3 + 1], rayDir[gid*3 + 2]));
+    int active = pixelSamples[gid] < maxSamples && (n < minSamples || err > threshold);
+    mask[gid] = active;
+    if (active) atomic_inc(activePixels);
+}
+
+// Draw the adaptive sampling error as a heat map. Blue pixels have converged, red pixels have at least twice the
+// error threshold
+__kernel void errorMap(__global const float *error,
+                       __global unsigned int *res,
+                       const float threshold)
+{
+    int gid = get_global_id(0);
+
+    float e = clamp(error[gid] / threshold, 0.0f, 2.0f) / 2;
+    float3 color = (float3) (e, 1 - fabs(2 * e - 1), 1 - e);
+
+    uint3 rgb = convert_uint3(clamp(color, 0.0f, 1.0f) * 255 + 0.5f);
+    res[gid] = 0xFF000000 | (rgb.x << 16) | (rgb.y << 8) | rgb.z;
+}
+
+// Post process the running average sample buffer into packed ARGB pixels
+__kernel void postProcess(__global const float *sampleBuffer,
+                          __global unsigned int *res,
+                          const int filter,
+                          const float exposure)
+{
+    int gid = get_global_id(0);
+
+    float3 color = vload3(gid, sampleBuffer) * exposure;
+
+    // Filters based on chunky code
+    switch (filter) {
+        case FILTER_GAMMA:
+            color = pow(fmax(color, 0.0f), (float3) (1 / 2.2f));
+            break;
+        case FILTER_TONEMAP1:
+            color = fmax(color - 0.004f, 0.0f);
+            color = (color * (6.2f * color + 0.5f)) / (color * (6.2f * color + 1.7f) + 0.06f);
+            break;
+        case FILTER_ACES:
+            color = (color * (2.51f * color + 0.03f)) / (color * (2.43f * color + 0.59f) + 0.14f);
+            color = pow(fmax(color, 0.0f), (float3) (1 / 2.2f));
+            break;
+        case FILTER_HABLE:
+            color = hableCurve(color) / hableCurve((float3) (11.2f));
+            color = pow(fmax(color, 0.0f), (float3) (1 / 2.2f));
+            break;
+        default:
+            break;
+    }
+
+    color = clamp(color, 0.0f, 1.0f);
+
+    // Write the results
+    int r = (int) (color.x * 255 + 0.5f);
+    int g = (int) (color.y * 255 + 0.5f);
+    int b = (int) (color.z * 255 + 0.5f);
+    res[gid] = 0xFF000000 | (r << 16) | (g << 8) | b;
+}
+
+// Hable (Uncharted 2) tone mapping curve
+float3 hableCurve(float3 x) {
+    const float hA = 0.15f;
+    const float hB = 0.50f;
+    const float hC = 0.10f;
+    const float hD = 0.20f;
+    const float hE = 0.02f;
+    const float hF = 0.30f;
+    return ((x * (hA * x + hC * hB) + hD * hE) / (x * (hA * x + hB) + hD * hF)) - hE / hF;
+}
+
+// Preview tracer entrypoint. Every work-item traces one block of scale*scale pixels, so the preview can be
+// rendered at a reduced resolution while the camera moves.
+__kernel void previewTracer(SCENE_ARGUMENTS,
+                            const float4 rayPos,
+                            const float4 sunPos,
+                            const float sunIntensity,
+                            const int4 trace,
+                            const int width,
+                            const int height,
+                            const int scale,
+                            const int drawEntities,
+                            const int drawDepth,
+                            __global const float *camera,
+                            __global const float *rayDir,
+                            __global unsigned int *res)
+{
+    int gid = get_global_id(0);
+    int blocksWide = (width + scale - 1) / scale;
+    int bx = (gid % blocksWide) * scale;
+    int by = (gid / blocksWide) * scale;
+
+    // Trace the center pixel of the block
+    int px = min(bx + scale / 2, width - 1);
+    int py = min(by + scale / 2, height - 1);
+
+    // Ray origin and direction
+    float3 origin = rayPos.xyz;
+    float3 direction;
+    cameraPixelRay(camera, rayDir, rayDir, px, py, 0, 0, &origin, &direction);
 
     // Sun position
-    float3 sunPosition = (float3) (sunPos[0], sunPos[1], sunPos[2]);
+    float3 sunPosition = sunPos.xyz;
 
     // Normal vector
     float3 normal;
 
     // Trace once
     float dist = 1000000;
+    int steps = 0;
+    int missing = 0;
 
     direction = normalize(direction);
 
@@ -279,17 +487,17 @@ __kernel void previewTracer(__global const float *rayPos,
     float3 emittance = (float3) (0, 0, 0);
 
     // Ray march
-    hit = octreeIntersect(&origin, &direction, &normal, &color, &emittance, &dist, *drawDepth, octreeData, *depth, transparent, *transparentLength, textures, blockData, grassTextures, foliageTextures);
+    hit = octreeIntersect(&origin, &direction, &normal, &color, &emittance, &dist, drawDepth, octreeData, octreePages, octreeFeedback, depth, textures, blockData, tintPages, tintTiles, &steps, &missing);
     dist -= OFFSET;
 
     // BVH intersection
-    if (*drawEntities) {
+    if (drawEntities) {
         hit = entityIntersect(&origin, &direction, &normal, &color, &emittance, &dist, entityData, entityTrigs, entityTextures) || hit;
     }
 
     // Exit on sky hit
     if (!hit) {
-        calcSkyRay(&direction, &color, &emittance, skyTexture, sunPosition, *sunIntensity, textures, *sunIndex);
+        calcSkyRay(&direction, &color, &emittance, skyTexture, sunPosition, sunIntensity, textures, sunIndex);
     }
 
     if (hit) {
@@ -305,7 +513,7 @@ __kernel void previewTracer(__global const float *rayPos,
         int rx = (int) floor(origin.x);
         int ry = (int) floor(origin.y);
         int rz = (int) floor(origin.z);
-        if (hit && trace[0] == rx && trace[1] == ry && trace[2] == rz) {
+        if (hit && trace.x == rx && trace.y == ry && trace.z == rz) {
             color = 1 - color;
         }
     }
@@ -313,11 +521,295 @@ __kernel void previewTracer(__global const float *rayPos,
     // Calculate preview filter
     color = sqrt(color);
 
-    // Write the results
+    // Write the results to every pixel of the block
     int r = (int) fmax(0.0f, fmin(255.0f, color.x * 255));
     int g = (int) fmax(0.0f, fmin(255.0f, color.y * 255));
     int b = (int) fmax(0.0f, fmin(255.0f, color.z * 255));
-    res[gid] = 0xFF000000 | (r << 16) | (g << 8) | (b);
+    unsigned int argb = 0xFF000000 | (r << 16) | (g << 8) | (b);
+
+    for (int y = by; y < min(by + scale, height); y++) {
+        for (int x = bx; x < min(bx + scale, width); x++) {
+            // Crosshairs are drawn at full resolution
+            if ((x == width / 2 && (y >= height / 2 - 5 && y <= height / 2 + 5)) ||
+                (y == height / 2 && (x >= width / 2 - 5 && x <= width / 2 + 5))) {
+                res[y * width + x] = 0xFFFFFFFF;
+            } else {
+                res[y * width + x] = argb;
+            }
+        }
+    }
+}
+
+// Octree traversal benchmark. Traces the primary rays and records the number of octree steps for each ray
+__kernel void octreeStats(SCENE_ARGUMENTS,
+                          const float4 rayPos,
+                          const int drawDepth,
+                          __global const float *camera,
+                          __global const float *rayDir,
+                          __global int *res)
+{
+    int gid = get_global_id(0);
+
+    float3 origin = rayPos.xyz;
+    float3 direction;
+    cameraRay(camera, rayDir, rayDir, gid, 0, 0, &origin, &direction);
+    float3 normal = (float3) (0, 0, 0);
+    float4 color = (float4) (0, 0, 0, 1);
+    float3 emittance;
+    float dist = 1000000;
+
+    int steps = 0;
+    int missing = 0;
+    octreeIntersect(&origin, &direction, &normal, &color, &emittance, &dist, drawDepth, octreeData, octreePages, octreeFeedback, depth, textures, blockData, tintPages, tintTiles, &steps, &missing);
+    res[gid] = steps;
+}
+
+// Wavefront path tracer
+// The path state is stored per pixel and every stage is a separate kernel. The queues hold the indexes of the
+// paths which are still active, so each stage only runs over live paths. Queue lengths are read on the device,
+// work-items past the end of a queue exit immediately.
+//
+// The radiance is accumulated forward with the path throughput. This matches the rayTracer kernel, where the
+// emittance of blocks and the sun emittance of the sky are only added after the first diffuse bounce.
+
+// Generate the camera rays and queue the paths of the sampled pixels for extension
+__kernel void wavefrontGenerate(const float4 rayPos,
+                                const int seed,
+                                __global const float *camera,
+                                __global const float *rayDir,
+                                __global const float *rayJitter,
+                                __global float4 *pathOrigin,
+                                __global float4 *pathDirection,
+                                __global float4 *pathThroughput,
+                                __global float4 *pathRadiance,
+                                __global unsigned int *pathRandom,
+                                __global float4 *hitNormal,
+                                __global const int *mask,
+                                __global int *queue,
+                                __global int *queueLength)
+{
+    int gid = get_global_id(0);
+
+    // Skip pixels which are not sampled by adaptive sampling
+    pathRadiance[gid] = (float4) (0, 0, 0, 0);
+    if (!mask[gid]) return;
+
+    // Initialize rng
+    unsigned int rngState = seed + gid;
+    unsigned int *random = &rngState;
+    xorshift(random);
+    xorshift(random);
+
+    float3 origin = rayPos.xyz;
+    float3 direction;
+    cameraRay(camera, rayDir, rayJitter, gid, 1, random, &origin, &direction);
+
+    pathOrigin[gid] = (float4) (origin, 0);
+    pathDirection[gid] = (float4) (direction, 0);
+
+    // w is set while the path has only been transmitted
+    pathThroughput[gid] = (float4) (1, 1, 1, 1);
+    pathRandom[gid] = rngState;
+    hitNormal[gid] = (float4) (0, 0, 0, 0);
+    queue[atomic_inc(queueLength)] = gid;
+}
+
+// Intersect the queued paths with the octree and entities
+__kernel void wavefrontExtend(SCENE_ARGUMENTS,
+                              const int drawEntitiesArg,
+                              const int drawDepth,
+                              __global const int *queue,
+                              __global const int *queueLength,
+                              __global const float4 *pathOrigin,
+                              __global const float4 *pathDirection,
+                              __global float4 *hitNormal,
+                              __global float4 *hitColor,
+                              __global float4 *hitEmittance,
+                              __global int *rayCounts)
+{
+    int gid = get_global_id(0);
+    if (gid >= *queueLength) return;
+    int path = queue[gid];
+    const int drawEntities = DRAW_ENTITIES_OR(drawEntitiesArg);
+
+    float3 origin = pathOrigin[path].xyz;
+    float3 direction = pathDirection[path].xyz;
+    float3 normal = hitNormal[path].xyz;
+    float4 color = (float4) (0, 0, 0, 1);
+    float3 emittance = (float3) (0, 0, 0);
+    float dist = 1000000;
+    int steps = 0;
+    int missing = 0;
+
+    int hit = octreeIntersect(&origin, &direction, &normal, &color, &emittance, &dist, drawDepth, octreeData, octreePages, octreeFeedback, depth, textures, blockData, tintPages, tintTiles, &steps, &missing);
+    dist -= OFFSET;
+
+    if (drawEntities) {
+        hit = entityIntersect(&origin, &direction, &normal, &color, &emittance, &dist, entityData, entityTrigs, entityTextures) || hit;
+    }
+
+    hitNormal[path] = (float4) (normal, dist);
+    hitColor[path] = color;
+    hitEmittance[path] = (float4) (emittance, hit);
+
+#ifdef COUNT_RAYS
+    rayCounts[path]++;
+#endif
+}
+
+// Shade the queued paths, queue the continuing paths and the sun shadow rays
+__kernel void wavefrontShade(SCENE_ARGUMENTS,
+                             const float4 sunPos,
+                             const float sunIntensity,
+                             const int bounce,
+                             const int sunSamplingArg,
+                             __global const int *queue,
+                             __global const int *queueLength,
+                             __global float4 *pathOrigin,
+                             __global float4 *pathDirection,
+                             __global float4 *pathThroughput,
+                             __global float4 *pathRadiance,
+                             __global unsigned int *pathRandom,
+                             __global float4 *hitNormal,
+                             __global const float4 *hitColor,
+                             __global const float4 *hitEmittance,
+                             __global int *nextQueue,
+                             __global int *nextQueueLength,
+                             __global int *shadowQueue,
+                             __global int *shadowQueueLength,
+                             __global float4 *shadowOrigin,
+                             __global float4 *shadowDirection,
+                             __global float4 *shadowWeight)
+{
+    int gid = get_global_id(0);
+    if (gid >= *queueLength) return;
+    int path = queue[gid];
+    const int sunSampling = SUN_SAMPLING_OR(sunSamplingArg);
+
+    unsigned int rngState = pathRandom[path];
+    unsigned int *random = &rngState;
+
+    float3 origin = pathOrigin[path].xyz;
+    float3 direction = pathDirection[path].xyz;
+    float3 throughput = pathThroughput[path].xyz;
+    int transmitted = pathThroughput[path].w != 0;
+    float3 radiance = pathRadiance[path].xyz;
+    float3 normal = hitNormal[path].xyz;
+    float dist = hitNormal[path].w;
+    float4 color = hitColor[path];
+    float3 emittance = hitEmittance[path].xyz;
+    float3 sunPosition = sunPos.xyz;
+
+    // Terminate on sky hit
+    if (hitEmittance[path].w == 0) {
+        calcSkyRay(&direction, &color, &emittance, skyTexture, sunPosition, sunIntensity, textures, sunIndex);
+        radiance += throughput * color.xyz;
+        if (!transmitted) {
+            radiance += throughput * color.xyz * color.xyz * pow(sunIntensity, 2.2f);
+        }
+        pathRadiance[path] = (float4) (radiance, 0);
+        return;
+    }
+
+    // Update origin
+    origin += direction * dist;
+
+    if (nextFloat(random) <= color.w) {
+        // Emitters seen directly by the camera
+        if (bounce == 0 && (emittance.x > EPS || emittance.y > EPS || emittance.z > EPS)) {
+            radiance += throughput * color.xyz;
+        }
+        if (!transmitted) {
+            radiance += throughput * emittance;
+        }
+
+        // Sun sample, traced by wavefrontShadow
+        if (sunSampling) {
+            float3 sunDirection;
+            float mult = fabs(dot(direction, normal));
+            randomSunDirection(&sunDirection, sunPosition, random);
+
+            int shadow = atomic_inc(shadowQueueLength);
+            shadowQueue[shadow] = path;
+            shadowOrigin[path] = (float4) (origin + 4 * OFFSET * sunDirection, 0);
+            shadowDirection[path] = (float4) (sunDirection, 0);
+            shadowWeight[path] = (float4) (throughput * color.xyz * mult, 0);
+        }
+
+        // Diffuse reflection
+        throughput *= color.xyz;
+        transmitted = 0;
+        diffuseReflect(&direction, &normal, random);
+    } else {
+        // Transmit through block
+        throughput *= color.xyz * color.w + (1 - color.w);
+        exitBlock(&origin, &direction, &normal, &dist);
+    }
+
+    origin += OFFSET * direction;
+
+    pathOrigin[path] = (float4) (origin, 0);
+    pathDirection[path] = (float4) (normalize(direction), 0);
+    pathThroughput[path] = (float4) (throughput, transmitted);
+    pathRadiance[path] = (float4) (radiance, 0);
+    pathRandom[path] = rngState;
+    hitNormal[path] = (float4) (normal, 0);
+
+    nextQueue[atomic_inc(nextQueueLength)] = path;
+}
+
+// Trace the queued sun shadow rays and add the direct light of unoccluded rays
+__kernel void wavefrontShadow(SCENE_ARGUMENTS,
+                              const int drawEntitiesArg,
+                              const int drawDepth,
+                              __global const int *shadowQueue,
+                              __global const int *shadowQueueLength,
+                              __global const float4 *shadowOrigin,
+                              __global const float4 *shadowDirection,
+                              __global const float4 *shadowWeight,
+                              __global float4 *pathRadiance,
+                              __global int *rayCounts)
+{
+    int gid = get_global_id(0);
+    if (gid >= *shadowQueueLength) return;
+    int path = shadowQueue[gid];
+    const int drawEntities = DRAW_ENTITIES_OR(drawEntitiesArg);
+
+    float3 origin = shadowOrigin[path].xyz;
+    float3 direction = shadowDirection[path].xyz;
+    float3 normal = (float3) (0, 0, 0);
+    float4 color = (float4) (0, 0, 0, 1);
+    float3 emittance;
+    float dist = 1000000;
+    int steps = 0;
+    int missing = 0;
+
+    if (!octreeIntersect(&origin, &direction, &normal, &color, &emittance, &dist, drawDepth, octreeData, octreePages, octreeFeedback, depth, textures, blockData, tintPages, tintTiles, &steps, &missing) &&
+        !(drawEntities ? entityIntersect(&origin, &direction, &normal, &color, &emittance, &dist, entityData, entityTrigs, entityTextures) : 0)) {
+        pathRadiance[path] += shadowWeight[path];
+    }
+
+#ifdef COUNT_RAYS
+    rayCounts[path]++;
+#endif
+}
+
+// Add the radiance of the sampled paths to the accumulation buffer
+__kernel void wavefrontAccumulate(__global const float4 *pathRadiance,
+                                  __global float *res,
+                                  __global const int *mask,
+                                  __global float *resSquares)
+{
+    int gid = get_global_id(0);
+    if (!mask[gid]) return;
+    float4 radiance = pathRadiance[gid];
+
+    res[gid*3 + 0] += radiance.x;
+    res[gid*3 + 1] += radiance.y;
+    res[gid*3 + 2] += radiance.z;
+
+    float luminance = dot(radiance.xyz, LUMINANCE);
+    resSquares[gid] += luminance * luminance;
 }
 
 void randomSunDirection(float3 *direction, float3 sunPos, unsigned int *random) {
@@ -346,7 +838,7 @@ void randomSunDirection(float3 *direction, float3 sunPos, unsigned int *random)
     *direction = normalize(u + v + w);
 }
 
-int entityIntersect(float3 *origin, float3 *direction, float3 *normal, float4 *color, float3 *emittance, float *dist, image2d_t entityData, image2d_t entityTrigs, image2d_t entityTextures) {
+int entityIntersect(float3 *origin, float3 *direction, float3 *normal, float4 *color, float3 *emittance, float *dist, DATA_ARRAY entityData, DATA_ARRAY entityTrigs, DATA_ARRAY entityTextures) {
     int hit = 0;
 
     int toVisit = 0;
@@ -453,7 +945,7 @@ void diffuseReflect(float3 *direction, float3 *normal, unsigned int *state) {
 }
 
 // Calculate the texture value of a ray
-void getTextureRay(float3 *origin, float3 *normal, float4 *color, float3 *emittance, int block, image2d_t textures, image1d_t blockData, image2d_t grassTextures, image2d_t foliageTextures, int depth) {
+void getTextureRay(float3 *origin, float3 *normal, float4 *color, float3 *emittance, int block, DATA_ARRAY textures, image1d_t blockData, DATA_ARRAY tintPages, DATA_ARRAY tintTiles, int depth) {
     int bounds = 1 << depth;
 
     // Block data
@@ -495,31 +987,22 @@ void getTextureRay(float3 *origin, float3 *normal, float4 *color, float3 *emitta
     (*color).z = (0xFF & (argb >> 0 )) / 255.0;
     (*color).w = (0xFF & (argb >> 24)) / 255.0;
 
-    // Calculate tint
-    if (blockD.w != 0) {
-        uint4 tintLookup;
-        if (blockD.w == 1) {
-            tintLookup = read_imageui(grassTextures, indexSampler, (int2)((b.x+bounds)/4, b.z+bounds));
-        } else {
-            tintLookup = read_imageui(foliageTextures, indexSampler, (int2)((b.x+bounds)/4, b.z+bounds));
-        }
-        unsigned int tintColor = tintLookup.x;
-
-        switch ((int)(b.x + bounds) % 4) {
-            case 0:
-                tintColor = tintLookup.x;
-            case 1:
-                tintColor = tintLookup.y;
-            case 2:
-                tintColor = tintLookup.z;
-            default:
-                tintColor = tintLookup.w;
+    // Calculate tint from the 16x16 tile containing this column, if it has tint data
+    int tx = (int) b.x >> 4;
+    int tz = (int) b.z >> 4;
+    int tilesPerSide = max(bounds >> 4, 1);
+    int tint = blockD.w & BLOCK_TINT_MASK;
+    if (tint != 0 && b.x >= 0 && b.z >= 0 && tx < tilesPerSide && tz < tilesPerSide) {
+        int tile = indexi(tintPages, tz * tilesPerSide + tx);
+        if (tile >= 0) {
+            int tintIndex = tile * 512 + (tint == BLOCK_TINT_FOLIAGE ? 256 : 0) + (((int) b.z & 15) << 4) + ((int) b.x & 15);
+            unsigned int tintColor = indexu(tintTiles, tintIndex);
+
+            // Separate argb and add to color
+            (*color).x *= (0xFF & (tintColor >> 16)) / 256.0;
+            (*color).y *= (0xFF & (tintColor >> 8)) / 256.0;
+            (*color).z *= (0xFF & (tintColor >> 0)) / 256.0;
         }
-
-        // Separate argb and add to color
-        (*color).x *= (0xFF & (tintColor >> 16)) / 256.0;
-        (*color).y *= (0xFF & (tintColor >> 8)) / 256.0;
-        (*color).z *= (0xFF & (tintColor >> 0)) / 256.0;
     }
 
     // Calculate emittance
@@ -528,14 +1011,41 @@ void getTextureRay(float3 *origin, float3 *normal, float4 *color, float3 *emitta
     (*emittance).z = (*color).z * (*color).z * (blockD.y / 256.0);
 }
 
+// Read an octree node. With OCTREE_PAGED only the pages in the page table are resident, reads from other pages
+// request the page in the feedback buffer and return an empty leaf.
+int octreeNode(DATA_ARRAY octreeData, __global const int *octreePages, __global int *octreeFeedback, int index) {
+#ifdef OCTREE_PAGED
+    int page = index >> OCTREE_PAGE_BITS;
+    int slot = octreePages[page];
+    if (slot < 0) {
+        octreeFeedback[page] = OCTREE_PAGE_MISSING;
+        return OCTREE_MISSING;
+    }
+
+    // Mark the page as used for the eviction on the host, only writing once per page
+    if (octreeFeedback[page] != OCTREE_PAGE_USED) octreeFeedback[page] = OCTREE_PAGE_USED;
+    return indexi(octreeData, (slot << OCTREE_PAGE_BITS) | (index & OCTREE_PAGE_MASK));
+#else
+    return indexi(octreeData, index);
+#endif
+}
+
 // Check intersect with octree
-int octreeIntersect(float3 *origin, float3 *direction, float3 *normal, float4 *color, float3 *emittance, float *dist, int drawDepth, image2d_t octreeData, int depth, __global const int *transparent, int transparentLength, image2d_t textures, image1d_t blockData, image2d_t grassTextures, image2d_t foliageTextures) {
+int octreeIntersect(float3 *origin, float3 *direction, float3 *normal, float4 *color, float3 *emittance, float *dist, int drawDepth, DATA_ARRAY octreeData, __global const int *octreePages, __global int *octreeFeedback, int depth, DATA_ARRAY textures, image1d_t blockData, DATA_ARRAY tintPages, DATA_ARRAY tintTiles, int *steps, int *missing) {
     float3 normalMarch = (float3) ((*normal).x, (*normal).y, (*normal).z);
     float distMarch = 0;
 
     float3 invD = 1/ (*direction);
     float3 offsetD = -(*origin) * invD;
 
+#ifdef OCTREE_STACK
+    // Node data along the path to the current leaf, indexed by level
+    int nodeStack[OCTREE_MAX_DEPTH + 1];
+    nodeStack[depth] = octreeNode(octreeData, octreePages, octreeFeedback, 0);
+    int level = depth;
+    int px = 0, py = 0, pz = 0;
+#endif
+
     for (int i = 0; i < drawDepth; i++) {
         float3 pos = floor((*origin) + (*direction) * distMarch);
 
@@ -551,10 +1061,27 @@ int octreeIntersect(float3 *origin, float3 *direction, float3 *normal, float4 *c
         if (lx != 0 || ly != 0 || lz != 0)
             return 0;
 
+#ifdef OCTREE_STACK
+        // Read with depth, starting from the lowest ancestor shared with the previous leaf
+        level = max(level, 32 - (int) clz((x ^ px) | (y ^ py) | (z ^ pz)));
+        px = x;
+        py = y;
+        pz = z;
+        int data = nodeStack[level];
+        while (data > 0) {
+            level --;
+            lx = 1 & (x >> level);
+            ly = 1 & (y >> level);
+            lz = 1 & (z >> level);
+
+            data = octreeNode(octreeData, octreePages, octreeFeedback, data + ((lx << 2) | (ly << 1) | lz));
+            nodeStack[level] = data;
+        }
+#else
         // Read with depth
         int nodeIndex = 0;
         int level = depth;
-        int data = indexi(octreeData, nodeIndex);
+        int data = octreeNode(octreeData, octreePages, octreeFeedback, nodeIndex);
         while (data > 0) {
             level --;
             lx = 1 & (x >> level);
@@ -562,27 +1089,23 @@ int octreeIntersect(float3 *origin, float3 *direction, float3 *normal, float4 *c
             lz = 1 & (z >> level);
 
             nodeIndex = data + ((lx << 2) | (ly << 1) | lz);
-            data = indexi(octreeData, nodeIndex);
+            data = octreeNode(octreeData, octreePages, octreeFeedback, nodeIndex);
         }
+#endif
         data = -data;
 
         lx = x >> level;
         ly = y >> level;
         lz = z >> level;
 
-        // Test intersection
-        int pass = 0;
-        for (int j = 0; j < transparentLength; j++) {
-            if (data == transparent[j]) {
-                pass = 1;
-                break;
-            }
-        }
+        (*steps)++;
 
-        // Get block data if there is an intersect
-        if (!pass) {
+        // Get block data if there is an intersect. Missing pages are passed as empty space
+        if (data == -OCTREE_MISSING) {
+            *missing = 1;
+        } else if (!(read_imagei(blockData, indexSampler, data).w & BLOCK_INVISIBLE)) {
             float3 originTest = (*origin) + (*direction) * (distMarch + OFFSET);
-            getTextureRay(&originTest, &normalMarch, color, emittance, data, textures, blockData, grassTextures, foliageTextures, depth);
+            getTextureRay(&originTest, &normalMarch, color, emittance, data, textures, blockData, tintPages, tintTiles, depth);
 
             if ((*color).w > EPS) {
                 *dist = distMarch;
@@ -703,7 +1226,7 @@ void exitBlock(float3 *origin, float3 *direction, float3 *normal, float *dist) {
     *dist += tNext;
 }
 
-void calcSkyRay(float3 *direction, float4 *color, float3 *emittance, image2d_t skyTexture, float3 sunPos, float sunIntensity, image2d_t textures, int sunIndex) {
+void calcSkyRay(float3 *direction, float4 *color, float3 *emittance, image2d_t skyTexture, float3 sunPos, float sunIntensity, DATA_ARRAY textures, int sunIndex) {
     // Draw sun texture
     sunIntersect(direction, color, emittance, sunPos, textures, sunIndex);
 
@@ -717,7 +1240,7 @@ void calcSkyRay(float3 *direction, float4 *color, float3 *emittance, image2d_t s
     *color += skyColor;
 }
 
-void sunIntersect(float3 *direction, float4 *color, float3 *emittance, float3 sunPos, image2d_t textures, int sunIndex) {
+void sunIntersect(float3 *direction, float4 *color, float3 *emittance, float3 sunPos, DATA_ARRAY textures, int sunIndex) {
     float3 su;
     float3 sv;
 
@@ -821,7 +1344,7 @@ int aabbInside(float3 *origin, float bounds[6]) {
            (*origin).z >= bounds[4] && (*origin).z <= bounds[5];
 }
 
-int texturedTriangleIntersect(float3 *origin, float3 *direction, float3 *normal, float4 *color, float3 *emittance, float *dist, int index, image2d_t entityTrigs, image2d_t entityTextures) {
+int texturedTriangleIntersect(float3 *origin, float3 *direction, float3 *normal, float4 *color, float3 *emittance, float *dist, int index, DATA_ARRAY entityTrigs, DATA_ARRAY entityTextures) {
     // Check aabb
     float aabb[6];
     areadf(entityTrigs, index+1, 6, aabb);